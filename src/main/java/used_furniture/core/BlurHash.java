@@ -0,0 +1,118 @@
+package used_furniture.core;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Encoder for BlurHash (https://blurha.sh) placeholders: a short base83
+ * string of the DCT components of a photo, which the front end decodes into
+ * a blurred preview while the real image loads.
+ *
+ * @author rmarq
+ */
+public final class BlurHash {
+
+  private static final String BASE83
+          = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+
+  private BlurHash() {
+  }
+
+  /**
+   * The image should already be small, e.g. 32 pixels on its longest side;
+   * the cost is proportional to pixels x components.
+   *
+   * @param image
+   * @param componentsX between 1 and 9.
+   * @param componentsY between 1 and 9.
+   * @return
+   */
+  public static String encode(BufferedImage image, int componentsX, int componentsY) {
+    if (componentsX < 1 || componentsX > 9 || componentsY < 1 || componentsY > 9) {
+      throw new IllegalArgumentException("BlurHash components must be between 1 and 9: "
+              + componentsX + "x" + componentsY);
+    }
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+    double[] linear = new double[rgb.length * 3];
+    for (int i = 0; i < rgb.length; i++) {
+      linear[i * 3] = toLinear((rgb[i] >> 16) & 0xff);
+      linear[i * 3 + 1] = toLinear((rgb[i] >> 8) & 0xff);
+      linear[i * 3 + 2] = toLinear(rgb[i] & 0xff);
+    }
+
+    double[][] factors = new double[componentsX * componentsY][];
+    for (int j = 0; j < componentsY; j++) {
+      for (int i = 0; i < componentsX; i++) {
+        double normalisation = (i == 0 && j == 0) ? 1 : 2;
+        double r = 0;
+        double g = 0;
+        double b = 0;
+        for (int y = 0; y < height; y++) {
+          double basisY = Math.cos(Math.PI * j * y / height);
+          for (int x = 0; x < width; x++) {
+            double basis = basisY * Math.cos(Math.PI * i * x / width);
+            int p = (y * width + x) * 3;
+            r += basis * linear[p];
+            g += basis * linear[p + 1];
+            b += basis * linear[p + 2];
+          }
+        }
+        double scale = normalisation / (width * height);
+        factors[j * componentsX + i] = new double[]{r * scale, g * scale, b * scale};
+      }
+    }
+
+    StringBuilder hash = new StringBuilder();
+    encode83(hash, (componentsX - 1) + (componentsY - 1) * 9, 1);
+    double maxValue = 1;
+    if (factors.length > 1) {
+      double actualMax = 0;
+      for (int k = 1; k < factors.length; k++) {
+        for (double component : factors[k]) {
+          actualMax = Math.max(actualMax, Math.abs(component));
+        }
+      }
+      int quantisedMax = (int) Math.max(0, Math.min(82, Math.floor(actualMax * 166 - 0.5)));
+      maxValue = (quantisedMax + 1) / 166.0;
+      encode83(hash, quantisedMax, 1);
+    } else {
+      encode83(hash, 0, 1);
+    }
+    double[] dc = factors[0];
+    encode83(hash, (toSrgb(dc[0]) << 16) + (toSrgb(dc[1]) << 8) + toSrgb(dc[2]), 4);
+    for (int k = 1; k < factors.length; k++) {
+      double[] ac = factors[k];
+      encode83(hash, quantiseAc(ac[0], maxValue) * 19 * 19 + quantiseAc(ac[1], maxValue) * 19
+              + quantiseAc(ac[2], maxValue), 2);
+    }
+    return hash.toString();
+  }
+
+  private static int quantiseAc(double value, double maxValue) {
+    double v = value / maxValue;
+    return (int) Math.max(0, Math.min(18, Math.floor(Math.copySign(Math.sqrt(Math.abs(v)), v) * 9 + 9.5)));
+  }
+
+  private static double toLinear(int value) {
+    double v = value / 255.0;
+    return v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+  }
+
+  private static int toSrgb(double value) {
+    double v = Math.max(0, Math.min(1, value));
+    return v <= 0.0031308
+            ? (int) (v * 12.92 * 255 + 0.5)
+            : (int) ((1.055 * Math.pow(v, 1 / 2.4) - 0.055) * 255 + 0.5);
+  }
+
+  private static void encode83(StringBuilder out, int value, int length) {
+    for (int i = 1; i <= length; i++) {
+      int divisor = 1;
+      for (int k = 0; k < length - i; k++) {
+        divisor *= 83;
+      }
+      out.append(BASE83.charAt((value / divisor) % 83));
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package used_furniture.core;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import used_furniture.core.products.model.Product;
+
+/**
+ * Immutable, versioned copy of the product catalog. Instances are never
+ * modified after construction; a write to the catalog publishes a new
+ * snapshot instead, so readers can share an instance without locking.
+ *
+ * @author rmarq
+ */
+public class CatalogSnapshot {
+
+  private final long version;
+  private final ZonedDateTime loadedAt;
+  private final List<Product> products;
+
+  /**
+   *
+   * @param version
+   * @param products
+   */
+  CatalogSnapshot(long version, List<Product> products) {
+    this.version = version;
+    this.loadedAt = ZonedDateTime.now(ZoneId.of("UTC"));
+    this.products = Collections.unmodifiableList(new ArrayList<>(products));
+  }
+
+  /**
+   *
+   * @return
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public ZonedDateTime getLoadedAt() {
+    return loadedAt;
+  }
+
+  /**
+   * Returns a mutable copy of the catalog so callers can filter it in place
+   * without affecting other readers.
+   *
+   * @param siteVisibleOnly
+   * @return
+   */
+  public List<Product> getProducts(boolean siteVisibleOnly) {
+    List<Product> result = new ArrayList<>(this.products.size());
+    for (Product product : this.products) {
+      if (!siteVisibleOnly || product.siteVisible) {
+        result.add(product);
+      }
+    }
+    return result;
+  }
+
+  /**
+   *
+   * @param filter
+   * @return a mutable list of the matching products, by product id.
+   */
+  public List<Product> getProducts(ProductFilter filter) {
+    List<Product> result = new ArrayList<>();
+    for (Product product : this.products) {
+      if (filter.matches(product)) {
+        result.add(product);
+      }
+    }
+    result.sort(Comparator.comparingInt(product -> product.product_id));
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "CatalogSnapshot{" + "version=" + version + ", loadedAt=" + loadedAt //
+            + ", products=" + products.size() + '}';
+  }
+
+}
@@ -0,0 +1,219 @@
+package used_furniture.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * {@link PhotoBlobStore} on a local (or mounted) filesystem. Blob
+ * "9f86d081..." is stored as {@code root/9f/86/9f86d081...}, so no directory
+ * grows beyond a few thousand entries.
+ *
+ * Content is first written to {@code root/tmp}, hashed on the way, flushed to
+ * disk and then renamed into place, so a blob is either complete or absent.
+ * Concurrent puts of the same content are harmless: the rename replaces a
+ * file with identical bytes.
+ *
+ * The modification time of a blob is the time of its last put: a put of
+ * content that is already stored touches the file instead of writing it.
+ * {@link #deleteIfIdle} first renames the blob away, so no put can reuse it
+ * any more, then checks that time and renames it back if it was just used.
+ *
+ * @author rmarq
+ */
+public class FileSystemPhotoBlobStore implements PhotoBlobStore {
+
+  private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+  private static final String TMP_DIR = "tmp";
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final Path root;
+  private final Path tmp;
+
+  /**
+   *
+   * @param root created if missing.
+   * @throws IOException
+   */
+  public FileSystemPhotoBlobStore(Path root) throws IOException {
+    this.root = root.toAbsolutePath();
+    this.tmp = this.root.resolve(TMP_DIR);
+    Files.createDirectories(this.tmp);
+  }
+
+  @Override
+  public Blob put(InputStream in) throws IOException {
+    MessageDigest digest = sha256();
+    Path temp = Files.createTempFile(this.tmp, "blob", ".tmp");
+    try {
+      long size = 0;
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+              OutputStream out = new DigestOutputStream(Channels.newOutputStream(channel), digest)) {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+          out.write(buffer, 0, read);
+          size += read;
+        }
+        out.flush();
+        channel.force(true);
+      }
+      String hash = hex(digest.digest());
+      Path target = this.path(hash);
+      if (touch(target)) {
+        return new Blob(hash, size);
+      }
+      Files.createDirectories(target.getParent());
+      try {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return new Blob(hash, size);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  @Override
+  public Blob put(byte[] bytes) throws IOException {
+    return this.put(new ByteArrayInputStream(bytes));
+  }
+
+  @Override
+  public InputStream open(String hash) throws IOException {
+    return Files.newInputStream(this.path(hash));
+  }
+
+  @Override
+  public byte[] read(String hash) throws IOException {
+    return Files.readAllBytes(this.path(hash));
+  }
+
+  @Override
+  public boolean exists(String hash) {
+    return Files.exists(this.path(hash));
+  }
+
+  @Override
+  public boolean delete(String hash) throws IOException {
+    try {
+      Files.delete(this.path(hash));
+      return true;
+    } catch (NoSuchFileException ex) {
+      return false;
+    }
+  }
+
+  @Override
+  public boolean deleteIfIdle(String hash, Instant idleSince) throws IOException {
+    Path target = this.path(hash);
+    Path moved = this.tmp.resolve(hash + ".delete");
+    try {
+      Files.move(target, moved, StandardCopyOption.ATOMIC_MOVE);
+    } catch (NoSuchFileException ex) {
+      return false;
+    }
+    if (Files.getLastModifiedTime(moved).toInstant().isAfter(idleSince)) {
+      // Used since; a put that missed it meanwhile wrote the same bytes back.
+      Files.move(moved, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      return false;
+    }
+    Files.delete(moved);
+    return true;
+  }
+
+  @Override
+  public Stream<String> listIdle(Instant idleSince) throws IOException {
+    // Blobs sit at root/xx/yy/hash; tmp only holds files that are no hash.
+    return Files.walk(this.root, 3)
+            .filter(file -> HASH.matcher(file.getFileName().toString()).matches())
+            .filter(file -> isIdle(file, idleSince))
+            .map(file -> file.getFileName().toString());
+  }
+
+  private static boolean isIdle(Path file, Instant idleSince) {
+    try {
+      return !Files.getLastModifiedTime(file).toInstant().isAfter(idleSince);
+    } catch (NoSuchFileException ex) {
+      return false;
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * Marks an existing blob as used now.
+   *
+   * @return false if there is no such blob.
+   */
+  private static boolean touch(Path target) throws IOException {
+    try {
+      Files.setLastModifiedTime(target, FileTime.from(Instant.now()));
+      return true;
+    } catch (NoSuchFileException ex) {
+      return false;
+    }
+  }
+
+  /**
+   *
+   * @param hash
+   * @return where the blob is stored.
+   * @throws IllegalArgumentException if hash is not a lowercase hex SHA-256,
+   * which also keeps it from naming a path outside the root.
+   */
+  Path path(String hash) {
+    if (hash == null || !HASH.matcher(hash).matches()) {
+      throw new IllegalArgumentException("Not a hex SHA-256: " + hash);
+    }
+    return this.root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+  }
+
+  /**
+   *
+   * @return
+   */
+  public Path getRoot() {
+    return root;
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException("SHA-256 is not available", ex);
+    }
+  }
+
+  private static String hex(byte[] digest) {
+    StringBuilder hex = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  @Override
+  public String toString() {
+    return "FileSystemPhotoBlobStore{" + "root=" + root + '}';
+  }
+
+}
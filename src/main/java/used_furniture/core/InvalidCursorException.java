@@ -0,0 +1,27 @@
+package used_furniture.core;
+
+/**
+ * Thrown when a page cursor sent by a client cannot be decoded or was issued
+ * for another sort order.
+ *
+ * @author rmarq
+ */
+public class InvalidCursorException extends IllegalArgumentException {
+
+  /**
+   *
+   * @param message
+   * @param cause
+   */
+  public InvalidCursorException(String message, Throwable cause) {
+    super(message, cause);
+  }
+
+  /**
+   *
+   * @param message
+   */
+  public InvalidCursorException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,87 @@
+package used_furniture.core;
+
+import java.util.Properties;
+
+/**
+ * JPEG encoder settings for resized photos. Configured per profile name,
+ * e.g.
+ * <pre>
+ * used-furniture.photo.jpeg.profile.thumb.quality=0.70
+ * used-furniture.photo.jpeg.profile.thumb.progressive=false
+ * used-furniture.photo.jpeg.profile.thumb.chroma=420
+ * </pre>
+ *
+ * @author rmarq
+ */
+public class JpegProfile {
+
+  /**
+   * What ImageIO.write(image, "jpg", out) produces: quality 0.75, baseline,
+   * 4:2:0 chroma, standard Huffman tables.
+   */
+  public static final JpegProfile DEFAULT = new JpegProfile("default", 0.75f, false, true, false);
+
+  public final String name;
+  public final float quality;
+  public final boolean progressive;
+  public final boolean chromaSubsampled;
+  public final boolean optimizeHuffman;
+
+  /**
+   *
+   * @param name
+   * @param quality between 0 and 1.
+   * @param progressive
+   * @param chromaSubsampled true for 4:2:0, false for 4:4:4.
+   * @param optimizeHuffman compute Huffman tables per image. Progressive
+   * JPEGs always do.
+   */
+  public JpegProfile(String name, float quality, boolean progressive, boolean chromaSubsampled,
+          boolean optimizeHuffman) {
+    if (quality <= 0 || quality > 1) {
+      throw new IllegalArgumentException("JPEG quality must be in (0, 1]: " + quality);
+    }
+    this.name = name;
+    this.quality = quality;
+    this.progressive = progressive;
+    this.chromaSubsampled = chromaSubsampled;
+    this.optimizeHuffman = optimizeHuffman;
+  }
+
+  /**
+   *
+   * @param name
+   * @param props
+   * @param prefix e.g. "used-furniture.photo.jpeg.profile."
+   * @return the profile read from prefix + name + ".quality", ".progressive",
+   * ".chroma" (420 or 444) and ".optimizeHuffman".
+   */
+  public static JpegProfile fromProperties(String name, Properties props, String prefix) {
+    String base = prefix + name + ".";
+    float quality = Float.parseFloat(props.getProperty(base + "quality", String.valueOf(DEFAULT.quality)));
+    boolean progressive = Boolean.parseBoolean(props.getProperty(base + "progressive", "false"));
+    String chroma = props.getProperty(base + "chroma", "420").trim();
+    if (!chroma.equals("420") && !chroma.equals("444")) {
+      throw new IllegalArgumentException("Invalid chroma for JPEG profile " + name + ", expected 420 or 444: " + chroma);
+    }
+    boolean optimizeHuffman = Boolean.parseBoolean(props.getProperty(base + "optimizeHuffman", "true"));
+    return new JpegProfile(name, quality, progressive, chroma.equals("420"), optimizeHuffman);
+  }
+
+  /**
+   *
+   * @param name
+   * @param quality
+   * @return a baseline 4:2:0 profile with optimized Huffman tables.
+   */
+  public static JpegProfile ofQuality(String name, float quality) {
+    return new JpegProfile(name, quality, false, true, true);
+  }
+
+  @Override
+  public String toString() {
+    return name + "{quality=" + quality + ", progressive=" + progressive //
+            + ", chroma=" + (chromaSubsampled ? "420" : "444") + ", optimizeHuffman=" + optimizeHuffman + '}';
+  }
+
+}
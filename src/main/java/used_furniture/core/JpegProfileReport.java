@@ -0,0 +1,56 @@
+package used_furniture.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Output size and encode time of one {@link JpegProfile} on one rendered
+ * photo, compared with {@link JpegProfile#DEFAULT}.
+ *
+ * @author rmarq
+ */
+public class JpegProfileReport {
+
+  @JsonProperty
+  public final String profile;
+
+  @JsonProperty
+  public final String settings;
+
+  @JsonProperty
+  public final int width;
+
+  @JsonProperty
+  public final int height;
+
+  @JsonProperty
+  public final int bytes;
+
+  /**
+   * Median over the measured runs.
+   */
+  @JsonProperty
+  public final double encodeMillis;
+
+  /**
+   * Bytes saved relative to the default profile, negative if larger.
+   */
+  @JsonProperty
+  public final double savingPercent;
+
+  JpegProfileReport(JpegProfile profile, int width, int height, int bytes, double encodeMillis, int defaultBytes) {
+    this.profile = profile.name;
+    this.settings = profile.toString();
+    this.width = width;
+    this.height = height;
+    this.bytes = bytes;
+    this.encodeMillis = encodeMillis;
+    this.savingPercent = defaultBytes == 0 ? 0 : 100.0 * (defaultBytes - bytes) / defaultBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "JpegProfileReport{" + "profile=" + profile + ", width=" + width + ", height=" + height //
+            + ", bytes=" + bytes + ", encodeMillis=" + encodeMillis + ", savingPercent=" + savingPercent + '}';
+  }
+
+}
@@ -0,0 +1,530 @@
+package used_furniture.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of original photos kept outside the Java heap, so multi-megabyte
+ * originals fetched over and over (Facebook's crawler, the product detail
+ * page) neither go back to Postgres nor churn the garbage collector.
+ *
+ * The budget is split into segments, each a single direct ByteBuffer slab
+ * cut into fixed-size blocks and guarded by its own lock. A photo is stored
+ * in as many blocks of one segment as it needs, so slabs never fragment.
+ * When a segment is full, blocks are reclaimed with the CLOCK algorithm: the
+ * hand sweeps the entries, sparing (and clearing the mark of) those read
+ * since its last pass.
+ *
+ * Readers pin an entry through a {@link Handle} and write it to the response
+ * channel without holding the segment lock. Pinned entries are never
+ * evicted; a replaced or invalidated entry gives its blocks back when the
+ * last handle is closed.
+ *
+ * The slabs count against -XX:MaxDirectMemorySize, which must be set above
+ * {@code maxBytes}.
+ *
+ * @author rmarq
+ */
+public class OffHeapPhotoCache {
+
+  private final Segment[] segments;
+  private final long capacityBytes;
+  private final int blockSize;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+
+  /**
+   *
+   * @param maxBytes the total size of the slabs, rounded down to whole blocks.
+   * @param segments the number of independently locked slabs.
+   * @param blockSize the allocation unit, in bytes.
+   */
+  public OffHeapPhotoCache(long maxBytes, int segments, int blockSize) {
+    if (segments < 1) {
+      throw new IllegalArgumentException("segments must be positive: " + segments);
+    }
+    if (blockSize < 1024) {
+      throw new IllegalArgumentException("blockSize must be at least 1024: " + blockSize);
+    }
+    long blocksPerSegment = maxBytes / segments / blockSize;
+    if (blocksPerSegment < 1) {
+      throw new IllegalArgumentException("maxBytes must hold at least one block per segment: " + maxBytes);
+    }
+    if (blocksPerSegment * blockSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Segments cannot exceed 2 GB, use more than " + segments + " segments");
+    }
+    this.blockSize = blockSize;
+    this.segments = new Segment[segments];
+    for (int i = 0; i < segments; i++) {
+      this.segments[i] = new Segment((int) blocksPerSegment, blockSize, this.evictions);
+    }
+    this.capacityBytes = blocksPerSegment * blockSize * segments;
+  }
+
+  /**
+   *
+   * @param photoId
+   * @param version content hash of the photo.
+   * @return a pinned handle on the cached photo, or null on a miss. Must be
+   * closed.
+   */
+  public Handle acquire(long photoId, String version) {
+    Handle handle = this.segmentOf(photoId).acquire(photoId, version);
+    if (handle == null) {
+      this.misses.increment();
+    } else {
+      this.hits.increment();
+    }
+    return handle;
+  }
+
+  /**
+   *
+   * @param size
+   * @return whether a photo of that size can be cached at all.
+   */
+  public boolean admits(long size) {
+    return size > 0 && (size + this.blockSize - 1) / this.blockSize <= this.segments[0].blockCount;
+  }
+
+  /**
+   * Copies a photo into the cache. Blocks are reserved before anything is
+   * read, so when the segment cannot make room the stream is left untouched
+   * for the caller to serve.
+   *
+   * @param photoId
+   * @param version content hash of the photo.
+   * @param size the length of the stream.
+   * @param in
+   * @return a pinned handle on the new entry, or null if it was not cached.
+   * Must be closed.
+   * @throws IOException if the stream fails or is shorter than size.
+   */
+  public Handle load(long photoId, String version, long size, InputStream in) throws IOException {
+    if (!this.admits(size)) {
+      this.rejections.increment();
+      return null;
+    }
+    Segment segment = this.segmentOf(photoId);
+    Entry entry = segment.reserve(photoId, version, size);
+    if (entry == null) {
+      this.rejections.increment();
+      return null;
+    }
+    boolean filled = false;
+    try {
+      ReadableByteChannel channel = Channels.newChannel(in);
+      for (int i = 0; i < entry.blocks.length; i++) {
+        ByteBuffer block = segment.block(entry, i);
+        while (block.hasRemaining()) {
+          if (channel.read(block) < 0) {
+            throw new EOFException("Photo " + photoId + " ended before " + size + " bytes");
+          }
+        }
+      }
+      filled = true;
+    } finally {
+      if (!filled) {
+        segment.abandon(entry);
+      }
+    }
+    segment.publish(entry);
+    return new Handle(segment, entry);
+  }
+
+  /**
+   * Drops the cached photo, e.g. after it was replaced or removed.
+   *
+   * @param photoId
+   */
+  public void invalidate(long photoId) {
+    this.segmentOf(photoId).invalidate(photoId);
+  }
+
+  /**
+   *
+   * @return
+   */
+  public Stats getStats() {
+    int entries = 0;
+    long usedBytes = 0;
+    long storedBytes = 0;
+    for (Segment segment : this.segments) {
+      segment.lock.lock();
+      try {
+        entries += segment.entries.size();
+        usedBytes += (long) (segment.blockCount - segment.freeCount) * this.blockSize;
+        storedBytes += segment.storedBytes;
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return new Stats(this.hits.sum(), this.misses.sum(), this.evictions.sum(), this.rejections.sum(),
+            entries, storedBytes, usedBytes, this.capacityBytes, this.segments.length, this.blockSize);
+  }
+
+  private Segment segmentOf(long photoId) {
+    long h = photoId * 0x9E3779B97F4A7C15L;
+    return this.segments[(int) ((h >>> 32) % this.segments.length)];
+  }
+
+  /**
+   * One slab, its free blocks, and the entries stored in it.
+   */
+  private static final class Segment {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer slab;
+    private final int blockSize;
+    private final int blockCount;
+    private final LongAdder evictions;
+    private final int[] freeBlocks;
+    private int freeCount;
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final List<Entry> ring = new ArrayList<>();
+    private int hand;
+    private long storedBytes;
+
+    Segment(int blockCount, int blockSize, LongAdder evictions) {
+      this.slab = ByteBuffer.allocateDirect(blockCount * blockSize);
+      this.blockSize = blockSize;
+      this.blockCount = blockCount;
+      this.evictions = evictions;
+      this.freeBlocks = new int[blockCount];
+      for (int i = 0; i < blockCount; i++) {
+        this.freeBlocks[i] = blockCount - 1 - i;
+      }
+      this.freeCount = blockCount;
+    }
+
+    /*
+     * A view of the i-th block of an entry, limited to the bytes it holds.
+     * Safe to use without the lock while the entry is pinned.
+     */
+    ByteBuffer block(Entry entry, int i) {
+      int start = entry.blocks[i] * this.blockSize;
+      long length = Math.min(this.blockSize, entry.size - (long) i * this.blockSize);
+      ByteBuffer view = this.slab.duplicate();
+      view.limit(start + (int) length).position(start);
+      return view.slice();
+    }
+
+    Handle acquire(long photoId, String version) {
+      this.lock.lock();
+      try {
+        Entry entry = this.entries.get(photoId);
+        if (entry == null || !entry.version.equals(version)) {
+          return null;
+        }
+        entry.pins++;
+        entry.referenced = true;
+        return new Handle(this, entry);
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    /*
+     * Takes the blocks for a new, pinned entry that is not visible yet,
+     * running the clock until enough are free.
+     */
+    Entry reserve(long photoId, String version, long size) {
+      int needed = (int) ((size + this.blockSize - 1) / this.blockSize);
+      this.lock.lock();
+      try {
+        // Every entry gets two chances: one to lose its mark, one to go.
+        int budget = 2 * this.ring.size();
+        while (this.freeCount < needed && budget-- > 0 && !this.ring.isEmpty()) {
+          if (this.hand >= this.ring.size()) {
+            this.hand = 0;
+          }
+          Entry candidate = this.ring.get(this.hand);
+          if (candidate.pins > 0) {
+            this.hand++;
+          } else if (candidate.referenced) {
+            candidate.referenced = false;
+            this.hand++;
+          } else {
+            this.unlink(candidate);
+            this.release(candidate);
+            this.evictions.increment();
+          }
+        }
+        if (this.freeCount < needed) {
+          return null;
+        }
+        int[] blocks = new int[needed];
+        for (int i = 0; i < needed; i++) {
+          blocks[i] = this.freeBlocks[--this.freeCount];
+        }
+        Entry entry = new Entry(photoId, version, size, blocks);
+        entry.pins = 1;
+        return entry;
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    void publish(Entry entry) {
+      this.lock.lock();
+      try {
+        Entry previous = this.entries.get(entry.photoId);
+        if (previous != null) {
+          this.unlink(previous);
+          if (previous.pins == 0) {
+            this.release(previous);
+          }
+        }
+        this.entries.put(entry.photoId, entry);
+        this.ring.add(entry);
+        this.storedBytes += entry.size;
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    void abandon(Entry entry) {
+      this.lock.lock();
+      try {
+        entry.pins = 0;
+        this.release(entry);
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    void invalidate(long photoId) {
+      this.lock.lock();
+      try {
+        Entry entry = this.entries.get(photoId);
+        if (entry != null) {
+          this.unlink(entry);
+          if (entry.pins == 0) {
+            this.release(entry);
+          }
+        }
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    void unpin(Entry entry) {
+      this.lock.lock();
+      try {
+        entry.pins--;
+        if (entry.pins == 0 && entry.unlinked) {
+          this.release(entry);
+        }
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    /*
+     * Removes a published entry from the index; its blocks stay in use
+     * until it is released.
+     */
+    private void unlink(Entry entry) {
+      this.entries.remove(entry.photoId);
+      int index = this.ring.indexOf(entry);
+      Entry last = this.ring.remove(this.ring.size() - 1);
+      if (last != entry) {
+        this.ring.set(index, last);
+      }
+      this.storedBytes -= entry.size;
+      entry.unlinked = true;
+    }
+
+    private void release(Entry entry) {
+      for (int block : entry.blocks) {
+        this.freeBlocks[this.freeCount++] = block;
+      }
+    }
+  }
+
+  /**
+   * A photo stored in the blocks of one segment. Guarded by the segment
+   * lock, except for the reference mark.
+   */
+  private static final class Entry {
+
+    final long photoId;
+    final String version;
+    final long size;
+    final int[] blocks;
+    int pins;
+    boolean unlinked;
+    volatile boolean referenced;
+
+    Entry(long photoId, String version, long size, int[] blocks) {
+      this.photoId = photoId;
+      this.version = version;
+      this.size = size;
+      this.blocks = blocks;
+    }
+  }
+
+  /**
+   * A pinned cached photo. Its blocks stay valid until it is closed.
+   */
+  public static final class Handle implements AutoCloseable {
+
+    private final Segment segment;
+    private final Entry entry;
+    private boolean closed;
+
+    private Handle(Segment segment, Entry entry) {
+      this.segment = segment;
+      this.entry = entry;
+    }
+
+    /**
+     *
+     * @return the length of the photo.
+     */
+    public long size() {
+      return this.entry.size;
+    }
+
+    /**
+     * Writes count bytes from offset start straight from the slab.
+     *
+     * @param out
+     * @param start
+     * @param count
+     * @return the number of bytes written.
+     * @throws IOException
+     */
+    public long writeTo(WritableByteChannel out, long start, long count) throws IOException {
+      if (start < 0 || count < 0 || start + count > this.entry.size) {
+        throw new IllegalArgumentException("Range " + start + "+" + count + " outside of " + this.entry.size + " bytes");
+      }
+      int blockSize = this.segment.blockSize;
+      long position = start;
+      long end = start + count;
+      while (position < end) {
+        int i = (int) (position / blockSize);
+        int offset = (int) (position - (long) i * blockSize);
+        ByteBuffer block = this.segment.block(this.entry, i);
+        block.position(offset);
+        block.limit((int) Math.min(block.limit(), offset + end - position));
+        while (block.hasRemaining()) {
+          position += out.write(block);
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public void close() {
+      if (!this.closed) {
+        this.closed = true;
+        this.segment.unpin(this.entry);
+      }
+    }
+  }
+
+  /**
+   * Point-in-time counters of an {@link OffHeapPhotoCache}.
+   */
+  public static class Stats {
+
+    @JsonProperty
+    public final long hits;
+
+    @JsonProperty
+    public final long misses;
+
+    @JsonProperty
+    public final long evictions;
+
+    /**
+     * Photos not cached because they were too large or every block was
+     * pinned.
+     */
+    @JsonProperty
+    public final long rejections;
+
+    @JsonProperty
+    public final int entries;
+
+    /**
+     * The total length of the cached photos.
+     */
+    @JsonProperty
+    public final long bytes;
+
+    /**
+     * The size of the blocks in use, i.e. bytes plus the unused tail of each
+     * photo's last block.
+     */
+    @JsonProperty
+    public final long usedBytes;
+
+    @JsonProperty
+    public final long capacityBytes;
+
+    @JsonProperty
+    public final int segments;
+
+    @JsonProperty
+    public final int blockSize;
+
+    Stats(long hits, long misses, long evictions, long rejections, int entries, long bytes, long usedBytes,
+            long capacityBytes, int segments, int blockSize) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.rejections = rejections;
+      this.entries = entries;
+      this.bytes = bytes;
+      this.usedBytes = usedBytes;
+      this.capacityBytes = capacityBytes;
+      this.segments = segments;
+      this.blockSize = blockSize;
+    }
+
+    /**
+     *
+     * @return hits over lookups, 0 before the first lookup.
+     */
+    @JsonProperty
+    public double getHitRate() {
+      long lookups = hits + misses;
+      return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     *
+     * @return the share of the slabs in use, between 0 and 1.
+     */
+    @JsonProperty
+    public double getOccupancy() {
+      return capacityBytes == 0 ? 0 : (double) usedBytes / capacityBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{" + "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions //
+              + ", rejections=" + rejections + ", entries=" + entries + ", bytes=" + bytes //
+              + ", usedBytes=" + usedBytes + ", capacityBytes=" + capacityBytes + '}';
+    }
+
+  }
+
+}
@@ -0,0 +1,157 @@
+package used_furniture.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+/**
+ * Storage for photo bytes outside of Postgres, addressed by the hex SHA-256
+ * of the content. Identical content is stored once, so two uploads of the
+ * same photo share a blob; products.photo and products.photo_sized keep only
+ * the hash (content_hash) and length (byte_size), with a null photo column.
+ *
+ * Rows whose photo column is not null are still served from the database,
+ * so the store can be introduced, and rows moved, gradually.
+ *
+ * @author rmarq
+ */
+public interface PhotoBlobStore {
+
+  /**
+   * Reads the stream to its end and stores it, unless a blob with the same
+   * content already exists. Either way the blob counts as used now, see
+   * {@link #deleteIfIdle}.
+   *
+   * @param in
+   * @return the hash and length of the content.
+   * @throws IOException
+   */
+  Blob put(InputStream in) throws IOException;
+
+  /**
+   *
+   * @param bytes
+   * @return the hash and length of the content.
+   * @throws IOException
+   */
+  Blob put(byte[] bytes) throws IOException;
+
+  /**
+   *
+   * @param hash
+   * @return the content of the blob.
+   * @throws java.nio.file.NoSuchFileException if there is no such blob.
+   * @throws IOException
+   */
+  InputStream open(String hash) throws IOException;
+
+  /**
+   *
+   * @param hash
+   * @return the content of the blob.
+   * @throws java.nio.file.NoSuchFileException if there is no such blob.
+   * @throws IOException
+   */
+  byte[] read(String hash) throws IOException;
+
+  /**
+   *
+   * @param hash
+   * @return
+   */
+  boolean exists(String hash);
+
+  /**
+   * Removes a blob. Callers must make sure no row references it any more.
+   *
+   * @param hash
+   * @return false if there was no such blob.
+   * @throws IOException
+   */
+  boolean delete(String hash) throws IOException;
+
+  /**
+   * Removes a blob unless a put stored or reused it after idleSince. A row
+   * referencing the blob is only inserted after its put, so a blob found
+   * unreferenced can be deleted safely once it was idle for longer than any
+   * transaction that stores photos takes.
+   *
+   * @param hash
+   * @param idleSince
+   * @return true if the blob was removed, false if there was no such blob or
+   * it was used after idleSince.
+   * @throws IOException
+   */
+  boolean deleteIfIdle(String hash, Instant idleSince) throws IOException;
+
+  /**
+   * Lists the blobs no put stored or reused after idleSince, so blobs whose
+   * rows were replaced, removed or rolled back can be found and deleted. The
+   * stream must be closed.
+   *
+   * @param idleSince
+   * @return the hashes of the idle blobs.
+   * @throws IOException
+   */
+  Stream<String> listIdle(Instant idleSince) throws IOException;
+
+  /**
+   * The photo bytes of a row: the photo column when set, otherwise the blob
+   * named by its content hash.
+   *
+   * @param store null if no blob store is configured.
+   * @param inline the photo column.
+   * @param contentHash the content_hash column.
+   * @return
+   */
+  static byte[] bytesOf(PhotoBlobStore store, byte[] inline, String contentHash) {
+    if (inline != null) {
+      return inline;
+    }
+    try {
+      return requireStore(store, contentHash).read(contentHash);
+    } catch (IOException ex) {
+      throw new RuntimeException("Error reading photo blob " + contentHash, ex);
+    }
+  }
+
+  /**
+   *
+   * @param store null if no blob store is configured.
+   * @param contentHash
+   * @return the content of the blob of a row whose photo column is null.
+   * @throws IOException
+   */
+  static InputStream openBlob(PhotoBlobStore store, String contentHash) throws IOException {
+    return requireStore(store, contentHash).open(contentHash);
+  }
+
+  private static PhotoBlobStore requireStore(PhotoBlobStore store, String contentHash) {
+    if (store == null) {
+      throw new IllegalStateException("Photo " + contentHash
+              + " is kept in the blob store, but used-furniture.photo.blobStore.root is not set");
+    }
+    return store;
+  }
+
+  /**
+   * A stored blob.
+   */
+  class Blob {
+
+    public final String hash;
+    public final long size;
+
+    public Blob(String hash, long size) {
+      this.hash = hash;
+      this.size = size;
+    }
+
+    @Override
+    public String toString() {
+      return "Blob{" + "hash=" + hash + ", size=" + size + '}';
+    }
+  }
+
+}
@@ -0,0 +1,230 @@
+package used_furniture.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import used_furniture.core.products.model.Photo;
+
+/**
+ * In-process cache of resized photo bytes with a fixed byte budget.
+ *
+ * Entries are kept in least-recently-used order. When the budget is full, a
+ * new entry only replaces the LRU victims it needs room from if it has been
+ * requested more often than each of them (TinyLFU admission), so a burst of
+ * one-off sizes cannot flush the hot thumbnails. Request frequencies are
+ * tracked approximately in a count-min sketch of 4-bit counters that are
+ * halved periodically so old popularity fades.
+ *
+ * The cached photo bytes are shared between callers and must not be modified.
+ *
+ * @author rmarq
+ */
+public class PhotoCache {
+
+  private static final int SKETCH_DEPTH = 4;
+  private static final int MAX_FREQUENCY = 15;
+  private static final int[] SEEDS = {0x97cb3127, 0xb9c5d4a3, 0x5b8e6f1d, 0xe3f2a7c9};
+  /**
+   * Rough size of a grid thumbnail, used to size the frequency sketch.
+   */
+  private static final int TYPICAL_ENTRY_BYTES = 16 * 1024;
+
+  private final long maxBytes;
+  private final LinkedHashMap<PhotoSizeKey, Photo> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final int[] sketch;
+  private final int sketchWidth;
+  private final int sketchResetThreshold;
+  private int sketchAdditions;
+  private long currentBytes;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+
+  /**
+   *
+   * @param maxBytes the total size of the cached photos.
+   */
+  public PhotoCache(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+    long expectedEntries = Math.max(1024, maxBytes / TYPICAL_ENTRY_BYTES);
+    this.sketchWidth = Integer.highestOneBit((int) Math.min(expectedEntries, 1 << 24) * 2 - 1);
+    this.sketch = new int[SKETCH_DEPTH * this.sketchWidth];
+    this.sketchResetThreshold = 10 * this.sketchWidth;
+  }
+
+  /**
+   *
+   * @param key
+   * @return the cached photo, or null on a miss.
+   */
+  public Photo get(PhotoSizeKey key) {
+    Photo result;
+    synchronized (this) {
+      this.recordAccess(key);
+      result = this.entries.get(key);
+    }
+    if (result == null) {
+      this.misses.increment();
+    } else {
+      this.hits.increment();
+    }
+    return result;
+  }
+
+  /**
+   * Adds the photo unless the cache is full of entries that are requested
+   * more often.
+   *
+   * @param key
+   * @param photo
+   */
+  public void put(PhotoSizeKey key, Photo photo) {
+    byte[] bytes = photo.bytes;
+    if (bytes.length > this.maxBytes) {
+      this.rejections.increment();
+      return;
+    }
+    synchronized (this) {
+      Photo previous = this.entries.remove(key);
+      if (previous != null) {
+        this.currentBytes -= previous.bytes.length;
+      }
+      // Pick the whole victim set before touching the cache, so a rejected
+      // candidate never costs an entry.
+      int candidateFrequency = this.frequency(key);
+      long excess = this.currentBytes + bytes.length - this.maxBytes;
+      int victims = 0;
+      for (Map.Entry<PhotoSizeKey, Photo> victim : this.entries.entrySet()) {
+        if (excess <= 0) {
+          break;
+        }
+        if (previous == null && candidateFrequency <= this.frequency(victim.getKey())) {
+          this.rejections.increment();
+          return;
+        }
+        excess -= victim.getValue().bytes.length;
+        victims++;
+      }
+      Iterator<Map.Entry<PhotoSizeKey, Photo>> lru = this.entries.entrySet().iterator();
+      for (int i = 0; i < victims; i++) {
+        Map.Entry<PhotoSizeKey, Photo> victim = lru.next();
+        lru.remove();
+        this.currentBytes -= victim.getValue().bytes.length;
+        this.evictions.increment();
+      }
+      this.entries.put(key, photo);
+      this.currentBytes += bytes.length;
+    }
+  }
+
+  /**
+   * Drops every cached size of the photo.
+   *
+   * @param photoId
+   */
+  public synchronized void invalidatePhoto(long photoId) {
+    Iterator<Map.Entry<PhotoSizeKey, Photo>> it = this.entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<PhotoSizeKey, Photo> entry = it.next();
+      if (entry.getKey().photoId == photoId) {
+        it.remove();
+        this.currentBytes -= entry.getValue().bytes.length;
+      }
+    }
+  }
+
+  /**
+   *
+   * @return
+   */
+  public Stats getStats() {
+    synchronized (this) {
+      return new Stats(this.hits.sum(), this.misses.sum(), this.evictions.sum(), this.rejections.sum(),
+              this.entries.size(), this.currentBytes, this.maxBytes);
+    }
+  }
+
+  private void recordAccess(PhotoSizeKey key) {
+    int hash = key.hashCode();
+    for (int i = 0; i < SKETCH_DEPTH; i++) {
+      int index = this.sketchIndex(hash, i);
+      if (this.sketch[index] < MAX_FREQUENCY) {
+        this.sketch[index]++;
+      }
+    }
+    if (++this.sketchAdditions >= this.sketchResetThreshold) {
+      for (int i = 0; i < this.sketch.length; i++) {
+        this.sketch[i] >>>= 1;
+      }
+      this.sketchAdditions /= 2;
+    }
+  }
+
+  private int frequency(PhotoSizeKey key) {
+    int hash = key.hashCode();
+    int result = MAX_FREQUENCY;
+    for (int i = 0; i < SKETCH_DEPTH; i++) {
+      result = Math.min(result, this.sketch[this.sketchIndex(hash, i)]);
+    }
+    return result;
+  }
+
+  private int sketchIndex(int hash, int row) {
+    int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+    h ^= h >>> 16;
+    return row * this.sketchWidth + (h & (this.sketchWidth - 1));
+  }
+
+  /**
+   * Point-in-time counters of a {@link PhotoCache}.
+   */
+  public static class Stats {
+
+    @JsonProperty
+    public final long hits;
+
+    @JsonProperty
+    public final long misses;
+
+    @JsonProperty
+    public final long evictions;
+
+    @JsonProperty
+    public final long rejections;
+
+    @JsonProperty
+    public final int entries;
+
+    @JsonProperty
+    public final long bytes;
+
+    @JsonProperty
+    public final long maxBytes;
+
+    Stats(long hits, long misses, long evictions, long rejections, int entries, long bytes, long maxBytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.rejections = rejections;
+      this.entries = entries;
+      this.bytes = bytes;
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{" + "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions //
+              + ", rejections=" + rejections + ", entries=" + entries + ", bytes=" + bytes //
+              + ", maxBytes=" + maxBytes + '}';
+    }
+
+  }
+
+}
@@ -3,6 +3,14 @@ package used_furniture.core;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 /**
+ * A photo in a listing response. {@code src} is the URL the image bytes are
+ * served from, so it can be used directly as an img src. {@code width} and
+ * {@code height} are the dimensions of the image the URL serves, which may
+ * differ from the requested size; with fit sizing they are the photo fitted
+ * inside its size bucket, or the bucket itself when the photo dimensions are
+ * not known. Both are null for originals. {@code placeholder} is a BlurHash
+ * the front end can paint before the image arrives; null for photos not
+ * processed yet.
  *
  * @author rmarq
  */
@@ -14,9 +22,29 @@ public class PhotoDTO {
   @JsonProperty
   public String src;
 
+  @JsonProperty
+  public Integer width;
+
+  @JsonProperty
+  public Integer height;
+
+  @JsonProperty
+  public String placeholder;
+
   public PhotoDTO(long photoId, String src) {
+    this(photoId, src, null);
+  }
+
+  public PhotoDTO(long photoId, String src, PhotoSize size) {
+    this(photoId, src, size, null);
+  }
+
+  public PhotoDTO(long photoId, String src, PhotoSize size, String placeholder) {
     this.photoId = photoId;
     this.src = src;
+    this.width = size == null ? null : size.width;
+    this.height = size == null ? null : size.height;
+    this.placeholder = placeholder;
   }
   
   
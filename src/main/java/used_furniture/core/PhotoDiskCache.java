@@ -0,0 +1,370 @@
+package used_furniture.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Local disk cache of resized photos, so they can be sent to clients straight
+ * from a file (sendfile / FileChannel.transferTo) without going through
+ * Postgres or the Java heap.
+ *
+ * A file is named after the photo, its size bucket, the content hash of the
+ * original it was rendered from and its own content hash, e.g.
+ * {@code root/2a/42_400x400_9f86d08..._e3b0c44..._400x300.jpg}. A replaced
+ * original therefore never matches an old file; stale files simply age out.
+ * Everything an entry needs is in its name, so on startup the index is
+ * rebuilt from a directory scan and the cache comes back warm.
+ *
+ * Files are evicted least recently used first once their total size exceeds
+ * {@code maxBytes}. The access order survives restarts through the file
+ * modification time, which is refreshed at most every
+ * {@value #TOUCH_INTERVAL_MILLIS} ms per file.
+ *
+ * An entry handed out by {@link #get} or {@link #put} may still be opened
+ * after the call returns, e.g. by the connector's sendfile once the request
+ * handler is done. Evicted and invalidated files are therefore only dropped
+ * from the index at once and deleted {@value #DELETE_DELAY_MILLIS} ms later,
+ * unless the same file was cached again meanwhile. Files waiting for deletion
+ * are not counted against the budget.
+ *
+ * @author rmarq
+ */
+public class PhotoDiskCache {
+
+  private static final long TOUCH_INTERVAL_MILLIS = 10 * 60 * 1000;
+  private static final long DELETE_DELAY_MILLIS = 60 * 1000;
+  private static final String TMP_DIR = "tmp";
+  private static final Pattern FILE_NAME
+          = Pattern.compile("(\\d+)_(\\d+)x(\\d+)_([0-9a-f]{64})_([0-9a-f]{64})_(\\d+)x(\\d+)\\.jpg");
+
+  private final Path root;
+  private final Path tmp;
+  private final long maxBytes;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  /**
+   * Files dropped from the index, by the time they may be deleted, oldest
+   * first.
+   */
+  private final LinkedHashMap<Path, Long> pendingDeletes = new LinkedHashMap<>();
+  private long currentBytes;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Opens the cache and indexes the files already in it.
+   *
+   * @param root created if missing.
+   * @param maxBytes the total size of the cached files.
+   * @throws IOException
+   */
+  public PhotoDiskCache(Path root, long maxBytes) throws IOException {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+    }
+    this.root = root.toAbsolutePath();
+    this.tmp = this.root.resolve(TMP_DIR);
+    this.maxBytes = maxBytes;
+    Files.createDirectories(this.tmp);
+    this.load();
+  }
+
+  /**
+   *
+   * @param photoId
+   * @param bucket
+   * @param version content hash of the original photo.
+   * @return the cached file, or null on a miss.
+   */
+  public Entry get(long photoId, PhotoSize bucket, String version) {
+    Entry entry;
+    synchronized (this) {
+      entry = this.entries.get(key(photoId, bucket, version));
+    }
+    if (entry == null) {
+      this.misses.increment();
+      return null;
+    }
+    this.hits.increment();
+    entry.touch();
+    return entry;
+  }
+
+  /**
+   * Writes a resized photo to the cache, evicting the least recently used
+   * files to stay within the budget.
+   *
+   * @param photoId
+   * @param bucket
+   * @param version content hash of the original photo.
+   * @param bytes the resized photo.
+   * @return the new entry, or null if the photo is larger than the whole
+   * budget.
+   * @throws IOException
+   */
+  public Entry put(long photoId, PhotoSize bucket, String version, byte[] bytes) throws IOException {
+    if (bytes.length > this.maxBytes) {
+      return null;
+    }
+    PhotoSize served = PhotoResizer.readSize(bytes);
+    String contentHash = PhotoVersion.hash(bytes);
+    String fileName = photoId + "_" + bucket + "_" + version + "_" + contentHash + "_" + served + ".jpg";
+    Path target = this.root.resolve(shard(photoId)).resolve(fileName);
+    Files.createDirectories(target.getParent());
+    Path temp = Files.createTempFile(this.tmp, "derivative", ".tmp");
+    Entry entry = new Entry(target, bytes.length, contentHash, served, System.currentTimeMillis());
+    try {
+      Files.write(temp, bytes);
+      this.add(key(photoId, bucket, version), entry, temp);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    return entry;
+  }
+
+  /**
+   * Drops every cached size of the photo.
+   *
+   * @param photoId
+   */
+  public synchronized void invalidatePhoto(long photoId) {
+    String prefix = photoId + "_";
+    Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Entry> entry = it.next();
+      if (entry.getKey().startsWith(prefix)) {
+        it.remove();
+        this.currentBytes -= entry.getValue().size;
+        this.deleteLater(entry.getValue().path);
+      }
+    }
+    this.deleteDue();
+  }
+
+  /**
+   *
+   * @return
+   */
+  public synchronized Stats getStats() {
+    return new Stats(this.hits.sum(), this.misses.sum(), this.evictions.sum(), this.entries.size(),
+            this.currentBytes, this.maxBytes);
+  }
+
+  /**
+   * Indexes an entry, evicting the least recently used files to stay within
+   * the budget. Publishing the file and deleting files happen under the same
+   * lock, so a file cached again can never be deleted by its earlier
+   * eviction.
+   *
+   * @param temp the file to move to the entry's path first, or null if it is
+   * already there.
+   */
+  private synchronized void add(String key, Entry entry, Path temp) throws IOException {
+    if (temp != null) {
+      try {
+        Files.move(temp, entry.path, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException ex) {
+        Files.move(temp, entry.path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    // Cached again before its deletion was due.
+    this.pendingDeletes.remove(entry.path);
+    Entry previous = this.entries.remove(key);
+    if (previous != null) {
+      this.currentBytes -= previous.size;
+      if (!previous.path.equals(entry.path)) {
+        this.deleteLater(previous.path);
+      }
+    }
+    Iterator<Entry> lru = this.entries.values().iterator();
+    while (this.currentBytes + entry.size > this.maxBytes && lru.hasNext()) {
+      Entry victim = lru.next();
+      lru.remove();
+      this.currentBytes -= victim.size;
+      this.evictions.increment();
+      this.deleteLater(victim.path);
+    }
+    this.entries.put(key, entry);
+    this.currentBytes += entry.size;
+    this.deleteDue();
+  }
+
+  private void deleteLater(Path path) {
+    this.pendingDeletes.remove(path);
+    this.pendingDeletes.put(path, System.currentTimeMillis() + DELETE_DELAY_MILLIS);
+  }
+
+  /**
+   * Deletes the dropped files whose delay is over.
+   */
+  private void deleteDue() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<Path, Long>> it = this.pendingDeletes.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Path, Long> pending = it.next();
+      if (pending.getValue() > now) {
+        break;
+      }
+      it.remove();
+      deleteQuietly(pending.getKey());
+    }
+  }
+
+  /**
+   * Indexes the files left by a previous run, oldest access first, and
+   * removes leftovers of interrupted writes and files over the budget.
+   */
+  private void load() throws IOException {
+    try (Stream<Path> files = Files.list(this.tmp)) {
+      for (Path leftover : files.collect(Collectors.toList())) {
+        Files.deleteIfExists(leftover);
+      }
+    }
+    List<Entry> found = new ArrayList<>();
+    List<String> keys = new ArrayList<>();
+    try (Stream<Path> files = Files.walk(this.root, 2)) {
+      for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+        Matcher m = FILE_NAME.matcher(file.getFileName().toString());
+        if (file.startsWith(this.tmp) || !m.matches()) {
+          continue;
+        }
+        long photoId = Long.parseLong(m.group(1));
+        PhotoSize bucket = new PhotoSize(Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)));
+        PhotoSize served = new PhotoSize(Integer.parseInt(m.group(6)), Integer.parseInt(m.group(7)));
+        found.add(new Entry(file, Files.size(file), m.group(5), served, Files.getLastModifiedTime(file).toMillis()));
+        keys.add(key(photoId, bucket, m.group(4)));
+      }
+    }
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < found.size(); i++) {
+      order.add(i);
+    }
+    order.sort(Comparator.comparingLong(i -> found.get(i).touchedAt));
+    for (int i : order) {
+      this.add(keys.get(i), found.get(i), null);
+    }
+    this.evictions.reset();
+  }
+
+  private static String key(long photoId, PhotoSize bucket, String version) {
+    return photoId + "_" + bucket + "_" + version;
+  }
+
+  private static String shard(long photoId) {
+    return String.format("%02x", photoId & 0xff);
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException ex) {
+      // Not indexed any more; at worst the file is indexed again on restart.
+    }
+  }
+
+  /**
+   * A cached resized photo.
+   */
+  public static class Entry {
+
+    public final Path path;
+    public final long size;
+    /**
+     * Hex SHA-256 of the file, a strong validator for it.
+     */
+    public final String contentHash;
+    /**
+     * The dimensions of the image in the file.
+     */
+    public final PhotoSize served;
+    private volatile long touchedAt;
+
+    Entry(Path path, long size, String contentHash, PhotoSize served, long touchedAt) {
+      this.path = path;
+      this.size = size;
+      this.contentHash = contentHash;
+      this.served = served;
+      this.touchedAt = touchedAt;
+    }
+
+    /**
+     * Records the access in the file modification time, which orders the
+     * index when the cache is reopened.
+     */
+    private void touch() {
+      long now = System.currentTimeMillis();
+      if (now - this.touchedAt < TOUCH_INTERVAL_MILLIS) {
+        return;
+      }
+      this.touchedAt = now;
+      try {
+        Files.setLastModifiedTime(this.path, FileTime.fromMillis(now));
+      } catch (IOException ex) {
+        // Only the order after a restart is affected.
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Entry{" + "path=" + path + ", size=" + size + '}';
+    }
+  }
+
+  /**
+   * Point-in-time counters of a {@link PhotoDiskCache}.
+   */
+  public static class Stats {
+
+    @JsonProperty
+    public final long hits;
+
+    @JsonProperty
+    public final long misses;
+
+    @JsonProperty
+    public final long evictions;
+
+    @JsonProperty
+    public final int entries;
+
+    @JsonProperty
+    public final long bytes;
+
+    @JsonProperty
+    public final long maxBytes;
+
+    Stats(long hits, long misses, long evictions, int entries, long bytes, long maxBytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.entries = entries;
+      this.bytes = bytes;
+      this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{" + "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions //
+              + ", entries=" + entries + ", bytes=" + bytes + ", maxBytes=" + maxBytes + '}';
+    }
+
+  }
+
+}
@@ -0,0 +1,121 @@
+package used_furniture.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The cover thumbnails of a page of products composed into one JPEG sprite,
+ * with the offset of each thumbnail in it. Thumbnails are laid out left to
+ * right, top to bottom, in product order, one size bucket per cell; with fit
+ * sizing a thumbnail can be smaller than its cell.
+ *
+ * The sprite bytes are shared between callers and must not be modified.
+ *
+ * @author rmarq
+ */
+public class PhotoMosaic {
+
+  /**
+   * Hex SHA-256 over the bucket and the cover photo versions of the page.
+   * Changes whenever a cover changes, is added or removed, or moves.
+   */
+  public final String signature;
+  public final PhotoSize bucket;
+  public final int width;
+  public final int height;
+  public final List<Tile> tiles;
+  private final byte[] bytes;
+
+  /**
+   * The encoded thumbnail of each tile, by {@link #tileKey}, so a rebuild
+   * after one cover changed only fetches that cover.
+   */
+  final Map<String, byte[]> tileBytes;
+
+  PhotoMosaic(String signature, PhotoSize bucket, int width, int height, List<Tile> tiles, byte[] bytes,
+          Map<String, byte[]> tileBytes) {
+    this.signature = signature;
+    this.bucket = bucket;
+    this.width = width;
+    this.height = height;
+    this.tiles = Collections.unmodifiableList(tiles);
+    this.bytes = bytes;
+    this.tileBytes = tileBytes;
+  }
+
+  static String tileKey(PhotoVersion cover, PhotoSize bucket) {
+    return cover.photoId + ":" + cover.contentHash + ":" + bucket;
+  }
+
+  /**
+   *
+   * @return the sprite JPEG.
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   *
+   * @return the memory held by this mosaic, roughly.
+   */
+  long weight() {
+    long weight = this.bytes.length;
+    for (byte[] tile : this.tileBytes.values()) {
+      weight += tile.length;
+    }
+    return weight;
+  }
+
+  @Override
+  public String toString() {
+    return "PhotoMosaic{" + "signature=" + signature + ", bucket=" + bucket + ", width=" + width //
+            + ", height=" + height + ", tiles=" + tiles.size() + ", bytes=" + bytes.length + '}';
+  }
+
+  /**
+   * Where the cover of one product is in the sprite.
+   */
+  public static class Tile {
+
+    @JsonProperty
+    public final int productId;
+
+    @JsonProperty
+    public final long photoId;
+
+    @JsonProperty
+    public final int x;
+
+    @JsonProperty
+    public final int y;
+
+    @JsonProperty
+    public final int width;
+
+    @JsonProperty
+    public final int height;
+
+    @JsonProperty
+    public final String placeholder;
+
+    Tile(int productId, long photoId, int x, int y, int width, int height, String placeholder) {
+      this.productId = productId;
+      this.photoId = photoId;
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+      this.placeholder = placeholder;
+    }
+
+    @Override
+    public String toString() {
+      return "Tile{" + "productId=" + productId + ", photoId=" + photoId + ", x=" + x + ", y=" + y //
+              + ", width=" + width + ", height=" + height + '}';
+    }
+  }
+
+}
@@ -0,0 +1,296 @@
+package used_furniture.core;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import used_furniture.core.products.model.Photo;
+
+/**
+ * Builds and caches {@link PhotoMosaic} sprites of product pages, so a
+ * category grid loads one image instead of one per product.
+ *
+ * Mosaics are cached per page (e.g. a category, sort and cursor) with a byte
+ * budget, least recently used first out. Every request re-reads the cover
+ * versions of the page with one query; if they changed, the mosaic is rebuilt
+ * reusing the thumbnails of the covers that did not change, and only the new
+ * ones are read from products.photo_sized with one query (or resized on a
+ * miss, all at once on the photo resize pool).
+ *
+ * Only size buckets up to {@code maxTileEdge} per side can be tiled, which
+ * bounds the sprite raster. The sprite is composed on the resize pool too.
+ * Reading the tiles and composing share one deadline, so a saturated pool
+ * answers with a {@link ResizeCapacityException} within the pool's deadline,
+ * and concurrent requests for the same page share a single build.
+ *
+ * @author rmarq
+ */
+public class PhotoMosaicBuilder {
+
+  private static final Color BACKGROUND = Color.WHITE;
+
+  private final ProductsSource source;
+  private final PhotoResizeExecutor resizeExecutor;
+  private final int columns;
+  private final int maxTileEdge;
+  private final long maxBytes;
+  private final LinkedHashMap<String, PhotoMosaic> pages = new LinkedHashMap<>(16, 0.75f, true);
+  private final ConcurrentHashMap<String, CompletableFuture<PhotoMosaic>> buildsInFlight = new ConcurrentHashMap<>();
+  private long currentBytes;
+
+  /**
+   *
+   * @param source
+   * @param resizeExecutor the pool sprites are composed on.
+   * @param columns the number of cells per sprite row.
+   * @param maxTileEdge the largest bucket side that can be tiled.
+   * @param maxBytes the total size of the cached mosaics and their thumbnails.
+   */
+  public PhotoMosaicBuilder(ProductsSource source, PhotoResizeExecutor resizeExecutor, int columns, int maxTileEdge,
+          long maxBytes) {
+    if (columns < 1) {
+      throw new IllegalArgumentException("columns must be positive: " + columns);
+    }
+    if (maxTileEdge < 1) {
+      throw new IllegalArgumentException("maxTileEdge must be positive: " + maxTileEdge);
+    }
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+    }
+    this.source = source;
+    this.resizeExecutor = resizeExecutor;
+    this.columns = columns;
+    this.maxTileEdge = maxTileEdge;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   *
+   * @param width
+   * @param height
+   * @return whether the size bucket serving width x height is small enough to
+   * be tiled.
+   */
+  public boolean supports(int width, int height) {
+    if (width < 1 || height < 1) {
+      return false;
+    }
+    PhotoSize bucket = this.source.snapSize(width, height);
+    return bucket.width <= this.maxTileEdge && bucket.height <= this.maxTileEdge;
+  }
+
+  /**
+   *
+   * @param pageKey identifies the page, e.g. its filter, sort and cursor.
+   * @param productIds the products of the page, in display order.
+   * @param width
+   * @param height
+   * @return the mosaic of the cover photos of the products, in the size bucket
+   * serving width x height. Products without photos get no tile.
+   * @throws IllegalArgumentException unless {@link #supports} the size.
+   * @throws ResizeCapacityException if the resize pool is saturated.
+   */
+  public PhotoMosaic getMosaic(String pageKey, List<Integer> productIds, int width, int height) {
+    if (!this.supports(width, height)) {
+      throw new IllegalArgumentException("Mosaic tiles are at most " + this.maxTileEdge + " pixels per side: "
+              + width + "x" + height);
+    }
+    PhotoSize bucket = this.source.snapSize(width, height);
+    Map<Integer, PhotoVersion> covers = this.source.getCoverVersions(productIds);
+    List<Integer> tiled = new ArrayList<>();
+    for (Integer productId : productIds) {
+      if (covers.containsKey(productId) && !tiled.contains(productId)) {
+        tiled.add(productId);
+      }
+    }
+    String signature = signature(bucket, this.columns, tiled, covers);
+    String key = pageKey + "|" + bucket;
+
+    PhotoMosaic previous;
+    synchronized (this) {
+      previous = this.pages.get(key);
+    }
+    if (previous != null && previous.signature.equals(signature)) {
+      return previous;
+    }
+    Map<String, byte[]> reusable = previous != null ? previous.tileBytes : Collections.emptyMap();
+    return this.buildOnce(key, signature, bucket, tiled, covers, reusable);
+  }
+
+  /**
+   * Drops every cached mosaic.
+   */
+  public synchronized void clear() {
+    this.pages.clear();
+    this.currentBytes = 0;
+  }
+
+  /**
+   * Builds and caches the mosaic. Concurrent calls for the same page and
+   * signature share a single build: the first caller does the work and the
+   * others wait for its result.
+   */
+  private PhotoMosaic buildOnce(String key, String signature, PhotoSize bucket, List<Integer> productIds,
+          Map<Integer, PhotoVersion> covers, Map<String, byte[]> reusable) {
+    String flightKey = key + "|" + signature;
+    CompletableFuture<PhotoMosaic> flight = new CompletableFuture<>();
+    CompletableFuture<PhotoMosaic> existing = this.buildsInFlight.putIfAbsent(flightKey, flight);
+    if (existing != null) {
+      return this.await(existing, TimeUnit.MILLISECONDS.toNanos(this.resizeExecutor.getDeadlineMillis()));
+    }
+    try {
+      PhotoMosaic mosaic = this.build(signature, bucket, productIds, covers, reusable);
+      this.put(key, mosaic);
+      flight.complete(mosaic);
+      return mosaic;
+    } catch (RuntimeException ex) {
+      flight.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      this.buildsInFlight.remove(flightKey, flight);
+    }
+  }
+
+  /**
+   * Reads all thumbnails that cannot be reused in one batch, which resizes
+   * the missing ones in parallel on the resize pool, then composes the
+   * sprite on the pool within what is left of the same deadline.
+   */
+  private PhotoMosaic build(String signature, PhotoSize bucket, List<Integer> productIds,
+          Map<Integer, PhotoVersion> covers, Map<String, byte[]> reusable) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.resizeExecutor.getDeadlineMillis());
+    List<PhotoVersion> unread = new ArrayList<>();
+    for (Integer productId : productIds) {
+      PhotoVersion cover = covers.get(productId);
+      if (!reusable.containsKey(PhotoMosaic.tileKey(cover, bucket))) {
+        unread.add(cover);
+      }
+    }
+    Map<Long, Photo> read = unread.isEmpty()
+            ? Collections.emptyMap()
+            : this.source.getPhotos(unread, bucket.width, bucket.height);
+    Map<String, byte[]> tileBytes = new HashMap<>();
+    List<Integer> drawn = new ArrayList<>();
+    for (Integer productId : productIds) {
+      PhotoVersion cover = covers.get(productId);
+      String tileKey = PhotoMosaic.tileKey(cover, bucket);
+      byte[] bytes = reusable.get(tileKey);
+      if (bytes == null) {
+        Photo sized = read.get(cover.photoId);
+        if (sized == null) {
+          // Removed since the covers were read.
+          continue;
+        }
+        bytes = sized.getBytes();
+      }
+      tileBytes.put(tileKey, bytes);
+      drawn.add(productId);
+    }
+    Future<PhotoMosaic> composed = this.resizeExecutor.submit(
+            () -> this.compose(signature, bucket, drawn, covers, tileBytes));
+    try {
+      return this.await(composed, Math.max(0, deadline - System.nanoTime()));
+    } finally {
+      composed.cancel(false);
+    }
+  }
+
+  private PhotoMosaic compose(String signature, PhotoSize bucket, List<Integer> drawn,
+          Map<Integer, PhotoVersion> covers, Map<String, byte[]> tileBytes) {
+    int cells = Math.max(1, drawn.size());
+    int spriteColumns = Math.min(this.columns, cells);
+    int rows = (cells + spriteColumns - 1) / spriteColumns;
+    int spriteWidth = spriteColumns * bucket.width;
+    int spriteHeight = rows * bucket.height;
+    BufferedImage sprite = new BufferedImage(spriteWidth, spriteHeight, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2d = sprite.createGraphics();
+    List<PhotoMosaic.Tile> tiles = new ArrayList<>();
+    try {
+      g2d.setColor(BACKGROUND);
+      g2d.fillRect(0, 0, spriteWidth, spriteHeight);
+      for (int i = 0; i < drawn.size(); i++) {
+        PhotoVersion cover = covers.get(drawn.get(i));
+        BufferedImage thumbnail = PhotoResizer.readSubsampled(tileBytes.get(PhotoMosaic.tileKey(cover, bucket)),
+                bucket.width, bucket.height);
+        int w = Math.min(thumbnail.getWidth(), bucket.width);
+        int h = Math.min(thumbnail.getHeight(), bucket.height);
+        int x = (i % spriteColumns) * bucket.width;
+        int y = (i / spriteColumns) * bucket.height;
+        g2d.drawImage(thumbnail, x, y, x + w, y + h, 0, 0, w, h, null);
+        tiles.add(new PhotoMosaic.Tile(drawn.get(i), cover.photoId, x, y, w, h, cover.placeholder));
+      }
+      byte[] bytes = PhotoResizer.encodeJpeg(sprite, this.source.getSizePolicy().profileFor(bucket));
+      return new PhotoMosaic(signature, bucket, spriteWidth, spriteHeight, tiles, bytes, tileBytes);
+    } catch (IOException ex) {
+      throw new RuntimeException("Failed to compose mosaic of products " + drawn, ex);
+    } finally {
+      g2d.dispose();
+    }
+  }
+
+  /**
+   * Waits for a build for at most timeoutNanos.
+   */
+  private PhotoMosaic await(Future<PhotoMosaic> build, long timeoutNanos) {
+    try {
+      return build.get(timeoutNanos, TimeUnit.NANOSECONDS);
+    } catch (TimeoutException ex) {
+      throw new ResizeCapacityException("Mosaic did not finish within " + this.resizeExecutor.getDeadlineMillis()
+              + " ms", this.resizeExecutor.getRetryAfterSeconds(), ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while building a mosaic", ex);
+    } catch (ExecutionException ex) {
+      throw ex.getCause() instanceof RuntimeException
+              ? (RuntimeException) ex.getCause()
+              : new RuntimeException("Failed to build mosaic", ex.getCause());
+    }
+  }
+
+  private synchronized void put(String key, PhotoMosaic mosaic) {
+    PhotoMosaic replaced = this.pages.remove(key);
+    if (replaced != null) {
+      this.currentBytes -= replaced.weight();
+    }
+    long weight = mosaic.weight();
+    if (weight > this.maxBytes) {
+      return;
+    }
+    Iterator<PhotoMosaic> lru = this.pages.values().iterator();
+    while (this.currentBytes + weight > this.maxBytes && lru.hasNext()) {
+      this.currentBytes -= lru.next().weight();
+      lru.remove();
+    }
+    this.pages.put(key, mosaic);
+    this.currentBytes += weight;
+  }
+
+  /**
+   * Identifies the content and the layout of a sprite, so a changed cover or
+   * column count gives it a new immutable URL.
+   */
+  private static String signature(PhotoSize bucket, int columns, List<Integer> productIds,
+          Map<Integer, PhotoVersion> covers) {
+    StringBuilder text = new StringBuilder(bucket.toString()).append('|').append(columns);
+    for (Integer productId : productIds) {
+      PhotoVersion cover = covers.get(productId);
+      text.append('|').append(productId).append(':').append(cover.photoId).append(':').append(cover.contentHash);
+    }
+    return PhotoVersion.hash(text.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+}
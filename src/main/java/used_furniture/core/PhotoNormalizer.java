@@ -0,0 +1,342 @@
+package used_furniture.core;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.Node;
+
+/**
+ * Ingest stage for uploaded originals. Photos larger than {@code maxEdge} on
+ * their longest side are downsized, the EXIF orientation is applied to the
+ * pixels, and the result is re-encoded as a JPEG at {@code jpegQuality}
+ * without any metadata (EXIF, GPS, embedded thumbnails). The BlurHash
+ * placeholder is computed from the decoded pixels on the way.
+ *
+ * @author rmarq
+ */
+public class PhotoNormalizer {
+
+  private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+  private static final int APP1_MARKER = 0xE1;
+  private static final int ORIENTATION_TAG = 0x0112;
+
+  private final int maxEdge;
+  private final float jpegQuality;
+  private final JpegProfile profile;
+
+  /**
+   *
+   * @param maxEdge the longest side a stored original may have, in pixels.
+   * @param jpegQuality between 0 and 1.
+   */
+  public PhotoNormalizer(int maxEdge, float jpegQuality) {
+    if (maxEdge < 1) {
+      throw new IllegalArgumentException("maxEdge must be positive: " + maxEdge);
+    }
+    if (jpegQuality <= 0 || jpegQuality > 1) {
+      throw new IllegalArgumentException("jpegQuality must be in (0, 1]: " + jpegQuality);
+    }
+    this.maxEdge = maxEdge;
+    this.jpegQuality = jpegQuality;
+    this.profile = JpegProfile.ofQuality("ingest", jpegQuality);
+  }
+
+  /**
+   * Reads the upload to its end and returns the normalized photo. Only the
+   * decoded (subsampled) pixels and the re-encoded JPEG are held in memory.
+   *
+   * @param in
+   * @return
+   * @throws IOException
+   * @throws IllegalArgumentException if the upload is not a readable image.
+   */
+  public Normalized normalize(InputStream in) throws IOException {
+    CountingInputStream counting = new CountingInputStream(in);
+    BufferedImage decoded;
+    int originalWidth;
+    int originalHeight;
+    int orientation;
+    try (ImageInputStream iis = ImageIO.createImageInputStream(counting)) {
+      ImageReader reader = PhotoResizer.firstReader(iis);
+      try {
+        reader.setInput(iis, true, false);
+        originalWidth = reader.getWidth(0);
+        originalHeight = reader.getHeight(0);
+        PhotoSize target = this.targetSize(originalWidth, originalHeight);
+        int factor = PhotoResizer.subsamplingFactor(originalWidth, originalHeight, target.width, target.height);
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (factor > 1) {
+          param.setSourceSubsampling(factor, factor, 0, 0);
+        }
+        decoded = reader.read(0, param);
+        orientation = readOrientation(reader);
+        if (decoded.getWidth() != target.width || decoded.getHeight() != target.height
+                || decoded.getType() != BufferedImage.TYPE_INT_RGB) {
+          decoded = PhotoResizer.scale(decoded, target.width, target.height);
+        }
+      } finally {
+        reader.dispose();
+      }
+    }
+    // Count whatever the decoder left unread, e.g. data after the EOI marker.
+    counting.transferTo(OutputStream.nullOutputStream());
+
+    BufferedImage oriented = orient(decoded, orientation);
+    byte[] bytes = PhotoResizer.encodeJpeg(oriented, this.profile);
+    boolean swapped = orientation >= 5;
+    return new Normalized(bytes, oriented.getWidth(), oriented.getHeight(),
+            swapped ? originalHeight : originalWidth, swapped ? originalWidth : originalHeight,
+            counting.count, PhotoResizer.placeholder(oriented));
+  }
+
+  /**
+   *
+   * @param width
+   * @param height
+   * @return the size the pixels are scaled to, before orientation.
+   */
+  private PhotoSize targetSize(int width, int height) {
+    int longest = Math.max(width, height);
+    if (longest <= this.maxEdge) {
+      return new PhotoSize(width, height);
+    }
+    double scale = (double) this.maxEdge / longest;
+    return new PhotoSize(Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale)));
+  }
+
+  /**
+   *
+   * @param reader
+   * @return the EXIF orientation, or 1 if the metadata cannot be parsed (the
+   * JDK rejects some marker orders that decode fine).
+   */
+  private static int readOrientation(ImageReader reader) {
+    try {
+      return exifOrientation(reader.getImageMetadata(0));
+    } catch (IOException ex) {
+      return 1;
+    }
+  }
+
+  /**
+   *
+   * @param metadata
+   * @return the EXIF orientation (1 to 8), or 1 if there is none.
+   */
+  static int exifOrientation(IIOMetadata metadata) {
+    if (metadata == null) {
+      return 1;
+    }
+    for (String format : metadata.getMetadataFormatNames()) {
+      if (!JPEG_METADATA_FORMAT.equals(format)) {
+        continue;
+      }
+      Node root = metadata.getAsTree(format);
+      for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+        if (!"markerSequence".equals(child.getNodeName())) {
+          continue;
+        }
+        for (Node marker = child.getFirstChild(); marker != null; marker = marker.getNextSibling()) {
+          if ("unknown".equals(marker.getNodeName()) && marker instanceof IIOMetadataNode
+                  && String.valueOf(APP1_MARKER).equals(((IIOMetadataNode) marker).getAttribute("MarkerTag"))) {
+            Object data = ((IIOMetadataNode) marker).getUserObject();
+            if (data instanceof byte[]) {
+              int orientation = exifOrientation((byte[]) data);
+              if (orientation != 1) {
+                return orientation;
+              }
+            }
+          }
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Reads the orientation tag from IFD0 of an APP1 "Exif" segment.
+   *
+   * @param app1
+   * @return the orientation (1 to 8), or 1 if absent or malformed.
+   */
+  static int exifOrientation(byte[] app1) {
+    if (app1.length < 14 || app1[0] != 'E' || app1[1] != 'x' || app1[2] != 'i' || app1[3] != 'f') {
+      return 1;
+    }
+    int tiff = 6;
+    boolean littleEndian = app1[tiff] == 'I' && app1[tiff + 1] == 'I';
+    try {
+      int ifd = tiff + readInt(app1, tiff + 4, littleEndian);
+      int entries = readShort(app1, ifd, littleEndian);
+      for (int i = 0; i < entries; i++) {
+        int entry = ifd + 2 + i * 12;
+        if (readShort(app1, entry, littleEndian) == ORIENTATION_TAG) {
+          int orientation = readShort(app1, entry + 8, littleEndian);
+          return orientation >= 1 && orientation <= 8 ? orientation : 1;
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException ex) {
+      return 1;
+    }
+    return 1;
+  }
+
+  private static int readShort(byte[] b, int offset, boolean littleEndian) {
+    return littleEndian
+            ? (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8
+            : (b[offset] & 0xff) << 8 | (b[offset + 1] & 0xff);
+  }
+
+  private static int readInt(byte[] b, int offset, boolean littleEndian) {
+    return littleEndian
+            ? readShort(b, offset, true) | readShort(b, offset + 2, true) << 16
+            : readShort(b, offset, false) << 16 | readShort(b, offset + 2, false);
+  }
+
+  /**
+   * Applies an EXIF orientation to the pixels, so the photo displays upright
+   * once the metadata is gone.
+   *
+   * @param image
+   * @param orientation
+   * @return
+   */
+  static BufferedImage orient(BufferedImage image, int orientation) {
+    if (orientation <= 1 || orientation > 8) {
+      return image;
+    }
+    int w = image.getWidth();
+    int h = image.getHeight();
+    AffineTransform t = new AffineTransform();
+    switch (orientation) {
+      case 2:
+        t.translate(w, 0);
+        t.scale(-1, 1);
+        break;
+      case 3:
+        t.translate(w, h);
+        t.rotate(Math.PI);
+        break;
+      case 4:
+        t.translate(0, h);
+        t.scale(1, -1);
+        break;
+      case 5:
+        t.setTransform(0, 1, 1, 0, 0, 0);
+        break;
+      case 6:
+        t.translate(h, 0);
+        t.rotate(Math.PI / 2);
+        break;
+      case 7:
+        t.setTransform(0, -1, -1, 0, h, w);
+        break;
+      default:
+        t.translate(0, w);
+        t.rotate(-Math.PI / 2);
+        break;
+    }
+    boolean swapped = orientation >= 5;
+    BufferedImage result = new BufferedImage(swapped ? h : w, swapped ? w : h, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2d = result.createGraphics();
+    g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+    g2d.drawImage(image, t, null);
+    g2d.dispose();
+    return result;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public int getMaxEdge() {
+    return maxEdge;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public float getJpegQuality() {
+    return jpegQuality;
+  }
+
+  /**
+   * A normalized photo and what the upload looked like before.
+   */
+  public static class Normalized {
+
+    public final byte[] bytes;
+    public final int width;
+    public final int height;
+    public final int originalWidth;
+    public final int originalHeight;
+    public final long originalSize;
+    public final String placeholder;
+
+    Normalized(byte[] bytes, int width, int height, int originalWidth, int originalHeight, long originalSize,
+            String placeholder) {
+      this.bytes = bytes;
+      this.width = width;
+      this.height = height;
+      this.originalWidth = originalWidth;
+      this.originalHeight = originalHeight;
+      this.originalSize = originalSize;
+      this.placeholder = placeholder;
+    }
+  }
+
+  /**
+   *
+   */
+  private static class CountingInputStream extends FilterInputStream {
+
+    private long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public void close() {
+      // The caller owns the underlying stream.
+    }
+  }
+
+}
@@ -0,0 +1,92 @@
+package used_furniture.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dedicated, bounded worker pool for photo resizing. Resizing is CPU bound,
+ * so the pool has one thread per core and a fixed-size queue. When the queue
+ * is full, new work is refused with a {@link ResizeCapacityException} so the
+ * caller can answer 503 instead of piling up request threads.
+ *
+ * @author rmarq
+ */
+public class PhotoResizeExecutor {
+
+  private final ThreadPoolExecutor executor;
+  private final long deadlineMillis;
+  private final int retryAfterSeconds;
+
+  /**
+   *
+   * @param threads
+   * @param queueLimit the number of resizes that may wait for a thread.
+   * @param deadlineMillis how long a request waits for its resizes.
+   * @param retryAfterSeconds the delay suggested to clients when saturated.
+   */
+  public PhotoResizeExecutor(int threads, int queueLimit, long deadlineMillis, int retryAfterSeconds) {
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory = r -> {
+      Thread thread = new Thread(r, "photo-resize-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueLimit), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+    this.deadlineMillis = deadlineMillis;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /**
+   *
+   * @return an executor with one thread per core and default limits.
+   */
+  public static PhotoResizeExecutor withDefaults() {
+    return new PhotoResizeExecutor(Runtime.getRuntime().availableProcessors(), 64, 10_000, 2);
+  }
+
+  /**
+   *
+   * @param <T>
+   * @param task
+   * @return
+   * @throws ResizeCapacityException if the queue is full.
+   */
+  public <T> Future<T> submit(Callable<T> task) {
+    try {
+      return this.executor.submit(task);
+    } catch (RejectedExecutionException ex) {
+      throw new ResizeCapacityException("Photo resize queue is full", this.retryAfterSeconds, ex);
+    }
+  }
+
+  /**
+   *
+   * @return the time a request may wait for its resizes.
+   */
+  public long getDeadlineMillis() {
+    return deadlineMillis;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  /**
+   *
+   */
+  public void shutdown() {
+    this.executor.shutdownNow();
+  }
+
+}
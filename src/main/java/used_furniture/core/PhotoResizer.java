@@ -6,7 +6,27 @@ import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 /**
  *
@@ -14,6 +34,21 @@ import javax.imageio.ImageIO;
  */
 public class PhotoResizer {
 
+  /**
+   * How many times larger than the target the subsampled source must stay.
+   */
+  private static final int SUBSAMPLING_MARGIN = 2;
+
+  /**
+   * Placeholders are computed on a thumbnail of this many pixels on its
+   * longest side, with 4x3 (or 3x4) BlurHash components: about 30 characters.
+   */
+  private static final int PLACEHOLDER_EDGE = 32;
+  private static final int PLACEHOLDER_COMPONENTS_LONG = 4;
+  private static final int PLACEHOLDER_COMPONENTS_SHORT = 3;
+
+  private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
   /**
    *
    * @param bytes
@@ -22,40 +57,284 @@ public class PhotoResizer {
    * @return
    */
   byte[] resizePhoto(byte[] bytes, Integer width, Integer height) {
+    PhotoSize size = new PhotoSize(width, height);
+    return this.resizePyramid(bytes, Arrays.asList(size), PhotoSizePolicy.exact()).get(size);
+  }
+
+  /**
+   * Decodes the original once and renders every size from it. Sizes are
+   * rendered from the largest to the smallest, each one downscaled from the
+   * previous level when that level covers it, so every step is a small
+   * reduction of an already small image.
+   *
+   * @param bytes the original photo.
+   * @param sizes
+   * @param policy decides the rendered dimensions of each size.
+   * @return the encoded JPEG of every size, largest first.
+   */
+  Map<PhotoSize, byte[]> resizePyramid(byte[] bytes, List<PhotoSize> sizes, PhotoSizePolicy policy) {
+    PhotoSize source = readSize(bytes);
+    Map<PhotoSize, PhotoSize> rendered = new LinkedHashMap<>();
+    sizes.stream()
+            .distinct()
+            .map(size -> Map.entry(size, policy.renderedSize(size, source.width, source.height)))
+            .sorted(Comparator.comparingLong((Map.Entry<PhotoSize, PhotoSize> level)
+                    -> (long) level.getValue().width * level.getValue().height).reversed())
+            .forEach(level -> rendered.put(level.getKey(), level.getValue()));
+    Map<PhotoSize, byte[]> result = new LinkedHashMap<>();
+    if (rendered.isEmpty()) {
+      return result;
+    }
+    int maxWidth = rendered.values().stream().mapToInt(size -> size.width).max().getAsInt();
+    int maxHeight = rendered.values().stream().mapToInt(size -> size.height).max().getAsInt();
 
     try {
-      /* Decode input image */
-      ByteArrayInputStream in = new ByteArrayInputStream(bytes);
-      BufferedImage originalImage = ImageIO.read(in);
+      /* Decode input image once, skipping pixels no level can show */
+      BufferedImage originalImage = readSubsampled(bytes, maxWidth, maxHeight);
 
-      if (originalImage == null) {
-        throw new IllegalArgumentException("Invalid image data");
+      BufferedImage previous = null;
+      for (Map.Entry<PhotoSize, PhotoSize> level : rendered.entrySet()) {
+        PhotoSize target = level.getValue();
+        BufferedImage sourceImage = previous != null
+                && previous.getWidth() >= target.width && previous.getHeight() >= target.height
+                ? previous : originalImage;
+        BufferedImage resizedImage = scale(sourceImage, target.width, target.height);
+
+        /* Encode back to byte[] */
+        result.put(level.getKey(), encodeJpeg(resizedImage, policy.profileFor(level.getKey())));
+        previous = resizedImage;
       }
+      return result;
 
-      /* Create resized image */
-      BufferedImage resizedImage = new BufferedImage(
-              width,
-              height,
-              BufferedImage.TYPE_INT_RGB
-      );
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to resize image", e);
+    }
+  }
 
-      Graphics2D g2d = resizedImage.createGraphics();
-      g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-      g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-      g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+  /**
+   * Renders one size of the photo and encodes it with each profile,
+   * {@code runs} times, to compare output size against encode time.
+   *
+   * @param bytes the original photo.
+   * @param size
+   * @param policy decides the rendered dimensions of the size.
+   * @param profiles
+   * @param runs
+   * @return one row per profile, in the given order.
+   */
+  List<JpegProfileReport> compareProfiles(byte[] bytes, PhotoSize size, PhotoSizePolicy policy,
+          List<JpegProfile> profiles, int runs) {
+    PhotoSize source = readSize(bytes);
+    PhotoSize target = policy.renderedSize(size, source.width, source.height);
+    try {
+      BufferedImage image = scale(readSubsampled(bytes, target.width, target.height), target.width, target.height);
+      int defaultBytes = encodeJpeg(image, JpegProfile.DEFAULT).length;
+      List<JpegProfileReport> result = new ArrayList<>();
+      for (JpegProfile profile : profiles) {
+        long[] nanos = new long[Math.max(1, runs)];
+        int length = 0;
+        for (int i = 0; i < nanos.length; i++) {
+          long start = System.nanoTime();
+          length = encodeJpeg(image, profile).length;
+          nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        double medianMillis = nanos[nanos.length / 2] / 1_000_000.0;
+        result.add(new JpegProfileReport(profile, target.width, target.height, length, medianMillis, defaultBytes));
+      }
+      return result;
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to encode image", e);
+    }
+  }
 
-      g2d.drawImage(originalImage, 0, 0, width, height, null);
-      g2d.dispose();
+  /**
+   * Computes the BlurHash placeholder of a photo from a subsampled decode.
+   *
+   * @param bytes the original photo.
+   * @return
+   */
+  public static String placeholder(byte[] bytes) {
+    PhotoSize source = readSize(bytes);
+    PhotoSize target = placeholderSize(source.width, source.height);
+    try {
+      return placeholder(readSubsampled(bytes, target.width, target.height));
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to read image", e);
+    }
+  }
 
-      /* Encode back to byte[] */
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      ImageIO.write(resizedImage, "jpg", out);
+  /**
+   * Computes the BlurHash placeholder of a decoded photo. The photo is first
+   * shrunk to {@value #PLACEHOLDER_EDGE} pixels on its longest side, and gets
+   * more components along that side.
+   *
+   * @param image
+   * @return
+   */
+  static String placeholder(BufferedImage image) {
+    PhotoSize target = placeholderSize(image.getWidth(), image.getHeight());
+    BufferedImage small = image.getWidth() == target.width && image.getHeight() == target.height
+            ? image : scale(image, target.width, target.height);
+    boolean landscape = target.width >= target.height;
+    return BlurHash.encode(small, landscape ? PLACEHOLDER_COMPONENTS_LONG : PLACEHOLDER_COMPONENTS_SHORT,
+            landscape ? PLACEHOLDER_COMPONENTS_SHORT : PLACEHOLDER_COMPONENTS_LONG);
+  }
 
-      return out.toByteArray();
+  private static PhotoSize placeholderSize(int width, int height) {
+    double scale = Math.min(1.0, (double) PLACEHOLDER_EDGE / Math.max(width, height));
+    return new PhotoSize(Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale)));
+  }
 
+  /**
+   * Reads the dimensions from the image header without decoding pixels.
+   *
+   * @param bytes
+   * @return
+   */
+  public static PhotoSize readSize(byte[] bytes) {
+    try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+      ImageReader reader = firstReader(in);
+      try {
+        reader.setInput(in, true, true);
+        return new PhotoSize(reader.getWidth(0), reader.getHeight(0));
+      } finally {
+        reader.dispose();
+      }
     } catch (IOException e) {
-      throw new RuntimeException("Failed to resize image", e);
+      throw new RuntimeException("Failed to read image size", e);
     }
   }
 
+  /**
+   *
+   * @param in
+   * @return
+   */
+  static ImageReader firstReader(ImageInputStream in) {
+    Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+    if (readers == null || !readers.hasNext()) {
+      throw new IllegalArgumentException("Invalid image data");
+    }
+    return readers.next();
+  }
+
+  /**
+   *
+   * @param source
+   * @param width
+   * @param height
+   * @return
+   */
+  static BufferedImage scale(BufferedImage source, int width, int height) {
+    BufferedImage resizedImage = new BufferedImage(
+            width,
+            height,
+            BufferedImage.TYPE_INT_RGB
+    );
+
+    Graphics2D g2d = resizedImage.createGraphics();
+    g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+    g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+    g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+    g2d.drawImage(source, 0, 0, width, height, null);
+    g2d.dispose();
+    return resizedImage;
+  }
+
+  /**
+   * Encodes the image with the settings of the profile, without any metadata
+   * besides the JFIF header.
+   *
+   * @param image
+   * @param profile
+   * @return
+   * @throws IOException
+   */
+  static byte[] encodeJpeg(BufferedImage image, JpegProfile profile) throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+      writer.setOutput(ios);
+      JPEGImageWriteParam param = (JPEGImageWriteParam) writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(profile.quality);
+      if (profile.progressive) {
+        param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+      } else {
+        param.setOptimizeHuffmanTables(profile.optimizeHuffman);
+      }
+      IIOMetadata metadata = null;
+      if (!profile.chromaSubsampled) {
+        metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        disableChromaSubsampling(metadata);
+      }
+      writer.write(null, new IIOImage(image, null, metadata), param);
+    } finally {
+      writer.dispose();
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Sets every component to 1x1 sampling, i.e. 4:4:4.
+   *
+   * @param metadata
+   * @throws IOException
+   */
+  private static void disableChromaSubsampling(IIOMetadata metadata) throws IOException {
+    Node root = metadata.getAsTree(JPEG_METADATA_FORMAT);
+    NodeList components = ((Element) root).getElementsByTagName("componentSpec");
+    for (int i = 0; i < components.getLength(); i++) {
+      Element component = (Element) components.item(i);
+      component.setAttribute("HsamplingFactor", "1");
+      component.setAttribute("VsamplingFactor", "1");
+    }
+    metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+  }
+
+  /**
+   * Decodes the image with source subsampling, so a large original is never
+   * fully materialized. The decoded image is kept at least
+   * {@link #SUBSAMPLING_MARGIN} times the target size, which leaves enough
+   * detail for the final bicubic pass.
+   *
+   * @param bytes
+   * @param width
+   * @param height
+   * @return
+   * @throws IOException
+   */
+  static BufferedImage readSubsampled(byte[] bytes, int width, int height) throws IOException {
+    try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+      ImageReader reader = firstReader(in);
+      try {
+        reader.setInput(in, true, true);
+        int factor = subsamplingFactor(reader.getWidth(0), reader.getHeight(0), width, height);
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (factor > 1) {
+          param.setSourceSubsampling(factor, factor, 0, 0);
+        }
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   *
+   * @param sourceWidth
+   * @param sourceHeight
+   * @param width
+   * @param height
+   * @return the largest subsampling factor that keeps both decoded dimensions
+   * at least SUBSAMPLING_MARGIN times the target.
+   */
+  static int subsamplingFactor(int sourceWidth, int sourceHeight, int width, int height) {
+    int factor = Math.min(sourceWidth / (SUBSAMPLING_MARGIN * width), sourceHeight / (SUBSAMPLING_MARGIN * height));
+    return Math.max(1, factor);
+  }
+
 }
@@ -0,0 +1,100 @@
+package used_furniture.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Width and height of a resized photo, written as "WIDTHxHEIGHT" in
+ * configuration, e.g. "200x200".
+ *
+ * @author rmarq
+ */
+public class PhotoSize {
+
+  @JsonProperty
+  public final int width;
+
+  @JsonProperty
+  public final int height;
+
+  /**
+   *
+   * @param width
+   * @param height
+   */
+  public PhotoSize(int width, int height) {
+    if (width < 1 || height < 1) {
+      throw new IllegalArgumentException("width and height must both be positive: " + width + "x" + height);
+    }
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   *
+   * @param text e.g. "200x200".
+   * @return
+   */
+  public static PhotoSize parse(String text) {
+    String[] parts = text.trim().toLowerCase().split("x");
+    if (parts.length != 2) {
+      throw new IllegalArgumentException("Invalid photo size, expected WIDTHxHEIGHT: " + text);
+    }
+    return new PhotoSize(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+  }
+
+  /**
+   *
+   * @param text a comma separated list, e.g. "200x200, 400x400".
+   * @return
+   */
+  public static List<PhotoSize> parseList(String text) {
+    List<PhotoSize> result = new ArrayList<>();
+    for (String item : text.split(",")) {
+      if (!item.isBlank()) {
+        result.add(parse(item));
+      }
+    }
+    return result;
+  }
+
+  /**
+   *
+   * @param photoId
+   * @param sourceHash content hash of the original photo.
+   * @return
+   */
+  public PhotoSizeKey forPhoto(long photoId, String sourceHash) {
+    return new PhotoSizeKey(photoId, sourceHash, this.width, this.height);
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = 7;
+    hash = 31 * hash + this.width;
+    hash = 31 * hash + this.height;
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null) {
+      return false;
+    }
+    if (getClass() != obj.getClass()) {
+      return false;
+    }
+    final PhotoSize other = (PhotoSize) obj;
+    return this.width == other.width && this.height == other.height;
+  }
+
+  @Override
+  public String toString() {
+    return width + "x" + height;
+  }
+
+}
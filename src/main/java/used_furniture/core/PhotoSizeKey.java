@@ -0,0 +1,68 @@
+package used_furniture.core;
+
+import java.util.Objects;
+
+/**
+ * Identifies one resized variant of a photo, i.e. a row of
+ * products.photo_sized. The variant is keyed by the content hash of the
+ * original it was rendered from, so a resize of an original that was replaced
+ * meanwhile can never be served for the new one.
+ *
+ * @author rmarq
+ */
+public class PhotoSizeKey {
+
+  public final long photoId;
+  public final String sourceHash;
+  public final int width;
+  public final int height;
+
+  /**
+   *
+   * @param photoId
+   * @param sourceHash content hash of the original photo.
+   * @param width
+   * @param height
+   */
+  public PhotoSizeKey(long photoId, String sourceHash, int width, int height) {
+    this.photoId = photoId;
+    this.sourceHash = Objects.requireNonNull(sourceHash, "sourceHash");
+    this.width = width;
+    this.height = height;
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = 7;
+    hash = 31 * hash + Long.hashCode(this.photoId);
+    hash = 31 * hash + this.sourceHash.hashCode();
+    hash = 31 * hash + this.width;
+    hash = 31 * hash + this.height;
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null) {
+      return false;
+    }
+    if (getClass() != obj.getClass()) {
+      return false;
+    }
+    final PhotoSizeKey other = (PhotoSizeKey) obj;
+    return this.photoId == other.photoId //
+            && this.width == other.width //
+            && this.height == other.height //
+            && this.sourceHash.equals(other.sourceHash);
+  }
+
+  @Override
+  public String toString() {
+    return "PhotoSizeKey{" + "photoId=" + photoId + ", sourceHash=" + sourceHash + ", width=" + width //
+            + ", height=" + height + '}';
+  }
+
+}
@@ -0,0 +1,159 @@
+package used_furniture.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sizes resized photos are actually rendered in. Requested sizes are
+ * snapped to the smallest allowed bucket that covers them, so layout tweaks
+ * on the front end reuse the same rows of products.photo_sized instead of
+ * creating new ones.
+ *
+ * With {@code fit}, a bucket is a bounding box: the photo is scaled to fit
+ * inside it keeping its aspect ratio, and is never enlarged. Without it the
+ * photo is stretched to the exact bucket size.
+ *
+ * A policy without buckets serves every requested size as is, up to
+ * {@link #MAX_EDGE} pixels per side.
+ *
+ * Each bucket may have its own JPEG encoder profile, e.g. a lower quality for
+ * grid thumbnails than for the detail view.
+ *
+ * @author rmarq
+ */
+public class PhotoSizePolicy {
+
+  /**
+   * Largest side served by a policy without buckets.
+   */
+  public static final int MAX_EDGE = 2048;
+
+  private final List<PhotoSize> buckets;
+  private final boolean fit;
+  private final Map<PhotoSize, JpegProfile> profiles;
+  private final JpegProfile defaultProfile;
+
+  /**
+   *
+   * @param buckets the allowed sizes.
+   * @param fit
+   */
+  public PhotoSizePolicy(List<PhotoSize> buckets, boolean fit) {
+    this(buckets, fit, Collections.emptyMap(), JpegProfile.DEFAULT);
+  }
+
+  /**
+   *
+   * @param buckets the allowed sizes.
+   * @param fit
+   * @param profiles the encoder profile of each bucket.
+   * @param defaultProfile the encoder profile of sizes without one.
+   */
+  public PhotoSizePolicy(List<PhotoSize> buckets, boolean fit, Map<PhotoSize, JpegProfile> profiles,
+          JpegProfile defaultProfile) {
+    List<PhotoSize> sorted = new ArrayList<>(buckets);
+    sorted.sort(Comparator.comparingLong((PhotoSize size) -> (long) size.width * size.height)
+            .thenComparingInt(size -> size.width));
+    this.buckets = Collections.unmodifiableList(sorted);
+    this.fit = fit;
+    this.profiles = Collections.unmodifiableMap(new HashMap<>(profiles));
+    this.defaultProfile = defaultProfile;
+  }
+
+  /**
+   *
+   * @return a policy that serves every requested size as is, stretched, up to
+   * {@link #MAX_EDGE} per side.
+   */
+  public static PhotoSizePolicy exact() {
+    return new PhotoSizePolicy(Collections.emptyList(), false);
+  }
+
+  /**
+   *
+   * @param width
+   * @param height
+   * @return the smallest bucket at least as large as the requested size in
+   * both dimensions, or the largest bucket if none is. Without buckets, the
+   * requested size clamped to {@link #MAX_EDGE}.
+   */
+  public PhotoSize snap(int width, int height) {
+    if (this.buckets.isEmpty()) {
+      return new PhotoSize(Math.min(width, MAX_EDGE), Math.min(height, MAX_EDGE));
+    }
+    for (PhotoSize bucket : this.buckets) {
+      if (bucket.width >= width && bucket.height >= height) {
+        return bucket;
+      }
+    }
+    return this.buckets.get(this.buckets.size() - 1);
+  }
+
+  /**
+   *
+   * @param bucket
+   * @param sourceWidth
+   * @param sourceHeight
+   * @return the dimensions a source of sourceWidth x sourceHeight is rendered
+   * in for the bucket.
+   */
+  public PhotoSize renderedSize(PhotoSize bucket, int sourceWidth, int sourceHeight) {
+    if (!this.fit) {
+      return bucket;
+    }
+    double scale = Math.min(1.0, Math.min((double) bucket.width / sourceWidth, (double) bucket.height / sourceHeight));
+    return new PhotoSize(Math.max(1, (int) Math.round(sourceWidth * scale)),
+            Math.max(1, (int) Math.round(sourceHeight * scale)));
+  }
+
+  /**
+   *
+   * @param size
+   * @return the encoder profile the size is written with.
+   */
+  public JpegProfile profileFor(PhotoSize size) {
+    return this.profiles.getOrDefault(size, this.defaultProfile);
+  }
+
+  /**
+   *
+   * @return the default profile followed by every distinct bucket profile.
+   */
+  public List<JpegProfile> getProfiles() {
+    Map<String, JpegProfile> byName = new LinkedHashMap<>();
+    byName.put(this.defaultProfile.name, this.defaultProfile);
+    for (PhotoSize bucket : this.buckets) {
+      JpegProfile profile = this.profileFor(bucket);
+      byName.putIfAbsent(profile.name, profile);
+    }
+    return new ArrayList<>(byName.values());
+  }
+
+  /**
+   *
+   * @return the allowed sizes, smallest first. Empty if any size is allowed.
+   */
+  public List<PhotoSize> getBuckets() {
+    return buckets;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public boolean isFit() {
+    return fit;
+  }
+
+  @Override
+  public String toString() {
+    return "PhotoSizePolicy{" + "buckets=" + buckets + ", fit=" + fit + ", profiles=" + profiles //
+            + ", defaultProfile=" + defaultProfile + '}';
+  }
+
+}
@@ -0,0 +1,31 @@
+package used_furniture.core;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an uploaded photo is larger than the upload limit, either as
+ * announced by the client or while its bytes are being read.
+ *
+ * @author rmarq
+ */
+public class PhotoTooLargeException extends IOException {
+
+  private final long maxBytes;
+
+  /**
+   *
+   * @param maxBytes the upload limit.
+   */
+  public PhotoTooLargeException(long maxBytes) {
+    super("Photo is larger than the upload limit of " + maxBytes + " bytes");
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   *
+   * @return the upload limit.
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+}
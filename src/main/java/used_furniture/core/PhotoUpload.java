@@ -0,0 +1,96 @@
+package used_furniture.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The bytes of a photo being uploaded, read once as a stream so they can be
+ * sent to the database without holding the whole photo on the heap.
+ *
+ * @author rmarq
+ */
+public interface PhotoUpload {
+
+  /**
+   *
+   * @return the photo bytes. Called once; the caller closes the stream.
+   * @throws IOException
+   */
+  InputStream openStream() throws IOException;
+
+  /**
+   *
+   * @return the length in bytes, or -1 if unknown.
+   */
+  long getSize();
+
+  /**
+   *
+   * @param bytes
+   * @return an upload of bytes already in memory.
+   */
+  static PhotoUpload of(byte[] bytes) {
+    return new PhotoUpload() {
+      @Override
+      public InputStream openStream() {
+        return new ByteArrayInputStream(bytes);
+      }
+
+      @Override
+      public long getSize() {
+        return bytes.length;
+      }
+    };
+  }
+
+  /**
+   * Wraps an upload stream of unknown length, e.g. a chunked request body, so
+   * that reading more than maxBytes fails instead of filling the database.
+   *
+   * @param in
+   * @param maxBytes
+   * @return a stream that throws {@link PhotoTooLargeException} once more
+   * than maxBytes were read from in.
+   */
+  static InputStream limit(InputStream in, long maxBytes) {
+    return new FilterInputStream(in) {
+      private long remaining = maxBytes;
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          this.consume(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        // Read one byte past the limit, so a body of exactly maxBytes passes.
+        int read = super.read(b, off, (int) Math.min(len, this.remaining + 1));
+        if (read > 0) {
+          this.consume(read);
+        }
+        return read;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        long skipped = super.skip(Math.min(n, this.remaining + 1));
+        this.consume(skipped);
+        return skipped;
+      }
+
+      private void consume(long count) throws PhotoTooLargeException {
+        this.remaining -= count;
+        if (this.remaining < 0) {
+          throw new PhotoTooLargeException(maxBytes);
+        }
+      }
+    };
+  }
+
+}
@@ -0,0 +1,85 @@
+package used_furniture.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Identifies the current bytes of a photo. The content hash changes whenever
+ * the photo is replaced, so URLs that carry it can be cached forever.
+ *
+ * @author rmarq
+ */
+public class PhotoVersion {
+
+  public final long photoId;
+  public final String contentHash;
+  public final long size;
+  public final String placeholder;
+  public final Integer width;
+  public final Integer height;
+
+  /**
+   *
+   * @param photoId
+   * @param contentHash hex SHA-256 of the photo bytes.
+   * @param size the length of the photo in bytes.
+   */
+  public PhotoVersion(long photoId, String contentHash, long size) {
+    this(photoId, contentHash, size, null);
+  }
+
+  /**
+   *
+   * @param photoId
+   * @param contentHash hex SHA-256 of the photo bytes.
+   * @param size the length of the photo in bytes.
+   * @param placeholder the BlurHash of the photo, null if not computed yet.
+   */
+  public PhotoVersion(long photoId, String contentHash, long size, String placeholder) {
+    this(photoId, contentHash, size, placeholder, null, null);
+  }
+
+  /**
+   *
+   * @param photoId
+   * @param contentHash hex SHA-256 of the photo bytes.
+   * @param size the length of the photo in bytes.
+   * @param placeholder the BlurHash of the photo, null if not computed yet.
+   * @param width the pixel width of the photo, null if unknown.
+   * @param height the pixel height of the photo, null if unknown.
+   */
+  public PhotoVersion(long photoId, String contentHash, long size, String placeholder, Integer width,
+          Integer height) {
+    this.photoId = photoId;
+    this.contentHash = contentHash;
+    this.size = size;
+    this.placeholder = placeholder;
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   *
+   * @param bytes
+   * @return the hex SHA-256 of bytes, as stored in products.photo.content_hash.
+   */
+  public static String hash(byte[] bytes) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new RuntimeException("SHA-256 is not available", ex);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "PhotoVersion{" + "photoId=" + photoId + ", contentHash=" + contentHash + ", size=" + size + ", placeholder=" + placeholder //
+            + ", width=" + width + ", height=" + height + '}';
+  }
+
+}
@@ -0,0 +1,85 @@
+package used_furniture.core;
+
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Position of the last row of a catalog page. Clients only see the opaque
+ * token produced by {@link #encode()} and pass it back to fetch the next page.
+ *
+ * @author rmarq
+ */
+public class ProductCursor {
+
+  private static final String SEPARATOR = "|";
+
+  /**
+   * Sort value of products without a date_recieved, see
+   * ProductsSource#RECEIVED_KEY. Older than any real receipt date.
+   */
+  static final OffsetDateTime NO_DATE_RECEIVED = OffsetDateTime.of(1, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+  public final ProductSort sort;
+  public final OffsetDateTime dateReceived;
+  public final double price;
+  public final int productId;
+
+  /**
+   *
+   * @param sort
+   * @param dateReceived the sort value when sort is RECEIVED, never null:
+   * {@link #NO_DATE_RECEIVED} stands for a missing date.
+   * @param price the sort value when sort is PRICE.
+   * @param productId
+   */
+  ProductCursor(ProductSort sort, OffsetDateTime dateReceived, double price, int productId) {
+    this.sort = sort;
+    this.dateReceived = dateReceived;
+    this.price = price;
+    this.productId = productId;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public String encode() {
+    String value = this.sort == ProductSort.RECEIVED //
+            ? this.dateReceived.toString() //
+            : String.valueOf(this.price);
+    String text = this.sort.name() + SEPARATOR + value + SEPARATOR + this.productId;
+    return Base64.getUrlEncoder().withoutPadding() //
+            .encodeToString(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   *
+   * @param token
+   * @param sort the sort order of the requested page. A token issued for a
+   * different sort order is rejected.
+   * @return
+   */
+  public static ProductCursor decode(String token, ProductSort sort) {
+    try {
+      String text = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+      String[] parts = text.split("\\" + SEPARATOR);
+      if (parts.length != 3 || !sort.name().equals(parts[0])) {
+        throw new InvalidCursorException("Invalid cursor for sort " + sort + ": " + token);
+      }
+      int productId = Integer.parseInt(parts[2]);
+      if (sort == ProductSort.RECEIVED) {
+        return new ProductCursor(sort, OffsetDateTime.parse(parts[1]), 0, productId);
+      } else {
+        return new ProductCursor(sort, null, Double.parseDouble(parts[1]), productId);
+      }
+    } catch (InvalidCursorException ex) {
+      throw ex;
+    } catch (IllegalArgumentException | DateTimeParseException ex) {
+      throw new InvalidCursorException("Invalid cursor: " + token, ex);
+    }
+  }
+
+}
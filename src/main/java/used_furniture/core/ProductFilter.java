@@ -0,0 +1,48 @@
+package used_furniture.core;
+
+import used_furniture.core.products.model.Product;
+
+/**
+ * Predicates for a filtered catalog read. Full listings are filtered in
+ * memory against the catalog snapshot; pages push every predicate that is set
+ * down to the database as a bind parameter, see
+ * {@link ProductsSource#getProductsPage}.
+ *
+ * @author rmarq
+ */
+public class ProductFilter {
+
+  public final Integer category;
+  public final boolean siteVisibleOnly;
+  public final boolean availableOnly;
+
+  /**
+   *
+   * @param category the category id, or null for every category.
+   * @param siteVisibleOnly
+   * @param availableOnly
+   */
+  public ProductFilter(Integer category, boolean siteVisibleOnly, boolean availableOnly) {
+    this.category = category;
+    this.siteVisibleOnly = siteVisibleOnly;
+    this.availableOnly = availableOnly;
+  }
+
+  /**
+   *
+   * @param product
+   * @return whether the product passes every predicate that is set.
+   */
+  public boolean matches(Product product) {
+    return (this.category == null || product.category == this.category)
+            && (!this.siteVisibleOnly || product.siteVisible)
+            && (!this.availableOnly || product.available);
+  }
+
+  @Override
+  public String toString() {
+    return "ProductFilter{" + "category=" + category + ", siteVisibleOnly=" + siteVisibleOnly //
+            + ", availableOnly=" + availableOnly + '}';
+  }
+
+}
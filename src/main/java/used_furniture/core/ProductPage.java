@@ -0,0 +1,30 @@
+package used_furniture.core;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
+import used_furniture.core.products.model.Product;
+
+/**
+ * One page of the catalog. {@code nextCursor} is null on the last page.
+ *
+ * @author rmarq
+ */
+public class ProductPage {
+
+  @JsonProperty
+  public final List<Product> products;
+
+  @JsonProperty
+  public final String nextCursor;
+
+  /**
+   *
+   * @param products
+   * @param nextCursor
+   */
+  public ProductPage(List<Product> products, String nextCursor) {
+    this.products = products;
+    this.nextCursor = nextCursor;
+  }
+
+}
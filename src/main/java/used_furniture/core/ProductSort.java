@@ -0,0 +1,22 @@
+package used_furniture.core;
+
+/**
+ * Stable sort orders supported by keyset pagination of the catalog. Each
+ * order ends with product_id so that rows sharing the same sort value still
+ * have a total order.
+ *
+ * @author rmarq
+ */
+public enum ProductSort {
+
+  /**
+   * Newest first: date_recieved desc, product_id desc. Undated products come
+   * last.
+   */
+  RECEIVED,
+  /**
+   * Cheapest first: price asc, product_id asc.
+   */
+  PRICE;
+
+}
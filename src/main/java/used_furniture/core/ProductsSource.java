@@ -4,18 +4,36 @@ import used_furniture.core.products.model.Photo;
 import used_furniture.core.products.model.Product;
 import common.db.DbConnection;
 import common.db.RmDbUtils;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
 
 /**
@@ -25,84 +43,792 @@ import org.springframework.stereotype.Component;
 @Component
 public class ProductsSource {
 
+  private static final ZoneId UTC = ZoneId.of("UTC");
+
+  /**
+   * Budget of the resized photo cache when none is configured.
+   */
+  private static final long DEFAULT_PHOTO_CACHE_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * Photos are listed in the order set with ProductsStore.setPhotoOrder; the
+   * first one is the cover. Photos never ordered follow in upload order.
+   */
+  static final String PHOTO_ORDER = "sort_order nulls last, photo_id";
+
+  /**
+   * RECEIVED sort key without NULLs, matching the index of migration 012.
+   * Undated products sort last, see ProductCursor#NO_DATE_RECEIVED.
+   */
+  private static final String RECEIVED_KEY = "coalesce(p.date_recieved, '0001-01-01 00:00:00+00')";
+
   private final DbConnection conn;
+  private final PhotoCache photoCache;
+  private final PhotoResizeExecutor resizeExecutor;
+  private final PhotoSizePolicy sizePolicy;
+  private final PhotoBlobStore blobStore;
+  private final ConcurrentHashMap<PhotoSizeKey, CompletableFuture<Optional<Photo>>> resizesInFlight
+          = new ConcurrentHashMap<>();
+  /**
+   * Resized photos served since the last flushServedSizes.
+   */
+  private final Set<PhotoSizeKey> servedSizes = ConcurrentHashMap.newKeySet();
+  private final AtomicLong catalogVersion = new AtomicLong();
+  private final AtomicReference<CatalogSnapshot> catalog = new AtomicReference<>();
 
-  public ProductsSource(@Autowired @Qualifier("used_furniture.conn") DbConnection conn) {
+  public ProductsSource(DbConnection conn) {
+    this(conn, new PhotoCache(DEFAULT_PHOTO_CACHE_BYTES), PhotoResizeExecutor.withDefaults(),
+            PhotoSizePolicy.exact(), null);
+  }
+
+  /**
+   *
+   * @param conn
+   * @param photoCache cache of resized photo bytes.
+   * @param resizeExecutor the pool that creates missing photo sizes.
+   * @param sizePolicy the sizes requested photo sizes are snapped to.
+   * @param blobStore where the bytes of photos with a null photo column are
+   * kept. May be null if every photo is kept in the database.
+   */
+  @Autowired
+  public ProductsSource(@Qualifier("used_furniture.conn") DbConnection conn, PhotoCache photoCache,
+          PhotoResizeExecutor resizeExecutor, PhotoSizePolicy sizePolicy, @Nullable PhotoBlobStore blobStore) {
     this.conn = conn;
+    this.photoCache = photoCache;
+    this.resizeExecutor = resizeExecutor;
+    this.sizePolicy = sizePolicy;
+    this.blobStore = blobStore;
   }
 
   /**
+   * Serves the catalog from the current in-memory snapshot. The database is
+   * only queried on the first read and whenever {@link ProductsStore} writes
+   * to products.product.
    *
    * @param siteVisibleOnly
    * @return
    */
   public List<Product> getProducts(boolean siteVisibleOnly) {
-    String a =siteVisibleOnly ? "where site_visible = true":"";
-    
+    return this.getCatalog().getProducts(siteVisibleOnly);
+  }
+
+  /**
+   *
+   * @return the current catalog snapshot, loading it on first access.
+   */
+  public CatalogSnapshot getCatalog() {
+    CatalogSnapshot current = this.catalog.get();
+    if (current == null) {
+      current = this.refreshCatalog();
+    }
+    return current;
+  }
+
+  /**
+   * Reloads the catalog and publishes it as a new snapshot. Readers keep
+   * using the previous snapshot until the swap. A load that started before a
+   * more recent one never replaces it, so the published version only grows.
+   *
+   * @return the snapshot visible after the refresh.
+   */
+  public CatalogSnapshot refreshCatalog() {
+    long version = this.catalogVersion.incrementAndGet();
+    CatalogSnapshot loaded = new CatalogSnapshot(version, this.queryProducts());
+    return this.catalog.accumulateAndGet(loaded, (current, next) -> {
+      return current == null || next.getVersion() > current.getVersion() ? next : current;
+    });
+  }
+
+  /**
+   * Filters the current in-memory snapshot, like {@link #getProducts(boolean)},
+   * so the busiest listing never queries the database.
+   *
+   * @param filter
+   * @return the matching products, by product id.
+   */
+  public List<Product> getProducts(ProductFilter filter) {
+    return this.getCatalog().getProducts(filter);
+  }
+
+  /**
+   * Reads one page of the filtered catalog using keyset pagination: the page
+   * starts right after the row identified by the cursor, so the cost of a page
+   * does not depend on how deep into the catalog it is.
+   *
+   * @param filter
+   * @param sort
+   * @param cursor the token returned with the previous page, or null for the
+   * first page.
+   * @param pageSize
+   * @return
+   */
+  public ProductPage getProductsPage(ProductFilter filter, ProductSort sort, String cursor, int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+    }
+    ProductCursor after = cursor == null || cursor.isBlank() ? null : ProductCursor.decode(cursor, sort);
+    StringBuilder query = this.filteredProductsQuery(filter);
+    if (sort == ProductSort.RECEIVED) {
+      if (after != null) {
+        query.append("and (").append(RECEIVED_KEY).append(", p.product_id) < (?, ?)\n");
+      }
+      query.append("order by ").append(RECEIVED_KEY).append(" desc, p.product_id desc\n");
+    } else {
+      if (after != null) {
+        query.append("and (p.price, p.product_id) > (?, ?)\n");
+      }
+      query.append("order by p.price asc, p.product_id asc\n");
+    }
+    query.append("limit ?");
+
+    List<Product> products = new ArrayList<>();
+    ProductCursor last = null;
+    boolean hasMore = false;
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(query.toString())) {
+      int index = this.bindFilter(ps, filter);
+      if (after != null) {
+        if (sort == ProductSort.RECEIVED) {
+          ps.setObject(index++, after.dateReceived);
+        } else {
+          ps.setDouble(index++, after.price);
+        }
+        ps.setInt(index++, after.productId);
+      }
+      // One extra row tells whether there is a next page.
+      ps.setInt(index, pageSize + 1);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          if (products.size() == pageSize) {
+            hasMore = true;
+            break;
+          }
+          Product product = this.mapProduct(rs);
+          products.add(product);
+          OffsetDateTime received = rs.getObject("date_recieved", OffsetDateTime.class);
+          last = new ProductCursor(sort, received == null ? ProductCursor.NO_DATE_RECEIVED : received,
+                  product.price, product.product_id);
+        }
+      }
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error loading products page for " + filter, ex);
+    }
+    String nextCursor = hasMore ? last.encode() : null;
+    return new ProductPage(products, nextCursor);
+  }
+
+  /**
+   *
+   * @param filter
+   * @return the products query restricted by the filter, ready for further
+   * "and" predicates.
+   */
+  private StringBuilder filteredProductsQuery(ProductFilter filter) {
+    StringBuilder query = new StringBuilder()
+            .append("select \n")
+            .append("p.*, c.name as category_name \n")
+            .append("from products.product p\n")
+            .append("join products.category c\n")
+            .append("on c.category_id = p.category\n")
+            .append("where true\n");
+    if (filter.category != null) {
+      query.append("and p.category = ?\n");
+    }
+    if (filter.siteVisibleOnly) {
+      query.append("and p.site_visible = true\n");
+    }
+    if (filter.availableOnly) {
+      query.append("and p.available = true\n");
+    }
+    return query;
+  }
+
+  /**
+   *
+   * @param ps
+   * @param filter
+   * @return the index of the next parameter to bind.
+   * @throws SQLException
+   */
+  private int bindFilter(PreparedStatement ps, ProductFilter filter) throws SQLException {
+    int index = 1;
+    if (filter.category != null) {
+      ps.setInt(index++, filter.category);
+    }
+    return index;
+  }
+
+  /**
+   *
+   * @return
+   */
+  private List<Product> queryProducts() {
     String query = "select \n"
             + "p.*, c.name as category_name \n"
             + "from products.product p\n"
             + "join products.category c\n"
-            + "on c.category_id = p.category\n"
-            + a 
-            ;
-    ZoneId zoneId = ZoneId.of("UTC");
+            + "on c.category_id = p.category\n";
     List<Product> result = this.conn.executeQuery(query, rs -> {
-      int productId = RmDbUtils.intValue(rs, "product_id");
-      String name = RmDbUtils.stringValue(rs, "name");
-      String description = RmDbUtils.stringValue(rs, "description");
-      boolean available = RmDbUtils.booleanValue(rs, "available");
-      ZonedDateTime dateReceived = RmDbUtils.getZonedDateTime(rs, "date_recieved", zoneId);
-      ZonedDateTime dateSold = RmDbUtils.getZonedDateTime(rs, "date_sold", zoneId);
-      int category = RmDbUtils.intValue(rs, "category");
-      String categoryName = RmDbUtils.stringValue(rs, "category_name");
-      double length = RmDbUtils.doubleValue(rs, "length");
-      double height = RmDbUtils.doubleValue(rs, "height");
-      double depth = RmDbUtils.doubleValue(rs, "depth");
-      double price = RmDbUtils.doubleValue(rs, "price");
-      boolean siteVisible = RmDbUtils.booleanValue(rs, "site_visible"); 
-      boolean socialMediaVisible = RmDbUtils.booleanValue(rs, "social_media_visible"); 
-      return new Product(productId, name, description, available, 
-              dateReceived, dateSold, 
-              category, categoryName, 
-              length, depth, height, price, 
-              siteVisible, socialMediaVisible
-      );
+      return this.mapProduct(rs);
     });
     return result;
   }
 
   /**
    *
-   * @param productIds
+   * @param rs
    * @return
    */
-  public Map<Integer, List<Photo>> getPhotos(List<Integer> productIds) {
+  private Product mapProduct(ResultSet rs) {
+    int productId = RmDbUtils.intValue(rs, "product_id");
+    String name = RmDbUtils.stringValue(rs, "name");
+    String description = RmDbUtils.stringValue(rs, "description");
+    boolean available = RmDbUtils.booleanValue(rs, "available");
+    ZonedDateTime dateReceived = RmDbUtils.getZonedDateTime(rs, "date_recieved", UTC);
+    ZonedDateTime dateSold = RmDbUtils.getZonedDateTime(rs, "date_sold", UTC);
+    int category = RmDbUtils.intValue(rs, "category");
+    String categoryName = RmDbUtils.stringValue(rs, "category_name");
+    double length = RmDbUtils.doubleValue(rs, "length");
+    double height = RmDbUtils.doubleValue(rs, "height");
+    double depth = RmDbUtils.doubleValue(rs, "depth");
+    double price = RmDbUtils.doubleValue(rs, "price");
+    boolean siteVisible = RmDbUtils.booleanValue(rs, "site_visible");
+    boolean socialMediaVisible = RmDbUtils.booleanValue(rs, "social_media_visible");
+    return new Product(productId, name, description, available,
+            dateReceived, dateSold,
+            category, categoryName,
+            length, depth, height, price,
+            siteVisible, socialMediaVisible
+    );
+  }
+
+  /**
+   * The current version of the cover photo of each product, i.e. the first
+   * one in photo order, in a single query.
+   *
+   * @param productIds
+   * @return cover photos by product id. Products without photos are absent.
+   */
+  public Map<Integer, PhotoVersion> getCoverVersions(List<Integer> productIds) {
+    Map<Integer, PhotoVersion> result = new HashMap<>();
+    if (productIds.isEmpty()) {
+      return result;
+    }
+    String query = "select distinct on (product_id) \n"
+            + "  photo_id, product_id, content_hash, byte_size as size, placeholder, width, height \n"
+            + "from products.photo \n"
+            + "where product_id = any(?) \n"
+            + "order by product_id, " + PHOTO_ORDER;
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(query)) {
+      ps.setArray(1, c.createArrayOf("integer", productIds.toArray()));
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          result.put(rs.getInt("product_id"), this.mapPhotoVersion(rs));
+        }
+      }
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error loading cover photos for products " + productIds, ex);
+    }
+    return result;
+  }
+
+  /**
+   * Lists the ids of the photos of each product, without loading any image
+   * bytes.
+   *
+   * @param productIds
+   * @return photo ids by product id, cover photo first.
+   */
+  public Map<Integer, List<Long>> getPhotoIds(List<Integer> productIds) {
+    Map<Integer, List<Long>> result = new HashMap<>();
+    if (productIds.isEmpty()) {
+      return result;
+    }
+    String query = "select photo_id, product_id \n"
+            + "from products.photo \n"
+            + "where product_id = any(?) \n"
+            + "order by product_id, " + PHOTO_ORDER;
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(query)) {
+      ps.setArray(1, c.createArrayOf("integer", productIds.toArray()));
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          int productId = rs.getInt("product_id");
+          long photoId = rs.getLong("photo_id");
+          result.computeIfAbsent(productId, k -> new ArrayList<>()).add(photoId);
+        }
+      }
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error loading photo ids for products " + productIds, ex);
+    }
+    return result;
+  }
+
+  /**
+   * Lists the current version of the photos of each product, without loading
+   * any image bytes.
+   *
+   * @param productIds
+   * @return photo versions by product id, cover photo first.
+   */
+  public Map<Integer, List<PhotoVersion>> getPhotoVersions(List<Integer> productIds) {
+    Map<Integer, List<PhotoVersion>> result = new HashMap<>();
     if (productIds.isEmpty()) {
-      return new HashMap<>();
-    }
-    String productIdsText = productIds.stream().map(m -> String.valueOf(m)).collect(Collectors.joining(","));
-    String query = "select\n"
-            + " * \n"
-            + "from products.photo p\n"
-            + String.format("where p.product_id = any(array[%s])", productIdsText);
-    Map<Integer, List<Photo>> result = new HashMap<>();
-
-    this.conn.executeQuery(query, rs -> {
-      int productId = RmDbUtils.intValue(rs, "product_id");
-      long photoId = RmDbUtils.intValue(rs, "photo_id");
-      byte[] bytes;
+      return result;
+    }
+    String query = "select photo_id, product_id, content_hash, byte_size as size, placeholder, width, height \n"
+            + "from products.photo \n"
+            + "where product_id = any(?) \n"
+            + "order by product_id, " + PHOTO_ORDER;
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(query)) {
+      ps.setArray(1, c.createArrayOf("integer", productIds.toArray()));
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          int productId = rs.getInt("product_id");
+          result.computeIfAbsent(productId, k -> new ArrayList<>()).add(this.mapPhotoVersion(rs));
+        }
+      }
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error loading photo versions for products " + productIds, ex);
+    }
+    return result;
+  }
+
+  private PhotoVersion mapPhotoVersion(ResultSet rs) throws SQLException {
+    return new PhotoVersion(rs.getLong("photo_id"), rs.getString("content_hash"), rs.getLong("size"),
+            rs.getString("placeholder"), (Integer) rs.getObject("width"), (Integer) rs.getObject("height"));
+  }
+
+  /**
+   * Loads a single photo, resized to the size bucket that covers width x
+   * height, from the current version of its original. Callers that already
+   * read the version use {@link #getPhoto(PhotoVersion, int, int)}, which
+   * saves a query.
+   *
+   * @param photoId
+   * @param width null, together with height, for the original photo.
+   * @param height
+   * @return
+   */
+  public Optional<Photo> getPhoto(long photoId, Integer width, Integer height) {
+    if (width == null && height == null) {
+      return this.queryPhoto("select photo_id, product_id, content_hash, photo from products.photo where photo_id = ?",
+              photoId);
+    }
+    if (width == null || height == null || width < 1 || height < 1) {
+      throw new IllegalArgumentException("width and height must both be positive: " + width + "x" + height);
+    }
+    Optional<String> sourceHash = this.queryContentHash(photoId);
+    if (sourceHash.isEmpty()) {
+      return Optional.empty();
+    }
+    return this.getSizedPhoto(this.sizePolicy.snap(width, height).forPhoto(photoId, sourceHash.get()));
+  }
+
+  /**
+   * Loads a single photo, resized to the size bucket that covers width x
+   * height. The resized photo is served from the in-process cache, read from
+   * products.photo_sized, or created and stored there on first request. It is
+   * always rendered from the given version of the original.
+   *
+   * @param version
+   * @param width
+   * @param height
+   * @return empty if the photo was removed or replaced since version was
+   * read.
+   */
+  public Optional<Photo> getPhoto(PhotoVersion version, int width, int height) {
+    if (width < 1 || height < 1) {
+      throw new IllegalArgumentException("width and height must both be positive: " + width + "x" + height);
+    }
+    return this.getSizedPhoto(this.sizePolicy.snap(width, height).forPhoto(version.photoId, version.contentHash));
+  }
+
+  /**
+   * Loads the photos of a grid, resized to the size bucket that covers width
+   * x height. Cached photos are served from memory and the other stored ones
+   * are read with one query. The missing ones are resized in parallel on the
+   * resize pool, under a single deadline for the whole grid.
+   *
+   * @param versions
+   * @param width
+   * @param height
+   * @return the resized photos by photo id. Photos removed or replaced since
+   * their version was read are left out.
+   * @throws ResizeCapacityException if the pool is saturated or the deadline
+   * passes.
+   */
+  public Map<Long, Photo> getPhotos(List<PhotoVersion> versions, int width, int height) {
+    if (width < 1 || height < 1) {
+      throw new IllegalArgumentException("width and height must both be positive: " + width + "x" + height);
+    }
+    PhotoSize bucket = this.sizePolicy.snap(width, height);
+    Map<Long, Photo> result = new HashMap<>();
+    List<PhotoSizeKey> missing = new ArrayList<>();
+    for (PhotoVersion version : versions) {
+      PhotoSizeKey key = bucket.forPhoto(version.photoId, version.contentHash);
+      this.recordServed(key);
+      Photo cached = this.photoCache.get(key);
+      if (cached != null) {
+        result.put(key.photoId, cached);
+      } else if (!missing.contains(key)) {
+        missing.add(key);
+      }
+    }
+    Map<PhotoSizeKey, Photo> stored = this.querySizedPhotos(bucket, missing);
+    stored.forEach((key, photo) -> result.put(key.photoId, photo));
+    missing.removeAll(stored.keySet());
+    this.createResizedPhotos(missing).forEach((key, photo) -> result.put(key.photoId, photo));
+    return result;
+  }
+
+  /**
+   * Records that a resized photo was served from somewhere other than this
+   * source, e.g. a disk cache, so the sweep does not evict it as unused.
+   *
+   * @param key
+   */
+  public void recordServed(PhotoSizeKey key) {
+    this.servedSizes.add(key);
+  }
+
+  /**
+   * Loads a resized photo into the in-process cache like
+   * {@link #getPhoto(long, Integer, Integer)}, without recording it as
+   * served, e.g. to pre-warm the cache. A size nobody requests still ages out
+   * of products.photo_sized.
+   *
+   * @param photoId
+   * @param width
+   * @param height
+   * @return empty if the photo does not exist.
+   */
+  public Optional<Photo> loadPhoto(long photoId, int width, int height) {
+    if (width < 1 || height < 1) {
+      throw new IllegalArgumentException("width and height must both be positive: " + width + "x" + height);
+    }
+    Optional<String> sourceHash = this.queryContentHash(photoId);
+    if (sourceHash.isEmpty()) {
+      return Optional.empty();
+    }
+    return this.loadSizedPhoto(this.sizePolicy.snap(width, height).forPhoto(photoId, sourceHash.get()));
+  }
+
+  private Optional<Photo> getSizedPhoto(PhotoSizeKey key) {
+    this.recordServed(key);
+    return this.loadSizedPhoto(key);
+  }
+
+  private Optional<Photo> loadSizedPhoto(PhotoSizeKey key) {
+    Photo cached = this.photoCache.get(key);
+    if (cached != null) {
+      return Optional.of(cached);
+    }
+    Optional<Photo> sized = this.querySizedPhoto(key);
+    if (sized.isPresent()) {
+      return sized;
+    }
+    Map<PhotoSizeKey, Photo> created = this.createResizedPhotos(Arrays.asList(key));
+    return Optional.ofNullable(created.get(key));
+  }
+
+  /**
+   * Reads a resized photo from products.photo_sized and caches it.
+   *
+   * @param key
+   * @return
+   */
+  private Optional<Photo> querySizedPhoto(PhotoSizeKey key) {
+    Optional<Photo> sized = this.queryPhoto("select photo_id, product_id, content_hash, photo from products.photo_sized "
+            + "where photo_id = ? and source_hash = ? and width = " + key.width + " and height = " + key.height,
+            key.photoId, key.sourceHash);
+    sized.ifPresent(photo -> this.photoCache.put(key, photo));
+    return sized;
+  }
+
+  /**
+   * Reads resized photos of one size bucket from products.photo_sized with a
+   * single query and caches them.
+   *
+   * @param bucket
+   * @param keys keys in that bucket.
+   * @return the stored photos. Keys without a row are left out.
+   */
+  private Map<PhotoSizeKey, Photo> querySizedPhotos(PhotoSize bucket, List<PhotoSizeKey> keys) {
+    Map<PhotoSizeKey, Photo> result = new HashMap<>();
+    if (keys.isEmpty()) {
+      return result;
+    }
+    String query = "select s.photo_id, s.product_id, s.source_hash, s.content_hash, s.photo \n"
+            + "from products.photo_sized s \n"
+            + "join unnest(?::bigint[], ?::text[]) k(photo_id, source_hash) \n"
+            + "  on k.photo_id = s.photo_id and k.source_hash = s.source_hash \n"
+            + "where s.width = ? and s.height = ?";
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(query)) {
+      ps.setArray(1, c.createArrayOf("bigint", keys.stream().map(key -> key.photoId).toArray()));
+      ps.setArray(2, c.createArrayOf("text", keys.stream().map(key -> key.sourceHash).toArray()));
+      ps.setInt(3, bucket.width);
+      ps.setInt(4, bucket.height);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          PhotoSizeKey key = bucket.forPhoto(rs.getLong("photo_id"), rs.getString("source_hash"));
+          byte[] bytes = PhotoBlobStore.bytesOf(this.blobStore, rs.getBytes("photo"), rs.getString("content_hash"));
+          Photo photo = new Photo(key.photoId, rs.getLong("product_id"), bytes);
+          this.photoCache.put(key, photo);
+          result.put(key, photo);
+        }
+      }
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error loading " + keys.size() + " resized photos of size " + bucket, ex);
+    }
+    return result;
+  }
+
+  /**
+   * Creates the missing sizes on the resize pool and waits for them until the
+   * pool's deadline. Sizes still running at the deadline keep running and are
+   * stored for later requests; sizes still queued are cancelled.
+   *
+   * @param keys
+   * @return the created photos. Keys of missing originals are left out.
+   * @throws ResizeCapacityException if the pool is saturated or the deadline
+   * passes.
+   */
+  private Map<PhotoSizeKey, Photo> createResizedPhotos(List<PhotoSizeKey> keys) {
+    Map<PhotoSizeKey, Photo> result = new HashMap<>();
+    Map<PhotoSizeKey, Future<Optional<Photo>>> futures = new LinkedHashMap<>();
+    try {
+      for (PhotoSizeKey key : keys) {
+        futures.put(key, this.resizeExecutor.submit(() -> this.createResizedPhoto(key)));
+      }
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.resizeExecutor.getDeadlineMillis());
+      for (Map.Entry<PhotoSizeKey, Future<Optional<Photo>>> entry : futures.entrySet()) {
+        long remaining = Math.max(0, deadline - System.nanoTime());
+        entry.getValue().get(remaining, TimeUnit.NANOSECONDS)
+                .ifPresent(photo -> result.put(entry.getKey(), photo));
+      }
+      return result;
+    } catch (TimeoutException ex) {
+      throw new ResizeCapacityException("Photo resizes did not finish within "
+              + this.resizeExecutor.getDeadlineMillis() + " ms", this.resizeExecutor.getRetryAfterSeconds(), ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while resizing photos", ex);
+    } catch (ExecutionException ex) {
+      throw ex.getCause() instanceof RuntimeException
+              ? (RuntimeException) ex.getCause()
+              : new RuntimeException("Failed to resize photos", ex.getCause());
+    } finally {
+      futures.values().forEach(future -> future.cancel(false));
+    }
+  }
+
+  /**
+   * Resizes the original photo, stores the result in products.photo_sized
+   * and in the cache. Concurrent calls for the same key share a single
+   * resize: the first caller does the work and the others wait for its
+   * result.
+   *
+   * @param key
+   * @return empty if the original photo does not exist.
+   */
+  private Optional<Photo> createResizedPhoto(PhotoSizeKey key) {
+    CompletableFuture<Optional<Photo>> flight = new CompletableFuture<>();
+    CompletableFuture<Optional<Photo>> existing = this.resizesInFlight.putIfAbsent(key, flight);
+    if (existing != null) {
       try {
-        bytes = rs.getBytes("photo");
-      } catch (SQLException ex) {
-        throw new RuntimeException(ex);
+        return existing.join();
+      } catch (CompletionException ex) {
+        throw ex.getCause() instanceof RuntimeException
+                ? (RuntimeException) ex.getCause()
+                : new RuntimeException("Failed to resize photo " + key, ex.getCause());
+      }
+    }
+    try {
+      // A flight that finished just before this one started already stored the size.
+      Optional<Photo> result = this.querySizedPhoto(key);
+      if (result.isEmpty()) {
+        result = this.resizeAndStore(key);
       }
-      result.putIfAbsent(productId, new ArrayList<>());
-      result.get(productId).add(new Photo(photoId, productId, bytes));
+      flight.complete(result);
+      return result;
+    } catch (RuntimeException ex) {
+      flight.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      this.resizesInFlight.remove(key, flight);
+    }
+  }
+
+  /**
+   *
+   * @param key
+   * @return empty if the original photo does not exist or was replaced.
+   */
+  private Optional<Photo> resizeAndStore(PhotoSizeKey key) {
+    Optional<Photo> original = this.queryPhoto("select photo_id, product_id, content_hash, photo from products.photo \n"
+            + "where photo_id = ? and content_hash = ?", key.photoId, key.sourceHash);
+    if (original.isEmpty()) {
+      return original;
+    }
+    Photo origPhoto = original.get();
+    PhotoSize size = new PhotoSize(key.width, key.height);
+    byte[] resizedBytes = new PhotoResizer()
+            .resizePyramid(origPhoto.bytes, Arrays.asList(size), this.sizePolicy)
+            .get(size);
+    this.persistResizedPhotos(key.photoId, origPhoto.productId, key.sourceHash, Map.of(size, resizedBytes));
+    Photo resized = new Photo(key.photoId, origPhoto.productId, resizedBytes);
+    this.photoCache.put(key, resized);
+    return Optional.of(resized);
+  }
+
+  /**
+   * Creates the given sizes of a photo that are not stored yet from a single
+   * decode of the original, and stores them in products.photo_sized with one
+   * batched insert. Sizes are snapped to the size policy first.
+   *
+   * @param photoId
+   * @param sizes
+   * @return the created sizes. Empty if the original photo does not exist or
+   * every size was already stored.
+   */
+  public Map<PhotoSize, Photo> createPhotoSizes(long photoId, List<PhotoSize> sizes) {
+    Map<PhotoSize, Photo> result = new LinkedHashMap<>();
+    Optional<String> sourceHash = this.queryContentHash(photoId);
+    if (sourceHash.isEmpty()) {
+      return result;
+    }
+    List<PhotoSize> stored = this.getStoredSizes(photoId, sourceHash.get());
+    List<PhotoSize> missing = sizes.stream()
+            .map(size -> this.sizePolicy.snap(size.width, size.height))
+            .filter(size -> !stored.contains(size))
+            .distinct()
+            .collect(Collectors.toList());
+    if (missing.isEmpty()) {
+      return result;
+    }
+    Optional<Photo> original = this.queryPhoto("select photo_id, product_id, content_hash, photo from products.photo \n"
+            + "where photo_id = ? and content_hash = ?", photoId, sourceHash.get());
+    if (original.isEmpty()) {
+      return result;
+    }
+    Photo origPhoto = original.get();
+    Map<PhotoSize, byte[]> pyramid = new PhotoResizer().resizePyramid(origPhoto.bytes, missing, this.sizePolicy);
+    this.persistResizedPhotos(photoId, origPhoto.productId, sourceHash.get(), pyramid);
+    pyramid.forEach((size, bytes) -> {
+      Photo resized = new Photo(photoId, origPhoto.productId, bytes);
+      this.photoCache.put(size.forPhoto(photoId, sourceHash.get()), resized);
+      result.put(size, resized);
     });
     return result;
   }
 
+  /**
+   * Computes and stores the BlurHash placeholder of a photo that does not
+   * have one yet, e.g. a streamed upload or a photo stored before placeholders
+   * existed.
+   *
+   * @param photoId
+   * @return the new placeholder, or empty if the photo already had one or
+   * does not exist.
+   */
+  public Optional<String> createPlaceholder(long photoId) {
+    Optional<Photo> original = this.queryPhoto("select photo_id, product_id, content_hash, photo from products.photo \n"
+            + "where photo_id = ? and placeholder is null", photoId);
+    if (original.isEmpty()) {
+      return Optional.empty();
+    }
+    String placeholder = PhotoResizer.placeholder(original.get().bytes);
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(
+                    "update products.photo set placeholder = ? where photo_id = ? and placeholder is null")) {
+      ps.setString(1, placeholder);
+      ps.setLong(2, photoId);
+      ps.executeUpdate();
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error storing placeholder of photo id=" + photoId, ex);
+    }
+    return Optional.of(placeholder);
+  }
+
+  /**
+   * Reads and stores the dimensions of a photo stored before they were
+   * recorded, so {@link #renderedSize(PhotoSize, PhotoVersion)} reports the
+   * real rendered size instead of the bucket.
+   *
+   * @param photoId
+   * @return the dimensions from the image header, or empty if the photo
+   * already had them or does not exist.
+   */
+  public Optional<PhotoSize> createDimensions(long photoId) {
+    Optional<String> contentHash = this.queryContentHash(photoId);
+    if (contentHash.isEmpty()) {
+      return Optional.empty();
+    }
+    Optional<Photo> original = this.queryPhoto("select photo_id, product_id, content_hash, photo from products.photo \n"
+            + "where photo_id = ? and content_hash = ? and (width is null or height is null)", photoId, contentHash.get());
+    if (original.isEmpty()) {
+      return Optional.empty();
+    }
+    PhotoSize size = PhotoResizer.readSize(original.get().bytes);
+    // A photo replaced meanwhile already got the dimensions of its new bytes.
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(
+                    "update products.photo set width = ?, height = ? \n"
+                    + "where photo_id = ? and content_hash = ? and (width is null or height is null)")) {
+      ps.setInt(1, size.width);
+      ps.setInt(2, size.height);
+      ps.setLong(3, photoId);
+      ps.setString(4, contentHash.get());
+      ps.executeUpdate();
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error storing dimensions of photo id=" + photoId, ex);
+    }
+    return Optional.of(size);
+  }
+
+  /**
+   *
+   * @param query a query on photo_id, product_id, content_hash and photo with
+   * the photo id as its only parameter.
+   * @param photoId
+   * @return
+   */
+  private Optional<Photo> queryPhoto(String query, long photoId) {
+    return this.queryPhoto(query, photoId, null);
+  }
+
+  /**
+   *
+   * @param query a query on photo_id, product_id, content_hash and photo with
+   * the photo id as its first parameter and, if not null, the content hash as
+   * its second.
+   * @param photoId
+   * @param contentHash
+   * @return
+   */
+  private Optional<Photo> queryPhoto(String query, long photoId, String contentHash) {
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(query)) {
+      ps.setLong(1, photoId);
+      if (contentHash != null) {
+        ps.setString(2, contentHash);
+      }
+      try (ResultSet rs = ps.executeQuery()) {
+        if (rs.next()) {
+          byte[] bytes = PhotoBlobStore.bytesOf(this.blobStore, rs.getBytes("photo"), rs.getString("content_hash"));
+          return Optional.of(new Photo(rs.getLong("photo_id"), rs.getLong("product_id"), bytes));
+        }
+      }
+      return Optional.empty();
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error loading photo id=" + photoId, ex);
+    }
+  }
+
   /**
    *
    * @return
@@ -119,108 +845,203 @@ public class ProductsSource {
 
   /**
    *
-   * @param productIds
-   * @param width
-   * @param height
-   * @return
+   * @param photoId
+   * @return the content hash of the current version of the photo, empty if
+   * the photo does not exist.
    */
-  public Map<Integer, List<Photo>> getPhotos(List<Integer> productIds, Integer width, Integer height) {
-    // If no product IDs provided, short-circuit
-    if (productIds.isEmpty()) {
-      return new HashMap<>();
+  private Optional<String> queryContentHash(long photoId) {
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement("select content_hash from products.photo where photo_id = ?")) {
+      ps.setLong(1, photoId);
+      try (ResultSet rs = ps.executeQuery()) {
+        return rs.next() ? Optional.of(rs.getString(1)) : Optional.empty();
+      }
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error loading content hash of photo id=" + photoId, ex);
     }
+  }
 
-    // If both width and height are null, just return original images
-    if (width == null && height == null) {
-      return getPhotos(productIds);
+  /**
+   *
+   * @param photoId
+   * @return the sizes of the current version of the photo that exist in
+   * products.photo_sized.
+   */
+  public List<PhotoSize> getStoredSizes(long photoId) {
+    Optional<String> sourceHash = this.queryContentHash(photoId);
+    return sourceHash.isEmpty() ? new ArrayList<>() : this.getStoredSizes(photoId, sourceHash.get());
+  }
+
+  private List<PhotoSize> getStoredSizes(long photoId, String sourceHash) {
+    String query = "select width, height from products.photo_sized where photo_id = ? and source_hash = ? \n"
+            + "order by width, height";
+    List<PhotoSize> result = new ArrayList<>();
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(query)) {
+      ps.setLong(1, photoId);
+      ps.setString(2, sourceHash);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          result.add(new PhotoSize(rs.getInt("width"), rs.getInt("height")));
+        }
+      }
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error loading stored sizes of photo id=" + photoId, ex);
     }
+    return result;
+  }
 
-    // 1) Attempt to retrieve existing resized photos for the specified width/height.
-    //    This assumes you have columns (width, height) or some logic in your DB
-    //    to filter by dimension. Adjust the query as needed.
-    String productIdsText = productIds
-            .stream()
-            .map(String::valueOf)
-            .collect(Collectors.joining(","));
+  /**
+   *
+   * @param width
+   * @param height
+   * @return the size a request for width x height is served in.
+   */
+  public PhotoSize snapSize(int width, int height) {
+    return this.sizePolicy.snap(width, height);
+  }
 
-    String query = "SELECT * FROM products.photo_sized p "
-            + "WHERE p.product_id = ANY(ARRAY[" + productIdsText + "]) "
-            + "  AND p.width " + (width == null ? "IS NULL" : "= " + width)
-            + "  AND p.height " + (height == null ? "IS NULL" : "= " + height);
+  /**
+   *
+   * @param bucket
+   * @param version
+   * @return the dimensions the photo is rendered in for the bucket; the bucket
+   * itself when the photo dimensions are unknown.
+   */
+  public PhotoSize renderedSize(PhotoSize bucket, PhotoVersion version) {
+    if (version.width == null || version.height == null) {
+      return bucket;
+    }
+    return this.sizePolicy.renderedSize(bucket, version.width, version.height);
+  }
+
+  /**
+   * Encodes the size bucket that serves width x height with the default
+   * encoder settings and with every configured JPEG profile, from a single
+   * decode of the original. Nothing is stored.
+   *
+   * @param photoId
+   * @param width
+   * @param height
+   * @param runs encodes per profile; the median time is reported.
+   * @return empty if the photo does not exist.
+   */
+  public List<JpegProfileReport> compareJpegProfiles(long photoId, int width, int height, int runs) {
+    Optional<Photo> original = this.getPhoto(photoId, null, null);
+    if (original.isEmpty()) {
+      return new ArrayList<>();
+    }
+    PhotoSize bucket = this.sizePolicy.snap(width, height);
+    List<JpegProfile> profiles = new ArrayList<>();
+    profiles.add(JpegProfile.DEFAULT);
+    this.sizePolicy.getProfiles().stream()
+            .filter(profile -> !profile.name.equals(JpegProfile.DEFAULT.name))
+            .forEach(profiles::add);
+    return new PhotoResizer().compareProfiles(original.get().bytes, bucket, this.sizePolicy, profiles, runs);
+  }
 
-    Map<Integer, List<Photo>> result = new HashMap<>();
+  /**
+   *
+   * @return the blob store photo bytes are kept in, or null.
+   */
+  public PhotoBlobStore getBlobStore() {
+    return this.blobStore;
+  }
 
-    // Execute query to find existing matching photos
-    this.conn.executeQuery(query, rs -> {
-      int productId = RmDbUtils.intValue(rs, "product_id");
-      long photoId = RmDbUtils.intValue(rs, "photo_id");
-      byte[] bytes;
-      try {
-        bytes = rs.getBytes("photo");
-      } catch (SQLException ex) {
-        throw new RuntimeException(ex);
-      }
-      result.putIfAbsent(productId, new ArrayList<>());
-      result.get(productId).add(new Photo(photoId, productId, bytes));
-    });
+  /**
+   *
+   * @return
+   */
+  public PhotoSizePolicy getSizePolicy() {
+    return this.sizePolicy;
+  }
 
-    // 2) Identify which product IDs still need resized images (i.e., not found in DB).
-    List<Integer> missingPhotoProductIds = productIds
-            .stream()
-            .filter(pid -> !result.containsKey(pid))
-            .collect(Collectors.toList());
+  /**
+   * Drops the cached resized variants of a photo after it changed or was
+   * removed.
+   *
+   * @param photoId
+   */
+  public void invalidatePhoto(long photoId) {
+    this.photoCache.invalidatePhoto(photoId);
+  }
 
-    // 3) For each missing product, create the resized images and store them.
-    if (!missingPhotoProductIds.isEmpty()) {
-      // Get original images for these missing products
-      Map<Integer, List<Photo>> originalPhotosMap = getPhotos(missingPhotoProductIds);
-
-      for (Integer productId : missingPhotoProductIds) {
-        List<Photo> originalPhotos = originalPhotosMap.getOrDefault(productId, Collections.emptyList());
-
-        // For each original photo, create/store the resized version
-        PhotoResizer resizer = new PhotoResizer(); 
-        
-        for (Photo origPhoto : originalPhotos) {
-          byte[] resizedBytes = resizer.resizePhoto(origPhoto.bytes, width, height);
-
-          // Persist the new resized image to the database.
-          // This function should be implemented to insert a new record
-          // into 'products.photo' (or wherever you're storing) with the
-          // correct width/height columns. Return the new photoId if needed.
-          long photoId = origPhoto.photoId;
-          
-          this.persistResizedPhoto(photoId, productId, resizedBytes, width, height);
-
-          // Add the newly created photo into the result Map
-          result.putIfAbsent(productId, new ArrayList<>());
-          result.get(productId).add(new Photo(photoId, productId, resizedBytes));
-        }
-      }
+  /**
+   * Writes when the resized photos served since the last call were served to
+   * products.photo_sized.last_served_at, in one statement. Served sizes are
+   * only collected in memory in between, so serving a photo never writes to
+   * the database.
+   *
+   * @return the number of rows updated.
+   */
+  public int flushServedSizes() {
+    List<PhotoSizeKey> served = new ArrayList<>(this.servedSizes);
+    if (served.isEmpty()) {
+      return 0;
     }
+    this.servedSizes.removeAll(served);
+    String statement = "update products.photo_sized s set last_served_at = now() \n"
+            + "from unnest(?::bigint[], ?::text[], ?::int[], ?::int[]) t(photo_id, source_hash, width, height) \n"
+            + "where s.photo_id = t.photo_id and s.source_hash = t.source_hash \n"
+            + "  and s.width = t.width and s.height = t.height";
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(statement)) {
+      ps.setArray(1, c.createArrayOf("bigint", served.stream().map(key -> key.photoId).toArray()));
+      ps.setArray(2, c.createArrayOf("text", served.stream().map(key -> key.sourceHash).toArray()));
+      ps.setArray(3, c.createArrayOf("integer", served.stream().map(key -> key.width).toArray()));
+      ps.setArray(4, c.createArrayOf("integer", served.stream().map(key -> key.height).toArray()));
+      return ps.executeUpdate();
+    } catch (SQLException ex) {
+      // Keep them for the next flush.
+      this.servedSizes.addAll(served);
+      throw new RuntimeException("Error recording " + served.size() + " served photo sizes", ex);
+    }
+  }
 
-    return result;
+  /**
+   *
+   * @return
+   */
+  public PhotoCache.Stats getPhotoCacheStats() {
+    return this.photoCache.getStats();
   }
 
   /**
-   * Example helper (placeholder) for persisting a resized photo to the
-   * database. Returns the newly inserted photo_id.
+   * Stores several sizes of a photo in one batch, in the blob store if there
+   * is one. Sizes already stored by a concurrent resize are left untouched.
+   *
+   * @param photoId
+   * @param productId
+   * @param sourceHash content hash of the original the sizes were rendered
+   * from.
+   * @param sizes the encoded bytes of every size.
    */
-  private long persistResizedPhoto(long photoId, Integer productId, byte[] resizedBytes, Integer width, Integer height) {
-    String statement = "insert into products.photo_sized (photo_id, product_id, photo, width, height) values \n"
-            + "(?, ?, ?, ?, ?)";
-    this.conn.executeStatementsBatch(statement, Arrays.asList(productId), kv -> {
+  private void persistResizedPhotos(long photoId, long productId, String sourceHash, Map<PhotoSize, byte[]> sizes) {
+    String statement = "insert into products.photo_sized (photo_id, product_id, photo, content_hash, byte_size, \n"
+            + "  width, height, source_hash) values \n"
+            + "(?, ?, ?, ?, ?, ?, ?, ?) \n"
+            + "on conflict (photo_id, source_hash, width, height) do nothing";
+    this.conn.executeStatementsBatch(statement, new ArrayList<>(sizes.entrySet()), kv -> {
       try {
+        byte[] bytes = kv.getValue().getValue();
         kv.getKey().setLong(1, photoId);
         kv.getKey().setLong(2, productId);
-        kv.getKey().setBytes(3, resizedBytes);
-        kv.getKey().setInt(4, width);
-        kv.getKey().setInt(5, height);  
-      } catch (SQLException ex) {
+        if (this.blobStore != null) {
+          PhotoBlobStore.Blob blob = this.blobStore.put(bytes);
+          kv.getKey().setNull(3, Types.BINARY);
+          kv.getKey().setString(4, blob.hash);
+        } else {
+          kv.getKey().setBytes(3, bytes);
+          kv.getKey().setString(4, PhotoVersion.hash(bytes));
+        }
+        kv.getKey().setLong(5, bytes.length);
+        kv.getKey().setInt(6, kv.getValue().getKey().width);
+        kv.getKey().setInt(7, kv.getValue().getKey().height);
+        kv.getKey().setString(8, sourceHash);
+      } catch (SQLException | IOException ex) {
         throw new RuntimeException(ex);
       }
     });
-    return photoId;
   }
 
 }
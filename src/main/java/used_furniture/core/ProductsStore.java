@@ -4,9 +4,22 @@ import used_furniture.core.products.model.Photo;
 import used_furniture.core.products.model.Product;
 import common.RmObjects;
 import common.db.DbConnection;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
 
 /**
@@ -16,14 +29,82 @@ import org.springframework.stereotype.Component;
 @Component
 public class ProductsStore {
 
+  /**
+   * How much of an upload is read ahead to find the image dimensions. JPEG
+   * headers with a large EXIF block may not fit; those get no dimensions.
+   */
+  private static final int HEADER_PEEK_BYTES = 64 * 1024;
+
   private final DbConnection conn;
+  private final ProductsSource source;
+  private final PhotoNormalizer normalizer;
+  private final PhotoBlobStore blobStore;
+  private final OffHeapPhotoCache originalCache;
+
+  /**
+   *
+   * @param conn
+   */
+  public ProductsStore(DbConnection conn) {
+    this(conn, null, null);
+  }
+
+  /**
+   *
+   * @param conn
+   * @param source
+   */
+  public ProductsStore(DbConnection conn, ProductsSource source) {
+    this(conn, source, null);
+  }
 
   /**
    *
    * @param conn
+   * @param source the source whose catalog snapshot and photo cache are kept
+   * in sync with writes. May be null when there is nothing to keep in sync.
+   * @param normalizer downsizes and strips uploaded photos before they are
+   * stored. May be null to store uploads unchanged.
    */
-  public ProductsStore(@Autowired DbConnection conn) {
+  public ProductsStore(DbConnection conn, ProductsSource source, PhotoNormalizer normalizer) {
+    this(conn, source, normalizer, null);
+  }
+
+  /**
+   *
+   * @param conn
+   * @param source the source whose catalog snapshot and photo cache are kept
+   * in sync with writes. May be null when there is nothing to keep in sync.
+   * @param normalizer downsizes and strips uploaded photos before they are
+   * stored. May be null to store uploads unchanged.
+   * @param blobStore where photo bytes are written. May be null to keep them
+   * in products.photo.photo.
+   */
+  public ProductsStore(DbConnection conn, ProductsSource source, PhotoNormalizer normalizer,
+          PhotoBlobStore blobStore) {
+    this(conn, source, normalizer, blobStore, null);
+  }
+
+  /**
+   *
+   * @param conn
+   * @param source the source whose catalog snapshot and photo cache are kept
+   * in sync with writes. May be null when there is nothing to keep in sync.
+   * @param normalizer downsizes and strips uploaded photos before they are
+   * stored. May be null to store uploads unchanged.
+   * @param blobStore where photo bytes are written. May be null to keep them
+   * in products.photo.photo.
+   * @param originalCache the off-heap cache of original photos, whose entry
+   * is dropped when a photo is replaced or removed. May be null.
+   */
+  @Autowired
+  public ProductsStore(DbConnection conn, ProductsSource source, @Nullable PhotoNormalizer normalizer,
+          @Nullable PhotoBlobStore blobStore, @Nullable OffHeapPhotoCache originalCache) {
     this.conn = conn;
+    this.source = source;
+    this.normalizer = normalizer;
+    this.blobStore = blobStore;
+    this.originalCache = originalCache;
   }
 
   /**
@@ -51,6 +132,7 @@ public class ProductsStore {
                     product.siteVisible, product.socialMediaVisible
             );
     this.conn.executeStatement(statement);
+    this.refreshCatalog();
     return product_id;
   }
 
@@ -76,6 +158,7 @@ public class ProductsStore {
             )
             + String.format("\nwhere product_id = %d", product.product_id);
     this.conn.executeStatement(statement);
+    this.refreshCatalog();
   }
 
   /**
@@ -85,46 +168,182 @@ public class ProductsStore {
   public void removeProduct(int productId) {
     String statement = "delete from products.product  where product_id = " + productId;
     this.conn.executeStatement(statement);
+    this.refreshCatalog();
   }
 
   /**
+   * Stores the photo and, in the same statement, queues the job that
+   * generates its standard resized variants in the background.
    *
    * @param photo
    * @return
    */
   public long addPhoto(Photo photo) {
+    return this.addPhotos(photo.productId, Arrays.asList(PhotoUpload.of(photo.bytes))).get(0);
+  }
 
-    long photoId = this.conn.getNextSequenceLong("photo_id", "products.photo");
-    String statement = "insert into products.photo (photo_id, product_id, photo) values \n"
-            + "(?, ?, ?)";
-    this.conn.executeStatementsBatch(statement, Arrays.asList(photo), kv -> {
-      try {
-        kv.getKey().setLong(1, photoId);
-        kv.getKey().setLong(2, kv.getRight().productId);
-        kv.getKey().setBytes(3, kv.getRight().bytes);
-      } catch (SQLException ex) {
-        throw new RuntimeException(ex);
+  /**
+   * Stores several photos of a product in one transaction: either all of them
+   * are added or none is. With a normalizer, each photo is downsized and
+   * re-encoded first. Without one it is streamed to the database unchanged
+   * and its dimensions are read from the first bytes. With a blob store the
+   * bytes go there and the row only references them by content hash;
+   * otherwise they go to the photo column and the database computes the hash.
+   * Photo ids are drawn from products.photo_id_seq by the insert itself.
+   *
+   * @param productId
+   * @param uploads
+   * @return the ids of the new photos, in upload order.
+   */
+  public List<Long> addPhotos(long productId, List<PhotoUpload> uploads) {
+    String statement = "with photo as ( \n"
+            + "  insert into products.photo (product_id, photo, content_hash, byte_size, width, height, \n"
+            + "    original_size, original_width, original_height, placeholder) \n"
+            + "  select ?, src.bytes, coalesce(?, encode(sha256(src.bytes), 'hex')), \n"
+            + "    coalesce(?, octet_length(src.bytes)), ?, ?, ?, ?, ?, ? \n"
+            + "  from (select ?::bytea as bytes) src \n"
+            + "  returning photo_id \n"
+            + "), job as ( \n"
+            + "  insert into products.photo_derivative_job (photo_id) \n"
+            + "  select photo_id from photo \n"
+            + ") \n"
+            + "select photo_id from photo";
+    List<Long> photoIds = new ArrayList<>();
+    try (Connection c = this.conn.getConnection()) {
+      c.setAutoCommit(false);
+      try (PreparedStatement ps = c.prepareStatement(statement)) {
+        for (PhotoUpload upload : uploads) {
+          try (InputStream in = upload.openStream()) {
+            ps.setLong(1, productId);
+            if (this.normalizer != null) {
+              PhotoNormalizer.Normalized normalized = this.normalizer.normalize(in);
+              ps.setInt(4, normalized.width);
+              ps.setInt(5, normalized.height);
+              ps.setLong(6, normalized.originalSize);
+              ps.setInt(7, normalized.originalWidth);
+              ps.setInt(8, normalized.originalHeight);
+              ps.setString(9, normalized.placeholder);
+              this.bindPhoto(ps, 2, 10, normalized.bytes);
+            } else {
+              byte[] header = in.readNBytes(HEADER_PEEK_BYTES);
+              PhotoSize size = readDimensions(header);
+              setDimensions(ps, 4, size);
+              ps.setObject(6, upload.getSize() >= 0 ? upload.getSize() : null, Types.BIGINT);
+              setDimensions(ps, 7, size);
+              // Streamed uploads are never decoded here; the derivative job adds the placeholder.
+              ps.setNull(9, Types.VARCHAR);
+              InputStream bytes = new SequenceInputStream(new ByteArrayInputStream(header), in);
+              if (this.blobStore != null) {
+                PhotoBlobStore.Blob blob = this.blobStore.put(bytes);
+                bindBlob(ps, 2, 10, blob);
+              } else {
+                ps.setNull(2, Types.VARCHAR);
+                ps.setNull(3, Types.BIGINT);
+                if (upload.getSize() >= 0) {
+                  ps.setBinaryStream(10, bytes, upload.getSize());
+                } else {
+                  ps.setBinaryStream(10, bytes);
+                }
+              }
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+              rs.next();
+              photoIds.add(rs.getLong("photo_id"));
+            }
+          }
+        }
+        c.commit();
+      } catch (SQLException | IOException | RuntimeException ex) {
+        c.rollback();
+        throw ex;
+      } finally {
+        c.setAutoCommit(true);
       }
-    });
-    return photoId;
+    } catch (SQLException | IOException ex) {
+      throw new RuntimeException("Error adding photos to product id=" + productId, ex);
+    }
+    return photoIds;
   }
 
   /**
+   * Replaces the bytes of a photo, normalized like an upload. Its resized
+   * variants are dropped and queued for regeneration, since URLs of the new
+   * version are cached as immutable.
    *
    * @param photo
    */
   public void updatePhoto(Photo photo) {
-    String statement = "update table products.photo \n"
-            + "set (product_id, photo) = (?, ?) \n"
-            + String.format("where photo_id = %d \n", photo.photoId);
+    String statement = "with photo as ( \n"
+            + "  update products.photo \n"
+            + "  set (product_id, photo, content_hash, byte_size, width, height, \n"
+            + "    original_size, original_width, original_height, placeholder) = (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) \n"
+            + String.format("  where photo_id = %d \n", photo.photoId)
+            + "  returning photo_id \n"
+            + "), stale as ( \n"
+            + "  delete from products.photo_sized \n"
+            + "  where photo_id in (select photo_id from photo) \n"
+            + ") \n"
+            + "insert into products.photo_derivative_job (photo_id) \n"
+            + "select photo_id from photo";
     this.conn.executeStatementsBatch(statement, Arrays.asList(photo), kv -> {
       try {
+        byte[] original = kv.getRight().bytes;
         kv.getKey().setLong(1, kv.getRight().productId);
-        kv.getKey().setBytes(2, kv.getRight().bytes);
-      } catch (SQLException ex) {
+        byte[] stored;
+        if (this.normalizer != null) {
+          PhotoNormalizer.Normalized normalized = this.normalizer.normalize(new ByteArrayInputStream(original));
+          stored = normalized.bytes;
+          kv.getKey().setInt(5, normalized.width);
+          kv.getKey().setInt(6, normalized.height);
+          kv.getKey().setInt(8, normalized.originalWidth);
+          kv.getKey().setInt(9, normalized.originalHeight);
+          kv.getKey().setString(10, normalized.placeholder);
+        } else {
+          stored = original;
+          PhotoSize size = readDimensions(original);
+          setDimensions(kv.getKey(), 5, size);
+          setDimensions(kv.getKey(), 8, size);
+          kv.getKey().setString(10, PhotoResizer.placeholder(original));
+        }
+        kv.getKey().setLong(7, original.length);
+        if (this.blobStore != null) {
+          bindBlob(kv.getKey(), 3, 2, this.blobStore.put(stored));
+        } else {
+          kv.getKey().setBytes(2, stored);
+          kv.getKey().setString(3, PhotoVersion.hash(stored));
+          kv.getKey().setLong(4, stored.length);
+        }
+      } catch (SQLException | IOException ex) {
         throw new RuntimeException(ex);
       }
     });
+    this.invalidatePhoto(photo.photoId);
+  }
+
+  /**
+   * Sets the display order of the photos of a product. The first photo
+   * becomes the cover; photos of the product not listed keep following in
+   * upload order.
+   *
+   * @param productId
+   * @param photoIds
+   */
+  public void setPhotoOrder(int productId, List<Long> photoIds) {
+    if (photoIds.stream().distinct().count() != photoIds.size()) {
+      throw new IllegalArgumentException("Duplicate photo ids in photo order: " + photoIds);
+    }
+    // One statement, so readers never see a half-applied order.
+    String statement = "update products.photo \n"
+            + "set sort_order = array_position(?::bigint[], photo_id) - 1 \n"
+            + "where product_id = ?";
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(statement)) {
+      ps.setArray(1, c.createArrayOf("bigint", photoIds.toArray()));
+      ps.setInt(2, productId);
+      ps.executeUpdate();
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error ordering photos of product id=" + productId, ex);
+    }
   }
 
   /**
@@ -134,5 +353,326 @@ public class ProductsStore {
   public void removePhoto(long photoId) {
     String statement = "delete from products.photo where photo_id = " + photoId;
     this.conn.executeStatement(statement);
+    this.invalidatePhoto(photoId);
+  }
+
+  /**
+   * Moves photos whose bytes are still in the database to the blob store,
+   * originals first, then resized photos. Rows replaced in the meantime are
+   * skipped. Run repeatedly until it returns 0; the table space is only given
+   * back to the system by a VACUUM FULL (or pg_repack) afterwards.
+   *
+   * @param limit the most rows of each table to move.
+   * @return the number of rows moved.
+   */
+  public int moveToBlobStore(int limit) {
+    if (this.blobStore == null) {
+      throw new IllegalStateException("No photo blob store is configured");
+    }
+    int moved = this.moveToBlobStore("select photo_id, content_hash, photo \n"
+            + "from products.photo where photo is not null limit ?",
+            "update products.photo set photo = null, byte_size = ? \n"
+            + "where photo_id = ? and content_hash = ? and photo is not null", false, limit);
+    moved += this.moveToBlobStore("select photo_id, width, height, content_hash, photo \n"
+            + "from products.photo_sized where photo is not null limit ?",
+            "update products.photo_sized set photo = null, byte_size = ? \n"
+            + "where photo_id = ? and width = ? and height = ? and content_hash = ? and photo is not null", true, limit);
+    return moved;
+  }
+
+  /**
+   *
+   * @param query selects photo_id, content_hash, photo and, if sized, width
+   * and height.
+   * @param statement clears the photo of one row.
+   * @param sized whether rows are keyed by width and height too.
+   * @param limit
+   * @return the number of rows moved.
+   */
+  private int moveToBlobStore(String query, String statement, boolean sized, int limit) {
+    int moved = 0;
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement select = c.prepareStatement(query);
+            PreparedStatement update = c.prepareStatement(statement)) {
+      select.setInt(1, limit);
+      try (ResultSet rs = select.executeQuery()) {
+        while (rs.next()) {
+          PhotoBlobStore.Blob blob = this.blobStore.put(rs.getBytes("photo"));
+          if (!blob.hash.equals(rs.getString("content_hash"))) {
+            throw new IllegalStateException("content_hash of photo id=" + rs.getLong("photo_id")
+                    + " does not match its bytes: " + rs.getString("content_hash"));
+          }
+          int index = 1;
+          update.setLong(index++, blob.size);
+          update.setLong(index++, rs.getLong("photo_id"));
+          if (sized) {
+            update.setInt(index++, rs.getInt("width"));
+            update.setInt(index++, rs.getInt("height"));
+          }
+          update.setString(index, blob.hash);
+          moved += update.executeUpdate();
+        }
+      }
+    } catch (SQLException | IOException ex) {
+      throw new RuntimeException("Error moving photos to " + this.blobStore, ex);
+    }
+    return moved;
+  }
+
+  /**
+   * Deletes resized photos whose original or product no longer exists, e.g.
+   * after removePhoto or removeProduct.
+   *
+   * @param limit the most rows to delete.
+   * @return the deleted rows.
+   */
+  public DeletedSizes deleteOrphanedSizes(int limit) {
+    return this.deleteSizes("select x.photo_id, x.source_hash, x.width, x.height from products.photo_sized x \n"
+            + "where not exists (select 1 from products.photo p \n"
+            + "  join products.product pr on pr.product_id = p.product_id \n"
+            + "  where p.photo_id = x.photo_id) \n"
+            + "limit ?", ps -> ps.setInt(1, limit));
+  }
+
+  /**
+   * Deletes resized photos in sizes that are not a bucket any more, and
+   * resized photos rendered from an original that was replaced since.
+   * Requests are snapped to the buckets and keyed by the current original, so
+   * these rows can no longer be served.
+   *
+   * @param buckets the current size buckets. Without any, only rows of
+   * replaced originals are stale.
+   * @param limit the most rows to delete.
+   * @return the deleted rows.
+   */
+  public DeletedSizes deleteStaleSizes(List<PhotoSize> buckets, int limit) {
+    return this.deleteSizes("select x.photo_id, x.source_hash, x.width, x.height from products.photo_sized x \n"
+            + "where (cardinality(?::int[]) > 0 and not exists ( \n"
+            + "    select 1 from unnest(?::int[], ?::int[]) b(width, height) \n"
+            + "    where b.width = x.width and b.height = x.height)) \n"
+            + "  or exists (select 1 from products.photo p \n"
+            + "    where p.photo_id = x.photo_id and p.content_hash <> x.source_hash) \n"
+            + "limit ?", ps -> {
+              Connection c = ps.getConnection();
+              Array widths = c.createArrayOf("integer", buckets.stream().map(b -> b.width).toArray());
+              ps.setArray(1, widths);
+              ps.setArray(2, widths);
+              ps.setArray(3, c.createArrayOf("integer", buckets.stream().map(b -> b.height).toArray()));
+              ps.setInt(4, limit);
+            });
+  }
+
+  /**
+   * Deletes the least recently served resized photos, just enough of them to
+   * free excessBytes or limit rows, whichever comes first.
+   *
+   * @param excessBytes
+   * @param limit the most rows to delete.
+   * @return the deleted rows.
+   */
+  public DeletedSizes evictLeastRecentlyServedSizes(long excessBytes, int limit) {
+    if (excessBytes <= 0) {
+      return new DeletedSizes(0, 0, new ArrayList<>());
+    }
+    return this.deleteSizes("select photo_id, source_hash, width, height from ( \n"
+            + "  select photo_id, source_hash, width, height, \n"
+            + "    sum(byte_size) over (order by last_served_at, photo_id, width, height) - byte_size as freed_before \n"
+            + "  from (select photo_id, source_hash, width, height, byte_size, last_served_at from products.photo_sized \n"
+            + "    order by last_served_at, photo_id, width, height limit ?) oldest \n"
+            + ") x where freed_before < ?", ps -> {
+              ps.setInt(1, limit);
+              ps.setLong(2, excessBytes);
+            });
+  }
+
+  /**
+   *
+   * @return the total byte_size of products.photo_sized.
+   */
+  public long getSizedBytes() {
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement("select coalesce(sum(byte_size), 0) from products.photo_sized");
+            ResultSet rs = ps.executeQuery()) {
+      rs.next();
+      return rs.getLong(1);
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error summing the size of products.photo_sized", ex);
+    }
+  }
+
+  /**
+   *
+   * @param hashes
+   * @return the hashes no row of products.photo or products.photo_sized
+   * references.
+   */
+  public List<String> findUnreferencedHashes(Collection<String> hashes) {
+    List<String> result = new ArrayList<>();
+    if (hashes.isEmpty()) {
+      return result;
+    }
+    String query = "select h from unnest(?::text[]) h \n"
+            + "where not exists (select 1 from products.photo where content_hash = h) \n"
+            + "and not exists (select 1 from products.photo_sized where content_hash = h)";
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(query)) {
+      ps.setArray(1, c.createArrayOf("text", hashes.toArray()));
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          result.add(rs.getString(1));
+        }
+      }
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error checking references to " + hashes.size() + " content hashes", ex);
+    }
+    return result;
+  }
+
+  /**
+   * Deletes the products.photo_sized rows a query selects. Rows still in the
+   * photo cache are either hot, and so not evicted, or can no longer be
+   * requested.
+   *
+   * @param selection selects photo_id, source_hash, width and height.
+   * @param binder binds the parameters of the selection.
+   * @return the deleted rows.
+   */
+  private DeletedSizes deleteSizes(String selection, SqlBinder binder) {
+    String statement = "delete from products.photo_sized s \n"
+            + "where (s.photo_id, s.source_hash, s.width, s.height) in (" + selection + ") \n"
+            + "returning s.content_hash, s.byte_size";
+    int rows = 0;
+    long bytes = 0;
+    List<String> contentHashes = new ArrayList<>();
+    try (Connection c = this.conn.getConnection();
+            PreparedStatement ps = c.prepareStatement(statement)) {
+      binder.bind(ps);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          rows++;
+          bytes += rs.getLong("byte_size");
+          contentHashes.add(rs.getString("content_hash"));
+        }
+      }
+    } catch (SQLException ex) {
+      throw new RuntimeException("Error deleting resized photos", ex);
+    }
+    return new DeletedSizes(rows, bytes, contentHashes);
+  }
+
+  /**
+   * Binds the photo column and, for the blob store, the content hash and
+   * byte size parameters that follow hashIndex. Inline photos leave those to
+   * the database.
+   *
+   * @param ps
+   * @param hashIndex the content hash parameter; the byte size is the next.
+   * @param photoIndex the photo column parameter.
+   * @param bytes
+   * @throws SQLException
+   * @throws IOException
+   */
+  private void bindPhoto(PreparedStatement ps, int hashIndex, int photoIndex, byte[] bytes)
+          throws SQLException, IOException {
+    if (this.blobStore != null) {
+      bindBlob(ps, hashIndex, photoIndex, this.blobStore.put(bytes));
+    } else {
+      ps.setNull(hashIndex, Types.VARCHAR);
+      ps.setNull(hashIndex + 1, Types.BIGINT);
+      ps.setBytes(photoIndex, bytes);
+    }
+  }
+
+  private static void bindBlob(PreparedStatement ps, int hashIndex, int photoIndex, PhotoBlobStore.Blob blob)
+          throws SQLException {
+    ps.setString(hashIndex, blob.hash);
+    ps.setLong(hashIndex + 1, blob.size);
+    ps.setNull(photoIndex, Types.BINARY);
+  }
+
+  /**
+   *
+   * @param bytes
+   * @return the dimensions from the image header, or null if the bytes do not
+   * start with a readable image header.
+   */
+  private static PhotoSize readDimensions(byte[] bytes) {
+    try {
+      return PhotoResizer.readSize(bytes);
+    } catch (RuntimeException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Binds the width and height at index and index + 1, or nulls if unknown.
+   *
+   * @param ps
+   * @param index
+   * @param size
+   * @throws SQLException
+   */
+  private static void setDimensions(PreparedStatement ps, int index, PhotoSize size) throws SQLException {
+    ps.setObject(index, size == null ? null : size.width, Types.INTEGER);
+    ps.setObject(index + 1, size == null ? null : size.height, Types.INTEGER);
+  }
+
+  /**
+   * Publishes a fresh catalog snapshot so readers see the write that just
+   * committed.
+   */
+  private void refreshCatalog() {
+    if (this.source != null) {
+      this.source.refreshCatalog();
+    }
+  }
+
+  /**
+   * Drops the cached resized variants and the cached original of a photo
+   * that changed.
+   *
+   * @param photoId
+   */
+  private void invalidatePhoto(long photoId) {
+    if (this.source != null) {
+      this.source.invalidatePhoto(photoId);
+    }
+    if (this.originalCache != null) {
+      this.originalCache.invalidate(photoId);
+    }
+  }
+
+  /**
+   * Binds the parameters of a statement.
+   */
+  @FunctionalInterface
+  private interface SqlBinder {
+
+    void bind(PreparedStatement ps) throws SQLException;
+  }
+
+  /**
+   * Rows deleted from products.photo_sized.
+   */
+  public static class DeletedSizes {
+
+    public final int rows;
+    public final long bytes;
+    /**
+     * The content hash of each deleted row. Blobs are shared, so a blob may
+     * still be referenced by other rows.
+     */
+    public final List<String> contentHashes;
+
+    DeletedSizes(int rows, long bytes, List<String> contentHashes) {
+      this.rows = rows;
+      this.bytes = bytes;
+      this.contentHashes = contentHashes;
+    }
+
+    @Override
+    public String toString() {
+      return "DeletedSizes{" + "rows=" + rows + ", bytes=" + bytes + '}';
+    }
   }
 }
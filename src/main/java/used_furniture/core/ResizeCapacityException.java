@@ -0,0 +1,32 @@
+package used_furniture.core;
+
+/**
+ * Thrown when photo resizing is saturated: the resize queue is full or a
+ * request's resizes did not finish before its deadline.
+ *
+ * @author rmarq
+ */
+public class ResizeCapacityException extends RuntimeException {
+
+  private final int retryAfterSeconds;
+
+  /**
+   *
+   * @param message
+   * @param retryAfterSeconds
+   * @param cause
+   */
+  public ResizeCapacityException(String message, int retryAfterSeconds, Throwable cause) {
+    super(message, cause);
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+}
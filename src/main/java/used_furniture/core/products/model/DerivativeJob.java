@@ -0,0 +1,96 @@
+package used_furniture.core.products.model;
+
+import java.time.OffsetDateTime;
+
+/*
+ * Background job that generates the standard resized variants of a photo
+ * after upload.
+ * Maps to products.photo_derivative_job.
+ */
+public class DerivativeJob {
+
+  private long jobId;
+  private long photoId;
+  private DerivativeJobStatus status;
+  private int attemptCount;
+  private String errorMessage;
+  private OffsetDateTime createdAt;
+  private OffsetDateTime nextAttemptAt;
+  private OffsetDateTime lastAttemptAt;
+  private OffsetDateTime completedAt;
+
+  public DerivativeJob() {
+  }
+
+  public long getJobId() {
+    return jobId;
+  }
+
+  public void setJobId(long jobId) {
+    this.jobId = jobId;
+  }
+
+  public long getPhotoId() {
+    return photoId;
+  }
+
+  public void setPhotoId(long photoId) {
+    this.photoId = photoId;
+  }
+
+  public DerivativeJobStatus getStatus() {
+    return status;
+  }
+
+  public void setStatus(DerivativeJobStatus status) {
+    this.status = status;
+  }
+
+  public int getAttemptCount() {
+    return attemptCount;
+  }
+
+  public void setAttemptCount(int attemptCount) {
+    this.attemptCount = attemptCount;
+  }
+
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  public void setErrorMessage(String errorMessage) {
+    this.errorMessage = errorMessage;
+  }
+
+  public OffsetDateTime getCreatedAt() {
+    return createdAt;
+  }
+
+  public void setCreatedAt(OffsetDateTime createdAt) {
+    this.createdAt = createdAt;
+  }
+
+  public OffsetDateTime getNextAttemptAt() {
+    return nextAttemptAt;
+  }
+
+  public void setNextAttemptAt(OffsetDateTime nextAttemptAt) {
+    this.nextAttemptAt = nextAttemptAt;
+  }
+
+  public OffsetDateTime getLastAttemptAt() {
+    return lastAttemptAt;
+  }
+
+  public void setLastAttemptAt(OffsetDateTime lastAttemptAt) {
+    this.lastAttemptAt = lastAttemptAt;
+  }
+
+  public OffsetDateTime getCompletedAt() {
+    return completedAt;
+  }
+
+  public void setCompletedAt(OffsetDateTime completedAt) {
+    this.completedAt = completedAt;
+  }
+}
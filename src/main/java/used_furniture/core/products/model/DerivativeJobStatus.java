@@ -0,0 +1,22 @@
+package used_furniture.core.products.model;
+
+/*
+ * Lifecycle status for a photo derivative job.
+ * Mirrors the "status" column in products.photo_derivative_job.
+ */
+public enum DerivativeJobStatus {
+  PENDING,
+  RUNNING,
+  DONE,
+  FAILED;
+
+  /*
+   * Terminal states are those that don't require further automatic processing.
+   */
+  public boolean isTerminal() {
+    return switch (this) {
+      case DONE, FAILED -> true;
+      default -> false;
+    };
+  }
+}
@@ -0,0 +1,66 @@
+package used_furniture.core.products.model;
+
+/**
+ * Metadata of a product photo without its bytes, for callers that only
+ * link to the photo (posts, publishers) and must not pull the bytea.
+ *
+ * @author rmarq
+ */
+public class PhotoRef {
+
+  public final long photoId;
+  public final long productId;
+  public final long size;
+  public final Integer width;
+  public final Integer height;
+  public final String contentHash;
+
+  /**
+   *
+   * @param photoId
+   * @param productId
+   * @param size the length of the photo in bytes.
+   * @param width null if unknown.
+   * @param height null if unknown.
+   * @param contentHash hex SHA-256 of the photo bytes.
+   */
+  public PhotoRef(long photoId, long productId, long size, Integer width, Integer height, String contentHash) {
+    this.photoId = photoId;
+    this.productId = productId;
+    this.size = size;
+    this.width = width;
+    this.height = height;
+    this.contentHash = contentHash;
+  }
+
+  public long getPhotoId() {
+    return photoId;
+  }
+
+  public long getProductId() {
+    return productId;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public Integer getWidth() {
+    return width;
+  }
+
+  public Integer getHeight() {
+    return height;
+  }
+
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  @Override
+  public String toString() {
+    return "PhotoRef{" + "photoId=" + photoId + ", productId=" + productId + ", size=" + size //
+            + ", width=" + width + ", height=" + height + ", contentHash=" + contentHash + '}';
+  }
+
+}
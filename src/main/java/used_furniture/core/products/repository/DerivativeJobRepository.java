@@ -0,0 +1,41 @@
+package used_furniture.core.products.repository;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Optional;
+import used_furniture.core.products.model.DerivativeJob;
+import used_furniture.core.products.model.DerivativeJobStatus;
+
+/*
+ * Data access contract for products.photo_derivative_job.
+ */
+public interface DerivativeJobRepository {
+
+  /*
+   * Queue a new PENDING job for the photo and return it with jobId populated.
+   */
+  DerivativeJob enqueue(long photoId);
+
+  /*
+   * Load the most recent job for a photo, if any.
+   */
+  Optional<DerivativeJob> findLatestByPhotoId(long photoId);
+
+  /*
+   * Atomically move up to "limit" jobs to RUNNING and return them.
+   * Claims PENDING jobs whose next attempt is due at "now", and RUNNING jobs
+   * not touched since "staleBefore" (their worker died). Concurrent callers
+   * never claim the same job.
+   */
+  List<DerivativeJob> claimDue(OffsetDateTime now, OffsetDateTime staleBefore, int limit);
+
+  /*
+   * Update an existing job.
+   */
+  void update(DerivativeJob job);
+
+  /*
+   * List jobs by status for admin screens.
+   */
+  List<DerivativeJob> findByStatus(DerivativeJobStatus status, int limit);
+}
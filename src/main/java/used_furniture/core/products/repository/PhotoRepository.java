@@ -2,7 +2,9 @@ package used_furniture.core.products.repository;
 
 import java.util.List;
 import java.util.Optional;
+import used_furniture.core.PhotoVersion;
 import used_furniture.core.products.model.Photo;
+import used_furniture.core.products.model.PhotoRef;
 
 /*
  * Data access contract for products.photo.
@@ -14,6 +16,23 @@ public interface PhotoRepository {
    */
   List<Photo> findByProductId(int productId);
 
+  /*
+   * Load the metadata of all photos for a given product, without the bytes.
+   */
+  List<PhotoRef> findRefsByProductId(int productId);
+
   Optional<Photo> findById(long photoId);
 
+  /*
+   * Content hash and length of a photo, without reading its bytes.
+   */
+  Optional<PhotoVersion> findVersionById(long photoId);
+
+  /*
+   * Stream the bytes of a single photo to the handler without materializing
+   * them as a byte[]. Returns empty if the photo does not exist or no longer
+   * has the given content hash.
+   */
+  <T> Optional<T> streamById(long photoId, String contentHash, PhotoStreamHandler<T> handler);
+
 }
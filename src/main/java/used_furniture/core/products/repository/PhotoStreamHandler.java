@@ -0,0 +1,15 @@
+package used_furniture.core.products.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Receives the bytes of one photo as a stream while the underlying row is
+ * still open. The stream is only valid for the duration of the call.
+ */
+@FunctionalInterface
+public interface PhotoStreamHandler<T> {
+
+  T handle(long photoId, long productId, long size, InputStream in) throws IOException;
+
+}
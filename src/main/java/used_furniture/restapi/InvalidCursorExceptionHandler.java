@@ -0,0 +1,28 @@
+package used_furniture.restapi;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import used_furniture.core.InvalidCursorException;
+
+/**
+ * Answers 400 when a catalog page is requested with a malformed or foreign
+ * cursor; it is a client error, not a server failure.
+ *
+ * @author rmarq
+ */
+@ControllerAdvice
+public class InvalidCursorExceptionHandler {
+
+  /**
+   *
+   * @param ex
+   * @return
+   */
+  @ExceptionHandler(InvalidCursorException.class)
+  public ResponseEntity<String> handle(InvalidCursorException ex) {
+    return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+            .body(ex.getMessage());
+  }
+}
@@ -0,0 +1,27 @@
+package used_furniture.restapi;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import used_furniture.core.PhotoTooLargeException;
+
+/**
+ * Answers 413 when an uploaded photo is over the upload limit.
+ *
+ * @author rmarq
+ */
+@ControllerAdvice
+public class PhotoTooLargeExceptionHandler {
+
+  /**
+   *
+   * @param ex
+   * @return
+   */
+  @ExceptionHandler(PhotoTooLargeException.class)
+  public ResponseEntity<String> handle(PhotoTooLargeException ex) {
+    return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+            .body(ex.getMessage());
+  }
+}
@@ -1,5 +1,7 @@
 package used_furniture.restapi;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -7,21 +9,36 @@ import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.stream.Collectors;
+import javax.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.multipart.MultipartFile;
 import used_furniture.core.Category;
+import used_furniture.core.JpegProfileReport;
+import used_furniture.core.OffHeapPhotoCache;
+import used_furniture.core.PhotoCache;
+import used_furniture.core.PhotoDiskCache;
 import used_furniture.core.products.model.Photo;
 import used_furniture.core.PhotoDTO;
+import used_furniture.core.PhotoSize;
+import used_furniture.core.PhotoTooLargeException;
+import used_furniture.core.PhotoUpload;
+import used_furniture.core.PhotoVersion;
+import used_furniture.core.ProductFilter;
+import used_furniture.core.ProductPage;
+import used_furniture.core.ProductSort;
 import used_furniture.core.products.model.Product;
 import used_furniture.core.ProductsSource;
 import used_furniture.core.ProductsStore;
+import used_furniture.restapi.products.web.PhotoUrlBuilder;
 
 /**
  *
@@ -30,6 +47,19 @@ import used_furniture.core.ProductsStore;
 @Controller
 public class ProductServlet {
 
+  private static final int MAX_PAGE_SIZE = 100;
+
+  /**
+   * Encodes per profile of a JPEG profile report; each one is a full resize.
+   */
+  private static final int MAX_PROFILE_RUNS = 20;
+
+  /**
+   * Largest raw-body photo upload, the same as the multipart max-file-size in
+   * web.xml.
+   */
+  private static final long MAX_UPLOAD_BYTES = 10L * 1024 * 1024;
+
   /**
    *
    */
@@ -42,6 +72,24 @@ public class ProductServlet {
   @Autowired
   private ProductsStore store;
 
+  /**
+   *
+   */
+  @Autowired
+  private PhotoUrlBuilder photoUrls;
+
+  /**
+   * Null unless "used-furniture.photo.diskCache.root" is set.
+   */
+  @Autowired(required = false)
+  private PhotoDiskCache diskCache;
+
+  /**
+   * Null unless "used-furniture.photo.originalCache.maxBytes" is set.
+   */
+  @Autowired(required = false)
+  private OffHeapPhotoCache originalCache;
+
   /**
    *
    * @return
@@ -68,20 +116,48 @@ public class ProductServlet {
     return products;
   }
 
+  /**
+   *
+   * @param sort
+   * @param cursor
+   * @param pageSize
+   * @param category
+   * @param siteVisibleOnly
+   * @param availableOnly
+   * @return
+   */
+  @RequestMapping(path = "/products/page", method = RequestMethod.GET)
+  @ResponseBody
+  public ProductPage productsPage(
+          @RequestParam(name="sort", defaultValue = "RECEIVED") ProductSort sort,
+          @RequestParam(name="cursor", required = false) String cursor,
+          @RequestParam(name="pageSize", defaultValue = "24") int pageSize,
+          @RequestParam(name="category", required = false) Integer category,
+          @RequestParam(name="siteVisibleOnly", defaultValue = "false") boolean siteVisibleOnly,
+          @RequestParam(name="availableOnly", defaultValue = "false") boolean availableOnly
+  ) {
+    ProductFilter filter = new ProductFilter(category, siteVisibleOnly, availableOnly);
+    int boundedPageSize = Math.min(Math.max(pageSize, 1), MAX_PAGE_SIZE);
+    ProductPage page = this.source.getProductsPage(filter, sort, cursor, boundedPageSize);
+    return page;
+  }
+
   /**
    *
    * @param category
    * @param siteVisibleOnly
+   * @param availableOnly
    * @return
    */
   @RequestMapping(path = "/products/byCategory", method = RequestMethod.GET)
   @ResponseBody
   public List<Product> productsByCategory(
           @RequestParam("category") Integer category,
-          @RequestParam(name="siteVisibleOnly", defaultValue = "false") boolean siteVisibleOnly
+          @RequestParam(name="siteVisibleOnly", defaultValue = "false") boolean siteVisibleOnly,
+          @RequestParam(name="availableOnly", defaultValue = "false") boolean availableOnly
   ) {
-    List<Product> products = this.source.getProducts(siteVisibleOnly);
-    products.removeIf(p -> !Objects.equals(p.category, category));
+    ProductFilter filter = new ProductFilter(category, siteVisibleOnly, availableOnly);
+    List<Product> products = this.source.getProducts(filter);
     return products;
   }
 
@@ -182,6 +258,8 @@ public class ProductServlet {
   }
 
   /**
+   * Lists the photos of each product as URLs of the resized images. The bytes
+   * themselves are served by ProductPhotoController.
    *
    * @param productIds
    * @param height
@@ -195,14 +273,13 @@ public class ProductServlet {
           @RequestParam("height") Integer height, //
           @RequestParam("width") Integer width //
   ) {
-
-    Map<Integer, List<Photo>> rawPhotos = this.source.getPhotos(productIds, width, height);
+    Map<Integer, List<PhotoVersion>> versions = this.source.getPhotoVersions(productIds);
     Map<Integer, List<PhotoDTO>> photos = new HashMap<>();
-    for (Map.Entry<Integer, List<Photo>> entry : rawPhotos.entrySet()) {
-      List<PhotoDTO> base64Photos = entry.getValue().stream()
-              .map(this::toPhotoJson) //
+    for (Map.Entry<Integer, List<PhotoVersion>> entry : versions.entrySet()) {
+      List<PhotoDTO> photoUrls = entry.getValue().stream()
+              .map(version -> this.toPhotoJson(version, width, height)) //
               .collect(Collectors.toList());
-      photos.put(entry.getKey(), base64Photos);
+      photos.put(entry.getKey(), photoUrls);
     }
     return photos;
   }
@@ -215,10 +292,10 @@ public class ProductServlet {
   @RequestMapping(path = "/photos/product", method = RequestMethod.GET)
   @ResponseBody
   public List<PhotoDTO> getPhotosForProduct(@RequestParam("productId") Integer productId) {
-    Map<Integer, List<Photo>> rawPhotosMap = this.source.getPhotos(Arrays.asList(productId));
-    List<Photo> rawPhotos = rawPhotosMap.containsKey(productId) ? rawPhotosMap.get(productId) : new ArrayList<>();
-    return rawPhotos.stream() //
-            .map(this::toPhotoJson) //
+    Map<Integer, List<PhotoVersion>> versionsMap = this.source.getPhotoVersions(Arrays.asList(productId));
+    List<PhotoVersion> versions = versionsMap.getOrDefault(productId, new ArrayList<>());
+    return versions.stream() //
+            .map(version -> this.toPhotoJson(version, null, null)) //
             .collect(Collectors.toList());
   }
 
@@ -235,20 +312,130 @@ public class ProductServlet {
           @RequestParam("height") Integer height, //
           @RequestParam("width") Integer width
   ) {
-    Map<Integer, List<Photo>> rawPhotosMap = this.source.getPhotos(Arrays.asList(productId), width, height);
-    List<Photo> rawPhotos = rawPhotosMap.containsKey(productId) ? rawPhotosMap.get(productId) : new ArrayList<>();
-    List<PhotoDTO> collect = rawPhotos.stream() //
-            .map(this::toPhotoJson) //
-            .collect(Collectors.toList());
-    return collect.isEmpty() ? null : collect.get(0);
+    PhotoVersion cover = this.source.getCoverVersions(Arrays.asList(productId)).get(productId);
+    return cover == null ? null : this.toPhotoJson(cover, width, height);
   }
 
-  private PhotoDTO toPhotoJson(Photo photo) throws RuntimeException {
-    long photoId = photo.photoId;
-    String encodeToString = Base64.getEncoder().encodeToString(photo.bytes);
-    return new PhotoDTO(photoId, encodeToString);
+  /**
+   * The cover photo of each product, from a single query, so a category page
+   * needs one request instead of one per product. Only the covers are listed,
+   * so only they get resized when the browser fetches them.
+   *
+   * @param productIds
+   * @param size e.g. "400x400"; omitted for the originals.
+   * @return
+   */
+  @RequestMapping(path = "/photos/covers", method = RequestMethod.GET)
+  @ResponseBody
+  public Map<Integer, PhotoDTO> covers(
+          @RequestParam("productIds") ArrayList<Integer> productIds, //
+          @RequestParam(name = "size", required = false) String size //
+  ) {
+    PhotoSize requested = size == null || size.isBlank() ? null : PhotoSize.parse(size);
+    Map<Integer, PhotoDTO> covers = new HashMap<>();
+    this.source.getCoverVersions(productIds).forEach((productId, version) -> covers.put(productId,
+            requested == null
+                    ? this.toPhotoJson(version, null, null)
+                    : this.toPhotoJson(version, requested.width, requested.height)));
+    return covers;
   }
 
+  /**
+   * Sets the display order of the photos of a product; the first one is the
+   * cover.
+   *
+   * @param productId
+   * @param photoIds
+   */
+  @RequestMapping(path = "/photos/order", method = RequestMethod.POST)
+  @ResponseBody
+  public void setPhotoOrder(@RequestParam("productId") int productId, //
+          @RequestParam("photoIds") ArrayList<Long> photoIds) {
+    this.store.setPhotoOrder(productId, photoIds);
+  }
+
+  /**
+   * Points at the size bucket that serves width x height, so every layout that
+   * snaps to the same bucket shares one URL and one cached image. The URL
+   * carries the content hash of the photo and is served as immutable, and
+   * the placeholder is sent inline so no extra request is needed for it. The
+   * reported size is the one the image is rendered in, fitted to the bucket.
+   */
+  private PhotoDTO toPhotoJson(PhotoVersion version, Integer width, Integer height) {
+    if (width == null || height == null) {
+      return new PhotoDTO(version.photoId, this.photoUrls.url(version), null, version.placeholder);
+    }
+    PhotoSize bucket = this.source.snapSize(width, height);
+    String url = this.photoUrls.url(version, bucket.width, bucket.height);
+    return new PhotoDTO(version.photoId, url, this.source.renderedSize(bucket, version), version.placeholder);
+  }
+
+  /**
+   *
+   * @return hit/miss/eviction counters of the resized photo cache.
+   */
+  @RequestMapping(path = "/photos/cache/stats", method = RequestMethod.GET)
+  @ResponseBody
+  public PhotoCache.Stats photoCacheStats() {
+    return this.source.getPhotoCacheStats();
+  }
+
+  /**
+   *
+   * @return hit/miss/eviction counters of the resized photo disk cache, or
+   * nothing if it is disabled.
+   */
+  @RequestMapping(path = "/photos/diskcache/stats", method = RequestMethod.GET)
+  @ResponseBody
+  public PhotoDiskCache.Stats photoDiskCacheStats() {
+    return this.diskCache == null ? null : this.diskCache.getStats();
+  }
+
+  /**
+   *
+   * @return hit rate, occupancy and eviction counters of the off-heap cache of
+   * originals, or nothing if it is disabled.
+   */
+  @RequestMapping(path = "/photos/originalcache/stats", method = RequestMethod.GET)
+  @ResponseBody
+  public OffHeapPhotoCache.Stats originalCacheStats() {
+    return this.originalCache == null ? null : this.originalCache.getStats();
+  }
+
+  /**
+   * Compares the configured JPEG profiles on one photo: output bytes and
+   * median encode time of the size bucket serving width x height.
+   *
+   * @param photoId
+   * @param width
+   * @param height
+   * @param runs clamped to 1..{@value #MAX_PROFILE_RUNS}.
+   * @return 400 unless width and height are positive.
+   */
+  @RequestMapping(path = "/photos/jpeg/report", method = RequestMethod.GET)
+  @ResponseBody
+  public ResponseEntity<List<JpegProfileReport>> jpegProfileReport(@RequestParam("photoId") Long photoId, //
+          @RequestParam("width") Integer width, //
+          @RequestParam("height") Integer height, //
+          @RequestParam(name = "runs", defaultValue = "5") Integer runs
+  ) {
+    if (width < 1 || height < 1) {
+      return ResponseEntity.badRequest().build();
+    }
+    int boundedRuns = Math.min(Math.max(runs, 1), MAX_PROFILE_RUNS);
+    return ResponseEntity.ok(this.source.compareJpegProfiles(photoId, width, height, boundedRuns));
+  }
+
+  /**
+   * Adds a photo sent as a Base64 form parameter. Kept for older admin app
+   * builds; use /photos/upload instead, which does not copy the photo on the
+   * heap.
+   *
+   * @param productId
+   * @param photoBase64
+   * @return
+   */
+  @Deprecated
   @RequestMapping(path = "/photos/add", method = RequestMethod.POST)
   @ResponseBody
   public long addPhoto(
@@ -259,6 +446,105 @@ public class ProductServlet {
     return this.store.addPhoto(photo);
   }
 
+  /**
+   * Adds one or more photos to a product from a multipart/form-data request,
+   * one "photos" part per photo. Parts are streamed to the database and all
+   * photos are stored in one transaction.
+   *
+   * @param productId
+   * @param photos
+   * @return the ids of the new photos, in part order.
+   * @throws IOException
+   */
+  @RequestMapping(path = "/photos/upload", method = RequestMethod.POST,
+          consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+  @ResponseBody
+  public List<Long> uploadPhotos(
+          @RequestParam("productId") long productId,
+          @RequestParam("photos") List<MultipartFile> photos) throws IOException {
+    List<PhotoUpload> uploads = new ArrayList<>();
+    for (MultipartFile photo : photos) {
+      if (!photo.isEmpty()) {
+        uploads.add(toUpload(photo));
+      }
+    }
+    if (uploads.isEmpty()) {
+      throw new IllegalArgumentException("No photo in request for product id=" + productId);
+    }
+    return this.store.addPhotos(productId, uploads);
+  }
+
+  /**
+   * Adds a single photo sent as the raw request body, streamed to the
+   * database without buffering it in memory. Bodies over
+   * {@link #MAX_UPLOAD_BYTES} are answered with 413, up front when the
+   * Content-Length says so and while reading when the body is chunked.
+   *
+   * @param productId
+   * @param request
+   * @return the id of the new photo.
+   * @throws PhotoTooLargeException
+   */
+  @RequestMapping(path = "/photos/upload", method = RequestMethod.POST,
+          consumes = {MediaType.APPLICATION_OCTET_STREAM_VALUE, MediaType.IMAGE_JPEG_VALUE})
+  @ResponseBody
+  public List<Long> uploadPhoto(
+          @RequestParam("productId") long productId,
+          HttpServletRequest request) throws PhotoTooLargeException {
+    if (request.getContentLengthLong() > MAX_UPLOAD_BYTES) {
+      throw new PhotoTooLargeException(MAX_UPLOAD_BYTES);
+    }
+    PhotoUpload upload = new PhotoUpload() {
+      @Override
+      public InputStream openStream() throws IOException {
+        return PhotoUpload.limit(request.getInputStream(), MAX_UPLOAD_BYTES);
+      }
+
+      @Override
+      public long getSize() {
+        return request.getContentLengthLong();
+      }
+    };
+    try {
+      return this.store.addPhotos(productId, Arrays.asList(upload));
+    } catch (RuntimeException ex) {
+      // The limit is hit deep in the database driver; report it as such.
+      for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+        if (cause instanceof PhotoTooLargeException) {
+          throw (PhotoTooLargeException) cause;
+        }
+      }
+      throw ex;
+    }
+  }
+
+  private static PhotoUpload toUpload(MultipartFile photo) {
+    return new PhotoUpload() {
+      @Override
+      public InputStream openStream() throws IOException {
+        return photo.getInputStream();
+      }
+
+      @Override
+      public long getSize() {
+        return photo.getSize();
+      }
+    };
+  }
+
+  /**
+   * Moves up to limit originals and up to limit resized photos from Postgres
+   * to the blob store. Call until it returns 0.
+   *
+   * @param limit
+   * @return the number of photos moved.
+   */
+  @RequestMapping(path = "/photos/blobs/move", method = RequestMethod.POST)
+  @ResponseBody
+  public int movePhotosToBlobStore(@RequestParam(name = "limit", defaultValue = "100") int limit) {
+    return this.store.moveToBlobStore(Math.min(Math.max(limit, 1), 1000));
+  }
+
   @RequestMapping(path = "/photos/remove", method = RequestMethod.POST)
   @ResponseBody
   public void removePhoto(@RequestParam("photoId") long photoId) {
@@ -0,0 +1,30 @@
+package used_furniture.restapi;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import used_furniture.core.ResizeCapacityException;
+
+/**
+ * Answers 503 with a Retry-After header when photo resizing is saturated, so
+ * clients back off instead of holding request threads.
+ *
+ * @author rmarq
+ */
+@ControllerAdvice
+public class ResizeCapacityExceptionHandler {
+
+  /**
+   *
+   * @param ex
+   * @return
+   */
+  @ExceptionHandler(ResizeCapacityException.class)
+  public ResponseEntity<String> handle(ResizeCapacityException ex) {
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+            .body(ex.getMessage());
+  }
+}
@@ -4,18 +4,38 @@ import com.zaxxer.hikari.HikariConfig;
 import common.db.ConnectionPool;
 import common.db.DbConnection;
 import common.db.HikariConnectionPool;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.function.Consumer;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.lang.Nullable;
 import org.springframework.web.client.RestTemplate;
+import used_furniture.core.FileSystemPhotoBlobStore;
+import used_furniture.core.JpegProfile;
+import used_furniture.core.PhotoBlobStore;
+import used_furniture.core.OffHeapPhotoCache;
+import used_furniture.core.PhotoCache;
+import used_furniture.core.PhotoDiskCache;
+import used_furniture.core.PhotoMosaicBuilder;
+import used_furniture.core.PhotoNormalizer;
+import used_furniture.core.PhotoResizeExecutor;
+import used_furniture.core.PhotoSize;
+import used_furniture.core.PhotoSizePolicy;
+import used_furniture.core.ProductsSource;
+import used_furniture.core.ProductsStore;
 import used_furniture.core.posts.model.SocialPlatform;
 import used_furniture.core.posts.repository.PostPhotoRepository;
 import used_furniture.core.posts.repository.PostPublicationRepository;
 import used_furniture.core.posts.repository.PostRepository;
+import used_furniture.core.products.repository.DerivativeJobRepository;
 import used_furniture.core.products.repository.PhotoRepository;
 import used_furniture.core.products.repository.ProductRepository;
 import used_furniture.restapi.posts.client.FacebookPublisher;
@@ -27,6 +47,10 @@ import used_furniture.restapi.posts.repository.PostRepositoryDbImpl;
 import used_furniture.restapi.posts.service.CaptionBuilderService;
 import used_furniture.restapi.posts.service.PostCreationService;
 import used_furniture.restapi.posts.service.PostPublicationService;
+import used_furniture.restapi.products.service.PhotoDerivativeService;
+import used_furniture.restapi.products.service.PhotoPrewarmService;
+import used_furniture.restapi.products.service.PhotoSizedSweeper;
+import used_furniture.restapi.products.repository.DerivativeJobRepositoryDbImpl;
 import used_furniture.restapi.products.repository.PhotoRepositoryDbImpl;
 import used_furniture.restapi.products.repository.ProductRepositoryDbImpl;
 
@@ -52,14 +76,251 @@ public class UsedFurnitureConfiguration {
     return new DbConnection(connPool);
   }
 
+  /**
+   *
+   * @param appProps
+   * @return cache of resized photo bytes, bounded by
+   * "used-furniture.photo.cache.maxBytes".
+   */
+  @Bean
+  public PhotoCache photoCache(@Qualifier("appProps") Properties appProps) {
+    long maxBytes = Long.parseLong(appProps.getProperty("used-furniture.photo.cache.maxBytes", "67108864"));
+    return new PhotoCache(maxBytes);
+  }
+
+  /**
+   *
+   * @param appProps
+   * @return the local disk cache resized photos are sent from, under
+   * "used-furniture.photo.diskCache.root" and bounded by
+   * "used-furniture.photo.diskCache.maxBytes", or null when the root is not
+   * set.
+   * @throws IOException if the root cannot be created or scanned.
+   */
+  @Bean
+  public PhotoDiskCache photoDiskCache(@Qualifier("appProps") Properties appProps) throws IOException {
+    String root = appProps.getProperty("used-furniture.photo.diskCache.root", "").trim();
+    if (root.isEmpty()) {
+      return null;
+    }
+    long maxBytes = Long.parseLong(appProps.getProperty("used-furniture.photo.diskCache.maxBytes", "1073741824"));
+    return new PhotoDiskCache(Paths.get(root), maxBytes);
+  }
+
+  /**
+   *
+   * @param appProps
+   * @return the off-heap cache of original photos, "used-furniture.photo.originalCache.maxBytes"
+   * of direct memory split in "used-furniture.photo.originalCache.segments"
+   * slabs of "used-furniture.photo.originalCache.blockSize" blocks, or null
+   * when maxBytes is 0.
+   */
+  @Bean
+  public OffHeapPhotoCache originalPhotoCache(@Qualifier("appProps") Properties appProps) {
+    long maxBytes = Long.parseLong(appProps.getProperty("used-furniture.photo.originalCache.maxBytes", "0"));
+    if (maxBytes <= 0) {
+      return null;
+    }
+    int segments = Integer.parseInt(appProps.getProperty("used-furniture.photo.originalCache.segments", "16"));
+    int blockSize = Integer.parseInt(appProps.getProperty("used-furniture.photo.originalCache.blockSize", "65536"));
+    return new OffHeapPhotoCache(maxBytes, segments, blockSize);
+  }
+
+  /**
+   *
+   * @param productsSource
+   * @param photoResizeExecutor
+   * @param appProps
+   * @return the cover sprites of catalog pages, "used-furniture.photo.mosaic.columns"
+   * cells wide, of buckets up to "used-furniture.photo.mosaic.maxTileEdge" per
+   * side, cached up to "used-furniture.photo.mosaic.maxBytes".
+   */
+  @Bean
+  public PhotoMosaicBuilder photoMosaicBuilder(ProductsSource productsSource, PhotoResizeExecutor photoResizeExecutor,
+          @Qualifier("appProps") Properties appProps) {
+    int columns = Integer.parseInt(appProps.getProperty("used-furniture.photo.mosaic.columns", "6"));
+    int maxTileEdge = Integer.parseInt(appProps.getProperty("used-furniture.photo.mosaic.maxTileEdge", "400"));
+    long maxBytes = Long.parseLong(appProps.getProperty("used-furniture.photo.mosaic.maxBytes", "33554432"));
+    return new PhotoMosaicBuilder(productsSource, photoResizeExecutor, columns, maxTileEdge, maxBytes);
+  }
+
+  /**
+   *
+   * @param appProps
+   * @return the worker pool that creates missing photo sizes, one thread per
+   * core unless "used-furniture.photo.resize.threads" says otherwise.
+   */
+  @Bean(destroyMethod = "shutdown")
+  public PhotoResizeExecutor photoResizeExecutor(@Qualifier("appProps") Properties appProps) {
+    int cores = Runtime.getRuntime().availableProcessors();
+    int threads = Integer.parseInt(appProps.getProperty("used-furniture.photo.resize.threads", String.valueOf(cores)));
+    int queueLimit = Integer.parseInt(appProps.getProperty("used-furniture.photo.resize.queueLimit", "64"));
+    long deadlineMillis = Long.parseLong(appProps.getProperty("used-furniture.photo.resize.deadlineMillis", "10000"));
+    int retryAfterSeconds = Integer.parseInt(appProps.getProperty("used-furniture.photo.resize.retryAfterSeconds", "2"));
+    return new PhotoResizeExecutor(threads, queueLimit, deadlineMillis, retryAfterSeconds);
+  }
+
+  /**
+   *
+   * @param appProps
+   * @return the ingest stage for uploaded photos, or null when
+   * "used-furniture.photo.ingest.enabled" is false.
+   */
+  @Bean
+  public PhotoNormalizer photoNormalizer(@Qualifier("appProps") Properties appProps) {
+    if (!Boolean.parseBoolean(appProps.getProperty("used-furniture.photo.ingest.enabled", "true"))) {
+      return null;
+    }
+    int maxEdge = Integer.parseInt(appProps.getProperty("used-furniture.photo.ingest.maxEdge", "2048"));
+    float jpegQuality = Float.parseFloat(appProps.getProperty("used-furniture.photo.ingest.jpegQuality", "0.85"));
+    return new PhotoNormalizer(maxEdge, jpegQuality);
+  }
+
+  /**
+   *
+   * @param appProps
+   * @return the store photo bytes are written to, under
+   * "used-furniture.photo.blobStore.root", or null to keep them in Postgres
+   * when it is not set.
+   * @throws IOException if the root cannot be created.
+   */
+  @Bean
+  public PhotoBlobStore photoBlobStore(@Qualifier("appProps") Properties appProps) throws IOException {
+    String root = appProps.getProperty("used-furniture.photo.blobStore.root", "").trim();
+    if (root.isEmpty()) {
+      return null;
+    }
+    return new FileSystemPhotoBlobStore(Paths.get(root));
+  }
+
+  /**
+   *
+   * @param appProps
+   * @return the size buckets listed in "used-furniture.photo.sizes". Photos are
+   * fitted inside the bucket unless "used-furniture.photo.sizes.fit" is false.
+   * Buckets listed in "used-furniture.photo.jpeg.buckets" as WxH:profile are
+   * encoded with that profile, the rest with "used-furniture.photo.jpeg.default"
+   * or the ImageIO defaults.
+   */
+  @Bean
+  public PhotoSizePolicy photoSizePolicy(@Qualifier("appProps") Properties appProps) {
+    List<PhotoSize> buckets = PhotoSize.parseList(appProps.getProperty("used-furniture.photo.sizes", ""));
+    if (buckets.isEmpty()) {
+      throw new IllegalArgumentException("used-furniture.photo.sizes must list at least one size bucket");
+    }
+    boolean fit = Boolean.parseBoolean(appProps.getProperty("used-furniture.photo.sizes.fit", "true"));
+    String profilePrefix = "used-furniture.photo.jpeg.profile.";
+    JpegProfile defaultProfile = JpegProfile.DEFAULT;
+    String defaultName = appProps.getProperty("used-furniture.photo.jpeg.default", "").trim();
+    if (!defaultName.isEmpty()) {
+      defaultProfile = JpegProfile.fromProperties(defaultName, appProps, profilePrefix);
+    }
+    Map<PhotoSize, JpegProfile> profiles = new HashMap<>();
+    for (String item : appProps.getProperty("used-furniture.photo.jpeg.buckets", "").split(",")) {
+      if (item.isBlank()) {
+        continue;
+      }
+      String[] parts = item.trim().split(":");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Invalid JPEG bucket profile, expected WxH:profile: " + item);
+      }
+      profiles.put(PhotoSize.parse(parts[0]), JpegProfile.fromProperties(parts[1].trim(), appProps, profilePrefix));
+    }
+    return new PhotoSizePolicy(buckets, fit, profiles, defaultProfile);
+  }
+
   @Bean
   public ProductRepository productRepository(@Qualifier("used_furniture.conn") DbConnection dbconn) {
     return new ProductRepositoryDbImpl(dbconn);
   }
 
   @Bean
-  public PhotoRepository photoRepository(@Qualifier("used_furniture.conn") DbConnection dbconn) {
-    return new PhotoRepositoryDbImpl(dbconn);
+  public PhotoRepository photoRepository(@Qualifier("used_furniture.conn") DbConnection dbconn,
+          @Nullable PhotoBlobStore blobStore) {
+    return new PhotoRepositoryDbImpl(dbconn, blobStore);
+  }
+
+  @Bean
+  public DerivativeJobRepository derivativeJobRepository(@Qualifier("used_furniture.conn") DbConnection dbconn) {
+    return new DerivativeJobRepositoryDbImpl(dbconn);
+  }
+
+  /**
+   *
+   * @param jobRepo
+   * @param productsSource
+   * @param appProps
+   * @return the background generator of the standard photo sizes listed in
+   * "used-furniture.photo.derivatives.sizes", by default every size bucket.
+   */
+  @Bean(initMethod = "start", destroyMethod = "stop")
+  public PhotoDerivativeService photoDerivativeService(DerivativeJobRepository jobRepo,
+          ProductsSource productsSource,
+          @Qualifier("appProps") Properties appProps) {
+    String configuredSizes = appProps.getProperty("used-furniture.photo.derivatives.sizes");
+    List<PhotoSize> sizes = configuredSizes == null
+            ? productsSource.getSizePolicy().getBuckets()
+            : PhotoSize.parseList(configuredSizes);
+    int maxAttempts = Integer.parseInt(appProps.getProperty("used-furniture.photo.derivatives.maxAttempts", "5"));
+    long pollIntervalMillis = Long.parseLong(appProps.getProperty("used-furniture.photo.derivatives.pollIntervalMillis", "5000"));
+    int batchSize = Integer.parseInt(appProps.getProperty("used-furniture.photo.derivatives.batchSize", "10"));
+    return new PhotoDerivativeService(jobRepo, productsSource, sizes, maxAttempts, pollIntervalMillis, batchSize);
+  }
+
+  /**
+   *
+   * @param productsStore
+   * @param productsSource
+   * @param appProps
+   * @return the sweeper that deletes orphaned and stale resized photos every
+   * "used-furniture.photo.sized.gc.intervalMillis", and the least recently
+   * served ones while products.photo_sized is over
+   * "used-furniture.photo.sized.gc.maxBytes" (0 for no budget). Unreferenced
+   * blobs are deleted once idle for "used-furniture.photo.sized.gc.blobGraceMillis";
+   * the whole blob store is checked for them every
+   * "used-furniture.photo.sized.gc.blobScanIntervalMillis" (0 to never).
+   */
+  @Bean(initMethod = "start", destroyMethod = "stop")
+  public PhotoSizedSweeper photoSizedSweeper(ProductsStore productsStore, ProductsSource productsSource,
+          @Qualifier("appProps") Properties appProps) {
+    long maxBytes = Long.parseLong(appProps.getProperty("used-furniture.photo.sized.gc.maxBytes", "0"));
+    int batchSize = Integer.parseInt(appProps.getProperty("used-furniture.photo.sized.gc.batchSize", "500"));
+    long batchPauseMillis = Long.parseLong(appProps.getProperty("used-furniture.photo.sized.gc.batchPauseMillis", "200"));
+    int maxBatches = Integer.parseInt(appProps.getProperty("used-furniture.photo.sized.gc.maxBatches", "100"));
+    long intervalMillis = Long.parseLong(appProps.getProperty("used-furniture.photo.sized.gc.intervalMillis", "3600000"));
+    long blobGraceMillis = Long.parseLong(appProps.getProperty("used-furniture.photo.sized.gc.blobGraceMillis", "86400000"));
+    long blobScanIntervalMillis = Long.parseLong(appProps.getProperty("used-furniture.photo.sized.gc.blobScanIntervalMillis", "86400000"));
+    return new PhotoSizedSweeper(productsStore, productsSource, maxBytes, batchSize, batchPauseMillis, maxBatches,
+            intervalMillis, blobGraceMillis, blobScanIntervalMillis);
+  }
+
+  /**
+   *
+   * @param productsSource
+   * @param appProps
+   * @return the job that creates the sizes listed in
+   * "used-furniture.photo.prewarm.sizes" (by default every size bucket) for
+   * all photos of site-visible products, and loads
+   * "used-furniture.photo.prewarm.cacheSizes" (by default the smallest bucket)
+   * into the photo cache.
+   */
+  @Bean(initMethod = "start", destroyMethod = "stop")
+  public PhotoPrewarmService photoPrewarmService(ProductsSource productsSource,
+          @Qualifier("appProps") Properties appProps) {
+    List<PhotoSize> buckets = productsSource.getSizePolicy().getBuckets();
+    String configuredSizes = appProps.getProperty("used-furniture.photo.prewarm.sizes");
+    List<PhotoSize> sizes = configuredSizes == null ? buckets : PhotoSize.parseList(configuredSizes);
+    String configuredCacheSizes = appProps.getProperty("used-furniture.photo.prewarm.cacheSizes");
+    List<PhotoSize> cacheSizes = configuredCacheSizes != null
+            ? PhotoSize.parseList(configuredCacheSizes)
+            : buckets.isEmpty() ? Collections.emptyList() : buckets.subList(0, 1);
+    int threads = Integer.parseInt(appProps.getProperty("used-furniture.photo.prewarm.threads", "1"));
+    double photosPerSecond = Double.parseDouble(appProps.getProperty("used-furniture.photo.prewarm.photosPerSecond", "5"));
+    long startupDelayMillis = Long.parseLong(appProps.getProperty("used-furniture.photo.prewarm.startupDelayMillis", "30000"));
+    long intervalMillis = Long.parseLong(appProps.getProperty("used-furniture.photo.prewarm.intervalMillis", "0"));
+    double readyThreshold = Double.parseDouble(appProps.getProperty("used-furniture.photo.prewarm.readyThreshold", "0"));
+    return new PhotoPrewarmService(productsSource, sizes, cacheSizes, threads, photosPerSecond, startupDelayMillis,
+            intervalMillis, readyThreshold);
   }
 
   @Bean
@@ -2,8 +2,10 @@ package used_furniture.restapi.posts.client;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -14,7 +16,7 @@ import org.springframework.web.client.RestTemplate;
 import used_furniture.core.posts.model.Post;
 import used_furniture.core.posts.model.PostPhoto;
 import used_furniture.core.posts.model.SocialPlatform;
-import used_furniture.core.products.model.Photo;
+import used_furniture.core.products.model.PhotoRef;
 import used_furniture.core.products.model.Product;
 
 import org.springframework.util.LinkedMultiValueMap;
@@ -61,7 +63,7 @@ public class FacebookPublisher implements SocialPublisher {
   public PublicationResult publish(Post post,
           Product product,
           List<PostPhoto> postPhotos,
-          List<Photo> productPhotos,
+          List<PhotoRef> productPhotos,
           String caption) {
 
     try {
@@ -97,10 +99,11 @@ public class FacebookPublisher implements SocialPublisher {
   /*
  * Build a list of image URLs for this post, based on PostPhoto rows.
  * - Primary photos first, then by sort_order, then by photoId.
- * - Uses imageBaseUrl + "/" + photoId.
+ * - Uses imageBaseUrl + "/" + photoId, pinned to the photo's content hash
+ *   when known so Facebook and our proxy can cache it as immutable.
    */
   private List<String> resolveImageUrls(List<PostPhoto> postPhotos,
-          List<Photo> productPhotos,
+          List<PhotoRef> productPhotos,
           int maxImages) {
 
     List<String> urls = new ArrayList<>();
@@ -115,6 +118,15 @@ public class FacebookPublisher implements SocialPublisher {
             .thenComparingInt(PostPhoto::getSortOrder)
             .thenComparingLong(PostPhoto::getPhotoId));
 
+    Map<Long, String> contentHashes = new HashMap<>();
+    if (productPhotos != null) {
+      for (PhotoRef ref : productPhotos) {
+        if (ref.getContentHash() != null) {
+          contentHashes.put(ref.getPhotoId(), ref.getContentHash());
+        }
+      }
+    }
+
     Set<Long> seenPhotoIds = new HashSet<>();
     for (PostPhoto pp : sorted) {
       if (urls.size() >= maxImages) {
@@ -128,6 +140,10 @@ public class FacebookPublisher implements SocialPublisher {
       String url = imageBaseUrl.endsWith("/")
               ? imageBaseUrl + photoId
               : imageBaseUrl + "/" + photoId;
+      String contentHash = contentHashes.get(photoId);
+      if (contentHash != null) {
+        url = url + "?v=" + contentHash;
+      }
 
       urls.add(url);
     }
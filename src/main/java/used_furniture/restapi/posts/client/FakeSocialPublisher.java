@@ -6,7 +6,7 @@ import org.slf4j.LoggerFactory;
 import used_furniture.core.posts.model.Post;
 import used_furniture.core.posts.model.PostPhoto;
 import used_furniture.core.posts.model.SocialPlatform;
-import used_furniture.core.products.model.Photo;
+import used_furniture.core.products.model.PhotoRef;
 import used_furniture.core.products.model.Product;
 
 /*
@@ -32,7 +32,7 @@ public class FakeSocialPublisher implements SocialPublisher {
   public PublicationResult publish(Post post,
                                    Product product,
                                    List<PostPhoto> postPhotos,
-                                   List<Photo> productPhotos,
+                                   List<PhotoRef> productPhotos,
                                    String caption) {
     LOG.info("FAKE PUBLISH [{}]: postId={}, productId={}, name={}",
         platform, post.getPostId(), product.getProductId(), product.getName());
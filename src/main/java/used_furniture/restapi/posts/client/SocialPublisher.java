@@ -4,7 +4,7 @@ import java.util.List;
 import used_furniture.core.posts.model.Post;
 import used_furniture.core.posts.model.PostPhoto;
 import used_furniture.core.posts.model.SocialPlatform;
-import used_furniture.core.products.model.Photo;
+import used_furniture.core.products.model.PhotoRef;
 import used_furniture.core.products.model.Product;
 
 /*
@@ -23,7 +23,7 @@ public interface SocialPublisher {
   PublicationResult publish(Post post,
                             Product product,
                             List<PostPhoto> postPhotos,
-                            List<Photo> productPhotos,
+                            List<PhotoRef> productPhotos,
                             String caption);
   
   
@@ -4,7 +4,7 @@ import used_furniture.core.posts.model.Post;
 import used_furniture.core.posts.model.PostPhoto;
 import used_furniture.core.posts.repository.PostRepository;
 import used_furniture.core.posts.repository.PostPhotoRepository;
-import used_furniture.core.products.model.Photo;
+import used_furniture.core.products.model.PhotoRef;
 import used_furniture.core.products.model.Product;
 import used_furniture.core.products.repository.ProductRepository;
 import used_furniture.core.products.repository.PhotoRepository;
@@ -43,7 +43,7 @@ public class PostCreationService {
             .orElseThrow(() -> new IllegalArgumentException(
             "Product not found productId=" + productId));
 
-    List<Photo> photos = photoRepo.findByProductId(productId);
+    List<PhotoRef> photos = photoRepo.findRefsByProductId(productId);
 
     // 2) Derive title/caption/etc (same as before)
     String title = buildTitle(product);
@@ -94,7 +94,7 @@ public class PostCreationService {
     return post;
   }
 
-  private void createPostPhotos(Post post, List<Photo> photos) {
+  private void createPostPhotos(Post post, List<PhotoRef> photos) {
     if (photos == null || photos.isEmpty()) {
       return;
     }
@@ -102,7 +102,7 @@ public class PostCreationService {
     boolean first = true;
     int sortOrder = 0;
 
-    for (Photo photo : photos) {
+    for (PhotoRef photo : photos) {
       boolean isPrimary = first;
       first = false;
 
@@ -120,7 +120,7 @@ public class PostCreationService {
     return ZonedDateTime.now();
   }
 
-  private String buildCaption(Product product, List<Photo> photos) {
+  private String buildCaption(Product product, List<PhotoRef> photos) {
     return null;
   }
   
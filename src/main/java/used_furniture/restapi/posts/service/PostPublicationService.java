@@ -16,7 +16,7 @@ import used_furniture.core.posts.model.SocialPlatform;
 import used_furniture.core.posts.repository.PostPublicationRepository;
 import used_furniture.core.posts.repository.PostPhotoRepository;
 import used_furniture.core.posts.repository.PostRepository;
-import used_furniture.core.products.model.Photo;
+import used_furniture.core.products.model.PhotoRef;
 import used_furniture.core.products.model.Product;
 import used_furniture.core.products.repository.PhotoRepository;
 import used_furniture.core.products.repository.ProductRepository;
@@ -99,7 +99,7 @@ public class PostPublicationService {
     Product product = productOpt.get();
 
     List<PostPhoto> postPhotos = postPhotoRepo.findByPostId(post.getPostId());
-    List<Photo> productPhotos = photoRepo.findByProductId(product.getProductId());
+    List<PhotoRef> productPhotos = photoRepo.findRefsByProductId(product.getProductId());
 
     // Resolve caption: first use override if present, otherwise use builder
     String caption = resolveCaption(pub, post, product);
@@ -0,0 +1,224 @@
+package used_furniture.restapi.products.repository;
+
+import common.db.DbConnection;
+import used_furniture.core.products.model.DerivativeJob;
+import used_furniture.core.products.model.DerivativeJobStatus;
+import used_furniture.core.products.repository.DerivativeJobRepository;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/*
+ * JDBC-based implementation of DerivativeJobRepository using DbConnection.
+ */
+public class DerivativeJobRepositoryDbImpl implements DerivativeJobRepository {
+
+  private final DbConnection dbconn;
+
+  public DerivativeJobRepositoryDbImpl(DbConnection dbconn) {
+    this.dbconn = dbconn;
+  }
+
+  @Override
+  public DerivativeJob enqueue(long photoId) {
+    String sql = """
+        INSERT INTO products.photo_derivative_job (photo_id)
+        VALUES (?)
+        RETURNING job_id,
+                  photo_id,
+                  status,
+                  attempt_count,
+                  error_message,
+                  created_at,
+                  next_attempt_at,
+                  last_attempt_at,
+                  completed_at
+        """;
+
+    try (Connection conn = this.dbconn.getConnection();
+         PreparedStatement ps = conn.prepareStatement(sql)) {
+
+      ps.setLong(1, photoId);
+
+      try (ResultSet rs = ps.executeQuery()) {
+        if (rs.next()) {
+          return mapRowToDerivativeJob(rs);
+        } else {
+          throw new RuntimeException("Insert into products.photo_derivative_job did not return a generated id");
+        }
+      }
+
+    } catch (SQLException e) {
+      throw new RuntimeException("Error enqueuing DerivativeJob for photoId=" + photoId, e);
+    }
+  }
+
+  @Override
+  public Optional<DerivativeJob> findLatestByPhotoId(long photoId) {
+    String sql = baseSelectSql() + """
+          WHERE photo_id = ?
+         ORDER BY job_id DESC
+         LIMIT 1
+        """;
+
+    try (Connection conn = this.dbconn.getConnection();
+         PreparedStatement ps = conn.prepareStatement(sql)) {
+
+      ps.setLong(1, photoId);
+
+      try (ResultSet rs = ps.executeQuery()) {
+        if (rs.next()) {
+          return Optional.of(mapRowToDerivativeJob(rs));
+        }
+      }
+      return Optional.empty();
+
+    } catch (SQLException e) {
+      throw new RuntimeException("Error loading DerivativeJob for photoId=" + photoId, e);
+    }
+  }
+
+  @Override
+  public List<DerivativeJob> claimDue(OffsetDateTime now, OffsetDateTime staleBefore, int limit) {
+    String sql = """
+        UPDATE products.photo_derivative_job
+           SET status = 'RUNNING',
+               attempt_count = attempt_count + 1,
+               last_attempt_at = ?
+         WHERE job_id IN (
+               SELECT job_id
+                 FROM products.photo_derivative_job
+                WHERE (status = 'PENDING' AND next_attempt_at <= ?)
+                   OR (status = 'RUNNING' AND last_attempt_at < ?)
+                ORDER BY next_attempt_at, job_id
+                LIMIT ?
+                  FOR UPDATE SKIP LOCKED)
+        RETURNING job_id,
+                  photo_id,
+                  status,
+                  attempt_count,
+                  error_message,
+                  created_at,
+                  next_attempt_at,
+                  last_attempt_at,
+                  completed_at
+        """;
+
+    List<DerivativeJob> result = new ArrayList<>();
+
+    try (Connection conn = this.dbconn.getConnection();
+         PreparedStatement ps = conn.prepareStatement(sql)) {
+
+      ps.setObject(1, now);
+      ps.setObject(2, now);
+      ps.setObject(3, staleBefore);
+      ps.setInt(4, limit);
+
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          result.add(mapRowToDerivativeJob(rs));
+        }
+      }
+      return result;
+
+    } catch (SQLException e) {
+      throw new RuntimeException("Error claiming due DerivativeJobs", e);
+    }
+  }
+
+  @Override
+  public void update(DerivativeJob job) {
+    String sql = """
+        UPDATE products.photo_derivative_job
+           SET status = ?,
+               attempt_count = ?,
+               error_message = ?,
+               next_attempt_at = ?,
+               last_attempt_at = ?,
+               completed_at = ?
+         WHERE job_id = ?
+        """;
+
+    try (Connection conn = this.dbconn.getConnection();
+         PreparedStatement ps = conn.prepareStatement(sql)) {
+
+      ps.setString(1, job.getStatus().name());
+      ps.setInt(2, job.getAttemptCount());
+      ps.setString(3, job.getErrorMessage());
+      ps.setObject(4, job.getNextAttemptAt());
+      ps.setObject(5, job.getLastAttemptAt());
+      ps.setObject(6, job.getCompletedAt());
+      ps.setLong(7, job.getJobId());
+      ps.executeUpdate();
+
+    } catch (SQLException e) {
+      throw new RuntimeException("Error updating DerivativeJob id=" + job.getJobId(), e);
+    }
+  }
+
+  @Override
+  public List<DerivativeJob> findByStatus(DerivativeJobStatus status, int limit) {
+    String sql = baseSelectSql() + """
+          WHERE status = ?
+         ORDER BY job_id
+         LIMIT ?
+        """;
+
+    List<DerivativeJob> result = new ArrayList<>();
+
+    try (Connection conn = this.dbconn.getConnection();
+         PreparedStatement ps = conn.prepareStatement(sql)) {
+
+      ps.setString(1, status.name());
+      ps.setInt(2, limit);
+
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          result.add(mapRowToDerivativeJob(rs));
+        }
+      }
+      return result;
+
+    } catch (SQLException e) {
+      throw new RuntimeException("Error loading DerivativeJobs by status=" + status, e);
+    }
+  }
+
+  private String baseSelectSql() {
+    return """
+        SELECT job_id,
+               photo_id,
+               status,
+               attempt_count,
+               error_message,
+               created_at,
+               next_attempt_at,
+               last_attempt_at,
+               completed_at
+          FROM products.photo_derivative_job
+        """;
+  }
+
+  private DerivativeJob mapRowToDerivativeJob(ResultSet rs) throws SQLException {
+    DerivativeJob job = new DerivativeJob();
+    job.setJobId(rs.getLong("job_id"));
+    job.setPhotoId(rs.getLong("photo_id"));
+
+    String statusStr = rs.getString("status");
+    job.setStatus(statusStr != null ? DerivativeJobStatus.valueOf(statusStr) : null);
+
+    job.setAttemptCount(rs.getInt("attempt_count"));
+    job.setErrorMessage(rs.getString("error_message"));
+    job.setCreatedAt(rs.getObject("created_at", OffsetDateTime.class));
+    job.setNextAttemptAt(rs.getObject("next_attempt_at", OffsetDateTime.class));
+    job.setLastAttemptAt(rs.getObject("last_attempt_at", OffsetDateTime.class));
+    job.setCompletedAt(rs.getObject("completed_at", OffsetDateTime.class));
+    return job;
+  }
+}
@@ -1,9 +1,15 @@
 package used_furniture.restapi.products.repository;
 
 import common.db.DbConnection;
+import used_furniture.core.PhotoBlobStore;
+import used_furniture.core.PhotoVersion;
 import used_furniture.core.products.model.Photo;
+import used_furniture.core.products.model.PhotoRef;
 import used_furniture.core.products.repository.PhotoRepository;
+import used_furniture.core.products.repository.PhotoStreamHandler;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -13,14 +19,21 @@ import java.util.List;
 import java.util.Optional;
 
 /*
- * JDBC-based implementation of PhotoRepository using DbConnection.
+ * JDBC-based implementation of PhotoRepository using DbConnection. Rows whose
+ * photo column is null are read from the PhotoBlobStore by content hash.
  */
 public class PhotoRepositoryDbImpl implements PhotoRepository {
 
   private final DbConnection dbconn;
+  private final PhotoBlobStore blobStore;
 
   public PhotoRepositoryDbImpl(DbConnection dbconn) {
+    this(dbconn, null);
+  }
+
+  public PhotoRepositoryDbImpl(DbConnection dbconn, PhotoBlobStore blobStore) {
     this.dbconn = dbconn;
+    this.blobStore = blobStore;
   }
 
   @Override
@@ -29,10 +42,11 @@ public class PhotoRepositoryDbImpl implements PhotoRepository {
     String sql = """
         SELECT photo_id,
                product_id,
+               content_hash,
                photo
           FROM products.photo
          WHERE product_id = ?
-         ORDER BY photo_id
+         ORDER BY sort_order NULLS LAST, photo_id
         """;
 
     List<Photo> result = new ArrayList<>();
@@ -45,7 +59,7 @@ public class PhotoRepositoryDbImpl implements PhotoRepository {
         while (rs.next()) {
           long photoId = rs.getLong("photo_id");
           long prodId = rs.getLong("product_id");
-          byte[] bytes = rs.getBytes("photo");
+          byte[] bytes = PhotoBlobStore.bytesOf(blobStore, rs.getBytes("photo"), rs.getString("content_hash"));
 
           result.add(new Photo(photoId, prodId, bytes));
         }
@@ -58,12 +72,53 @@ public class PhotoRepositoryDbImpl implements PhotoRepository {
     }
   }
 
+  @Override
+  public List<PhotoRef> findRefsByProductId(int productId) {
+
+    String sql = """
+        SELECT photo_id,
+               product_id,
+               byte_size AS size,
+               width,
+               height,
+               content_hash
+          FROM products.photo
+         WHERE product_id = ?
+         ORDER BY sort_order NULLS LAST, photo_id
+        """;
+
+    List<PhotoRef> result = new ArrayList<>();
+
+    try (Connection conn = dbconn.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+
+      ps.setInt(1, productId);
+
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          result.add(new PhotoRef(
+                  rs.getLong("photo_id"),
+                  rs.getLong("product_id"),
+                  rs.getLong("size"),
+                  (Integer) rs.getObject("width"),
+                  (Integer) rs.getObject("height"),
+                  rs.getString("content_hash")));
+        }
+      }
+
+      return result;
+
+    } catch (SQLException e) {
+      throw new RuntimeException("Error loading Photo refs for productId=" + productId, e);
+    }
+  }
+
   @Override
   public Optional<Photo> findById(long photoId) {
 
     String sql = """
       SELECT photo_id,
              product_id,
+             content_hash,
              photo
         FROM products.photo
        WHERE photo_id = ?
@@ -77,7 +132,7 @@ public class PhotoRepositoryDbImpl implements PhotoRepository {
         if (rs.next()) {
           long pid = rs.getLong("photo_id");
           long prodId = rs.getLong("product_id");
-          byte[] bytes = rs.getBytes("photo");
+          byte[] bytes = PhotoBlobStore.bytesOf(blobStore, rs.getBytes("photo"), rs.getString("content_hash"));
           return Optional.of(new Photo(pid, prodId, bytes));
         }
       }
@@ -89,4 +144,79 @@ public class PhotoRepositoryDbImpl implements PhotoRepository {
     }
   }
 
+  @Override
+  public Optional<PhotoVersion> findVersionById(long photoId) {
+
+    String sql = """
+      SELECT photo_id,
+             content_hash,
+             byte_size AS size
+        FROM products.photo
+       WHERE photo_id = ?
+      """;
+
+    try (Connection conn = dbconn.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+
+      ps.setLong(1, photoId);
+
+      try (ResultSet rs = ps.executeQuery()) {
+        if (rs.next()) {
+          return Optional.of(new PhotoVersion(rs.getLong("photo_id"), rs.getString("content_hash"),
+                  rs.getLong("size")));
+        }
+      }
+
+      return Optional.empty();
+
+    } catch (SQLException e) {
+      throw new RuntimeException("Error loading Photo version by id=" + photoId, e);
+    }
+  }
+
+  @Override
+  public <T> Optional<T> streamById(long photoId, String contentHash, PhotoStreamHandler<T> handler) {
+
+    String sql = """
+      SELECT photo_id,
+             product_id,
+             byte_size AS size,
+             photo
+        FROM products.photo
+       WHERE photo_id = ?
+         AND content_hash = ?
+      """;
+
+    long productId;
+    long size;
+    try (Connection conn = dbconn.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+
+      ps.setLong(1, photoId);
+      ps.setString(2, contentHash);
+
+      try (ResultSet rs = ps.executeQuery()) {
+        if (!rs.next()) {
+          return Optional.empty();
+        }
+        InputStream inline = rs.getBinaryStream("photo");
+        if (inline != null) {
+          try (InputStream in = inline) {
+            return Optional.of(handler.handle(photoId, rs.getLong("product_id"), rs.getLong("size"), in));
+          }
+        }
+        productId = rs.getLong("product_id");
+        size = rs.getLong("size");
+      }
+
+    } catch (SQLException | IOException e) {
+      throw new RuntimeException("Error streaming Photo by id=" + photoId, e);
+    }
+
+    // Blobs are streamed after the connection went back to the pool.
+    try (InputStream in = PhotoBlobStore.openBlob(blobStore, contentHash)) {
+      return Optional.of(handler.handle(photoId, productId, size, in));
+    } catch (IOException e) {
+      throw new RuntimeException("Error streaming Photo by id=" + photoId, e);
+    }
+  }
+
 }
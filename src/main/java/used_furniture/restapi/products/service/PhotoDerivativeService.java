@@ -0,0 +1,160 @@
+package used_furniture.restapi.products.service;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import used_furniture.core.PhotoSize;
+import used_furniture.core.ProductsSource;
+import used_furniture.core.products.model.DerivativeJob;
+import used_furniture.core.products.model.DerivativeJobStatus;
+import used_furniture.core.products.model.Photo;
+import used_furniture.core.products.repository.DerivativeJobRepository;
+
+/*
+ * Generates the standard resized variants of uploaded photos in the
+ * background, so the first visitor after an upload does not pay for the
+ * resize.
+ *
+ * Jobs are queued in products.photo_derivative_job by ProductsStore.addPhoto
+ * and polled here at a fixed delay. A failed job is retried with exponential
+ * backoff until maxAttempts, then left as FAILED. A job also fills in the
+ * placeholder and dimensions of photos stored before those were recorded.
+ */
+public class PhotoDerivativeService {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PhotoDerivativeService.class);
+
+  private static final long BASE_RETRY_DELAY_SECONDS = 30;
+  private static final long MAX_RETRY_DELAY_SECONDS = 3600;
+  private static final long STALE_RUNNING_MINUTES = 10;
+
+  private final DerivativeJobRepository jobRepo;
+  private final ProductsSource productsSource;
+  private final List<PhotoSize> sizes;
+  private final int maxAttempts;
+  private final long pollIntervalMillis;
+  private final int batchSize;
+  private ScheduledExecutorService scheduler;
+
+  public PhotoDerivativeService(DerivativeJobRepository jobRepo,
+                                ProductsSource productsSource,
+                                List<PhotoSize> sizes,
+                                int maxAttempts,
+                                long pollIntervalMillis,
+                                int batchSize) {
+    this.jobRepo = jobRepo;
+    this.productsSource = productsSource;
+    this.sizes = List.copyOf(sizes);
+    this.maxAttempts = maxAttempts;
+    this.pollIntervalMillis = pollIntervalMillis;
+    this.batchSize = batchSize;
+  }
+
+  /*
+   * Start polling the queue.
+   */
+  public synchronized void start() {
+    if (this.scheduler != null) {
+      return;
+    }
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "photo-derivatives");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        processDueJobs(this.batchSize);
+      } catch (Exception ex) {
+        LOG.error("Unexpected error while processing photo derivative jobs", ex);
+      }
+    }, this.pollIntervalMillis, this.pollIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * Stop polling. Jobs interrupted here are reclaimed once they become stale.
+   */
+  public synchronized void stop() {
+    if (this.scheduler != null) {
+      this.scheduler.shutdownNow();
+      this.scheduler = null;
+    }
+  }
+
+  /*
+   * Claim and process up to "limit" due jobs. Returns the number processed.
+   */
+  public int processDueJobs(int limit) {
+    OffsetDateTime now = OffsetDateTime.now();
+    List<DerivativeJob> due = jobRepo.claimDue(now, now.minusMinutes(STALE_RUNNING_MINUTES), limit);
+    if (!due.isEmpty()) {
+      LOG.info("Claimed {} photo derivative jobs", due.size());
+    }
+    for (DerivativeJob job : due) {
+      processJob(job);
+    }
+    return due.size();
+  }
+
+  /*
+   * Queue a new job for an existing photo, e.g. after the standard sizes changed.
+   */
+  public DerivativeJob enqueue(long photoId) {
+    return jobRepo.enqueue(photoId);
+  }
+
+  public Optional<DerivativeJob> findLatestJob(long photoId) {
+    return jobRepo.findLatestByPhotoId(photoId);
+  }
+
+  public List<DerivativeJob> findByStatus(DerivativeJobStatus status, int limit) {
+    return jobRepo.findByStatus(status, limit);
+  }
+
+  /*
+   * The standard sizes generated for every photo.
+   */
+  public List<PhotoSize> getSizes() {
+    return sizes;
+  }
+
+  private void processJob(DerivativeJob job) {
+    try {
+      productsSource.createPlaceholder(job.getPhotoId());
+      productsSource.createDimensions(job.getPhotoId());
+      Map<PhotoSize, Photo> created = productsSource.createPhotoSizes(job.getPhotoId(), sizes);
+      LOG.debug("Created {} sizes of photo id={}", created.size(), job.getPhotoId());
+      job.setStatus(DerivativeJobStatus.DONE);
+      job.setCompletedAt(OffsetDateTime.now());
+      job.setErrorMessage(null);
+      jobRepo.update(job);
+    } catch (Exception ex) {
+      markAsFailedAttempt(job, ex);
+    }
+  }
+
+  private void markAsFailedAttempt(DerivativeJob job, Exception ex) {
+    job.setErrorMessage(ex.getMessage());
+    if (job.getAttemptCount() >= maxAttempts) {
+      job.setStatus(DerivativeJobStatus.FAILED);
+      LOG.warn("Photo derivative job id={} photoId={} FAILED after {} attempts",
+          job.getJobId(), job.getPhotoId(), job.getAttemptCount(), ex);
+    } else {
+      long delay = Math.min(MAX_RETRY_DELAY_SECONDS,
+          BASE_RETRY_DELAY_SECONDS << Math.min(20, job.getAttemptCount() - 1));
+      job.setStatus(DerivativeJobStatus.PENDING);
+      job.setNextAttemptAt(OffsetDateTime.now().plusSeconds(delay));
+      LOG.warn("Photo derivative job id={} photoId={} failed, retrying in {}s: {}",
+          job.getJobId(), job.getPhotoId(), delay, ex.getMessage());
+    }
+    jobRepo.update(job);
+  }
+}
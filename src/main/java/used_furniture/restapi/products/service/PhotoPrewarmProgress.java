@@ -0,0 +1,108 @@
+package used_furniture.restapi.products.service;
+
+import java.time.OffsetDateTime;
+
+/*
+ * Progress of the current (or last) pre-warm run of PhotoPrewarmService.
+ */
+public class PhotoPrewarmProgress {
+
+  private boolean running;
+  private int runs;
+  private OffsetDateTime startedAt;
+  private OffsetDateTime finishedAt;
+  private int totalPhotos;
+  private int warmedPhotos;
+  private int failedPhotos;
+  private int createdSizes;
+  private boolean failed;
+  private boolean ready;
+
+  public PhotoPrewarmProgress() {
+  }
+
+  public PhotoPrewarmProgress(boolean running,
+                              int runs,
+                              OffsetDateTime startedAt,
+                              OffsetDateTime finishedAt,
+                              int totalPhotos,
+                              int warmedPhotos,
+                              int failedPhotos,
+                              int createdSizes,
+                              boolean failed,
+                              boolean ready) {
+    this.running = running;
+    this.runs = runs;
+    this.startedAt = startedAt;
+    this.finishedAt = finishedAt;
+    this.totalPhotos = totalPhotos;
+    this.warmedPhotos = warmedPhotos;
+    this.failedPhotos = failedPhotos;
+    this.createdSizes = createdSizes;
+    this.failed = failed;
+    this.ready = ready;
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /*
+   * Runs started since the application started.
+   */
+  public int getRuns() {
+    return runs;
+  }
+
+  public OffsetDateTime getStartedAt() {
+    return startedAt;
+  }
+
+  /*
+   * Null while the run is in progress.
+   */
+  public OffsetDateTime getFinishedAt() {
+    return finishedAt;
+  }
+
+  /*
+   * Photos of site-visible products the run walks through.
+   */
+  public int getTotalPhotos() {
+    return totalPhotos;
+  }
+
+  public int getWarmedPhotos() {
+    return warmedPhotos;
+  }
+
+  public int getFailedPhotos() {
+    return failedPhotos;
+  }
+
+  /*
+   * Sizes that did not exist in products.photo_sized and were resized.
+   */
+  public int getCreatedSizes() {
+    return createdSizes;
+  }
+
+  /*
+   * True if the last run stopped before getting through all photos, e.g.
+   * because the products could not be listed.
+   */
+  public boolean isFailed() {
+    return failed;
+  }
+
+  /*
+   * Warmed photos over total photos, between 0 and 1.
+   */
+  public double getFraction() {
+    return totalPhotos == 0 ? (finishedAt != null && !failed ? 1 : 0) : (double) warmedPhotos / totalPhotos;
+  }
+
+  public boolean isReady() {
+    return ready;
+  }
+}
@@ -0,0 +1,255 @@
+package used_furniture.restapi.products.service;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import used_furniture.core.PhotoSize;
+import used_furniture.core.ProductsSource;
+
+/*
+ * Pre-warms the resized photos of site-visible products after a deploy, so
+ * the first visitors of each category page do not pay for the resizes.
+ *
+ * A run walks every photo of every site-visible product, creates the
+ * missing sizes in products.photo_sized (one decode per photo, on this
+ * service's own low-priority threads rather than the request resize pool),
+ * and loads cacheSizes into the in-process photo cache without counting
+ * them as served. Photos are started
+ * at most photosPerSecond, so a run never competes with visitors for CPU or
+ * connections.
+ *
+ * A run starts startupDelayMillis after start, then every intervalMillis
+ * (0 for startup only). isReady() can hold a readiness probe back until a
+ * run has warmed readyThreshold of the photos. Photos that fail to warm do
+ * not count, so until a run gets there, e.g. while the database is down, it
+ * is retried every FIRST_RUN_RETRY_MILLIS.
+ */
+public class PhotoPrewarmService {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PhotoPrewarmService.class);
+
+  static final long FIRST_RUN_RETRY_MILLIS = 30_000;
+
+  private final ProductsSource productsSource;
+  private final List<PhotoSize> sizes;
+  private final List<PhotoSize> cacheSizes;
+  private final int threads;
+  private final double photosPerSecond;
+  private final long startupDelayMillis;
+  private final long intervalMillis;
+  private final double readyThreshold;
+
+  private final AtomicInteger runs = new AtomicInteger();
+  private final AtomicInteger warmed = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final AtomicInteger created = new AtomicInteger();
+  private volatile int total;
+  private volatile boolean running;
+  private volatile boolean ready;
+  private volatile boolean lastRunFailed;
+  private volatile OffsetDateTime startedAt;
+  private volatile OffsetDateTime finishedAt;
+  private long nextPermitNanos;
+  private ScheduledExecutorService scheduler;
+  private ExecutorService workers;
+
+  public PhotoPrewarmService(ProductsSource productsSource,
+                             List<PhotoSize> sizes,
+                             List<PhotoSize> cacheSizes,
+                             int threads,
+                             double photosPerSecond,
+                             long startupDelayMillis,
+                             long intervalMillis,
+                             double readyThreshold) {
+    if (threads < 1 || photosPerSecond <= 0) {
+      throw new IllegalArgumentException("threads and photosPerSecond must be positive: "
+          + threads + ", " + photosPerSecond);
+    }
+    if (readyThreshold < 0 || readyThreshold > 1) {
+      throw new IllegalArgumentException("readyThreshold must be in [0, 1]: " + readyThreshold);
+    }
+    this.productsSource = productsSource;
+    this.sizes = List.copyOf(sizes);
+    this.cacheSizes = List.copyOf(cacheSizes);
+    this.threads = threads;
+    this.photosPerSecond = photosPerSecond;
+    this.startupDelayMillis = startupDelayMillis;
+    this.intervalMillis = intervalMillis;
+    this.readyThreshold = readyThreshold;
+  }
+
+  /*
+   * Schedule the startup run and, with an interval, the periodic ones.
+   */
+  public synchronized void start() {
+    if (this.scheduler != null) {
+      return;
+    }
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(lowPriority("photo-prewarm"));
+    this.workers = Executors.newFixedThreadPool(this.threads, lowPriority("photo-prewarm-worker"));
+    Runnable task = () -> {
+      try {
+        runOnce();
+      } catch (Exception ex) {
+        LOG.error("Unexpected error while pre-warming photos", ex);
+      }
+    };
+    if (this.intervalMillis > 0) {
+      this.scheduler.scheduleWithFixedDelay(task, this.startupDelayMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+    } else {
+      this.scheduler.schedule(task, this.startupDelayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public synchronized void stop() {
+    if (this.scheduler != null) {
+      this.scheduler.shutdownNow();
+      this.workers.shutdownNow();
+      this.scheduler = null;
+      this.workers = null;
+    }
+  }
+
+  /*
+   * Start a run now, unless one is in progress. Returns false if the service
+   * is stopped or already running.
+   */
+  public synchronized boolean trigger() {
+    if (this.scheduler == null || this.running) {
+      return false;
+    }
+    this.scheduler.execute(this::runOnce);
+    return true;
+  }
+
+  /*
+   * True once a run has warmed readyThreshold of the photos, or has finished
+   * without any photos to warm. Always true with a threshold of 0.
+   */
+  public boolean isReady() {
+    return readyThreshold <= 0 || ready;
+  }
+
+  public PhotoPrewarmProgress getProgress() {
+    return new PhotoPrewarmProgress(running, runs.get(), startedAt, finishedAt, total, warmed.get(),
+        failed.get(), created.get(), lastRunFailed, isReady());
+  }
+
+  /*
+   * Walks all photos of site-visible products once, on the scheduler thread.
+   */
+  private void runOnce() {
+    runs.incrementAndGet();
+    warmed.set(0);
+    failed.set(0);
+    created.set(0);
+    total = 0;
+    startedAt = OffsetDateTime.now();
+    finishedAt = null;
+    lastRunFailed = false;
+    running = true;
+    boolean completed = false;
+    try {
+      List<Integer> productIds = productsSource.getProducts(true).stream()
+          .map(product -> product.product_id)
+          .collect(Collectors.toList());
+      List<Long> photoIds = new ArrayList<>();
+      for (List<Long> ids : productsSource.getPhotoIds(productIds).values()) {
+        photoIds.addAll(ids);
+      }
+      total = photoIds.size();
+      LOG.info("Pre-warming {} sizes of {} photos of {} visible products", sizes.size(), photoIds.size(), productIds.size());
+
+      List<Future<?>> pending = new ArrayList<>();
+      for (long photoId : photoIds) {
+        awaitPermit();
+        pending.add(workers.submit(() -> warm(photoId)));
+      }
+      for (Future<?> future : pending) {
+        future.get();
+      }
+      completed = true;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (Exception ex) {
+      LOG.error("Pre-warm run failed", ex);
+    } finally {
+      running = false;
+      finishedAt = OffsetDateTime.now();
+      lastRunFailed = !completed;
+      if (completed && total == 0) {
+        ready = true;
+      }
+    }
+    if (completed) {
+      LOG.info("Pre-warmed {} photos ({} failed), created {} sizes", warmed.get(), failed.get(), created.get());
+    }
+    if (!isReady() && !Thread.currentThread().isInterrupted()) {
+      retryFirstRun();
+    }
+  }
+
+  /*
+   * Schedules another run while no run has warmed enough photos yet, unless
+   * the service was stopped meanwhile.
+   */
+  private synchronized void retryFirstRun() {
+    if (this.scheduler == null) {
+      return;
+    }
+    LOG.info("Retrying the first pre-warm run in {} ms", FIRST_RUN_RETRY_MILLIS);
+    this.scheduler.schedule(this::runOnce, FIRST_RUN_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private void warm(long photoId) {
+    try {
+      Map<PhotoSize, ?> createdSizes = productsSource.createPhotoSizes(photoId, sizes);
+      created.addAndGet(createdSizes.size());
+      for (PhotoSize size : cacheSizes) {
+        productsSource.loadPhoto(photoId, size.width, size.height);
+      }
+      if (warmed.incrementAndGet() >= readyThreshold * total) {
+        ready = true;
+      }
+    } catch (RuntimeException ex) {
+      failed.incrementAndGet();
+      LOG.warn("Could not pre-warm photo id={}: {}", photoId, ex.getMessage());
+    }
+  }
+
+  /*
+   * Spaces the photos 1 / photosPerSecond apart.
+   */
+  private void awaitPermit() throws InterruptedException {
+    long interval = (long) (TimeUnit.SECONDS.toNanos(1) / photosPerSecond);
+    long now = System.nanoTime();
+    long permit = Math.max(nextPermitNanos, now);
+    nextPermitNanos = permit + interval;
+    if (permit > now) {
+      TimeUnit.NANOSECONDS.sleep(permit - now);
+    }
+  }
+
+  private static ThreadFactory lowPriority(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return r -> {
+      Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    };
+  }
+}
@@ -0,0 +1,278 @@
+package used_furniture.restapi.products.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import used_furniture.core.PhotoBlobStore;
+import used_furniture.core.PhotoSize;
+import used_furniture.core.ProductsSource;
+import used_furniture.core.ProductsStore;
+
+/*
+ * Keeps products.photo_sized from growing without bound. Each run, at a
+ * fixed delay:
+ *   1. records which resized photos were served since the last run,
+ *   2. deletes rows of removed photos and products (orphans),
+ *   3. deletes rows in sizes that are not a size bucket any more (stale),
+ *   4. deletes the least recently served rows while the table is over
+ *      maxBytes; they are resized again if requested.
+ * Rows are deleted in batches of batchSize with a pause in between, so the
+ * sweep never holds many row locks or starves the connection pool.
+ *
+ * With a blob store, blobs of deleted rows that no row references any more
+ * are deleted too, but only once no put stored or reused them for
+ * blobGraceMillis (see PhotoBlobStore.deleteIfIdle). A resize that reuses a
+ * blob after the reference check refreshes it first, so its row is never
+ * left pointing at a deleted blob as long as it commits within the grace
+ * period. Blobs still in their grace period are checked again next run.
+ *
+ * Blobs also leak when an original is replaced or removed, or when the
+ * transaction that stored it rolls back. So every blobScanIntervalMillis a
+ * run also walks the whole blob store, checks the blobs idle for
+ * blobGraceMillis against products.photo and products.photo_sized in
+ * batches, and deletes the unreferenced ones the same way.
+ */
+public class PhotoSizedSweeper {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PhotoSizedSweeper.class);
+
+  private final ProductsStore productsStore;
+  private final ProductsSource productsSource;
+  private final long maxBytes;
+  private final int batchSize;
+  private final long batchPauseMillis;
+  private final int maxBatches;
+  private final long intervalMillis;
+  private final long blobGraceMillis;
+  private final long blobScanIntervalMillis;
+  private long lastBlobScan;
+  private Set<String> unreferencedBlobs = new HashSet<>();
+  private volatile PhotoSweepReport lastReport;
+  private ScheduledExecutorService scheduler;
+
+  public PhotoSizedSweeper(ProductsStore productsStore,
+                           ProductsSource productsSource,
+                           long maxBytes,
+                           int batchSize,
+                           long batchPauseMillis,
+                           int maxBatches,
+                           long intervalMillis,
+                           long blobGraceMillis,
+                           long blobScanIntervalMillis) {
+    if (batchSize < 1 || maxBatches < 1) {
+      throw new IllegalArgumentException("batchSize and maxBatches must be positive: " + batchSize + ", " + maxBatches);
+    }
+    if (blobGraceMillis < 0) {
+      throw new IllegalArgumentException("blobGraceMillis must not be negative: " + blobGraceMillis);
+    }
+    this.productsStore = productsStore;
+    this.productsSource = productsSource;
+    this.maxBytes = maxBytes;
+    this.batchSize = batchSize;
+    this.batchPauseMillis = batchPauseMillis;
+    this.maxBatches = maxBatches;
+    this.intervalMillis = intervalMillis;
+    this.blobGraceMillis = blobGraceMillis;
+    this.blobScanIntervalMillis = blobScanIntervalMillis;
+    this.lastBlobScan = System.nanoTime();
+  }
+
+  /*
+   * Start sweeping, unless intervalMillis is 0 (sweeps are then only run on
+   * request).
+   */
+  public synchronized void start() {
+    if (this.scheduler != null || this.intervalMillis <= 0) {
+      return;
+    }
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "photo-sized-sweeper");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+    this.scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        sweep();
+      } catch (Exception ex) {
+        LOG.error("Unexpected error while sweeping products.photo_sized", ex);
+      }
+    }, this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop() {
+    if (this.scheduler != null) {
+      this.scheduler.shutdownNow();
+      this.scheduler = null;
+    }
+  }
+
+  /*
+   * Run one sweep now. Each step deletes at most maxBatches batches; what is
+   * left is picked up by the next run.
+   */
+  public synchronized PhotoSweepReport sweep() {
+    OffsetDateTime startedAt = OffsetDateTime.now();
+    long start = System.nanoTime();
+    List<String> deletedHashes = new ArrayList<>();
+    long[] reclaimed = {0};
+
+    int served = productsSource.flushServedSizes();
+    int orphaned = deleteInBatches(limit -> productsStore.deleteOrphanedSizes(limit), deletedHashes, reclaimed);
+    List<PhotoSize> buckets = productsSource.getSizePolicy().getBuckets();
+    int stale = deleteInBatches(limit -> productsStore.deleteStaleSizes(buckets, limit), deletedHashes, reclaimed);
+
+    long sizedBytes = productsStore.getSizedBytes();
+    int evicted = 0;
+    if (maxBytes > 0) {
+      long[] remaining = {sizedBytes};
+      evicted = deleteInBatches(limit -> {
+        ProductsStore.DeletedSizes batch = productsStore.evictLeastRecentlyServedSizes(remaining[0] - maxBytes, limit);
+        remaining[0] -= batch.bytes;
+        return batch;
+      }, deletedHashes, reclaimed);
+      sizedBytes = remaining[0];
+    }
+
+    int deletedBlobs = deleteUnreferencedBlobs(deletedHashes);
+    if (blobScanIntervalMillis > 0
+        && System.nanoTime() - lastBlobScan >= TimeUnit.MILLISECONDS.toNanos(blobScanIntervalMillis)) {
+      deletedBlobs += scanBlobs();
+      lastBlobScan = System.nanoTime();
+    }
+    PhotoSweepReport report = new PhotoSweepReport(startedAt,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), served, orphaned, stale, evicted,
+        reclaimed[0], deletedBlobs, sizedBytes, maxBytes);
+    if (orphaned + stale + evicted + deletedBlobs > 0) {
+      LOG.info("Swept products.photo_sized: {}", report);
+    }
+    this.lastReport = report;
+    return report;
+  }
+
+  /*
+   * The report of the last sweep, or null before the first one.
+   */
+  public PhotoSweepReport getLastReport() {
+    return lastReport;
+  }
+
+  /*
+   * Deletes batch after batch until one comes back short or maxBatches is
+   * reached. Returns the number of rows deleted.
+   */
+  private int deleteInBatches(IntFunction<ProductsStore.DeletedSizes> deleteBatch, List<String> deletedHashes,
+                              long[] reclaimed) {
+    int rows = 0;
+    for (int i = 0; i < maxBatches; i++) {
+      if (i > 0 && !pause()) {
+        break;
+      }
+      ProductsStore.DeletedSizes batch = deleteBatch.apply(batchSize);
+      rows += batch.rows;
+      reclaimed[0] += batch.bytes;
+      deletedHashes.addAll(batch.contentHashes);
+      if (batch.rows < batchSize) {
+        break;
+      }
+    }
+    return rows;
+  }
+
+  private boolean pause() {
+    if (batchPauseMillis <= 0) {
+      return true;
+    }
+    try {
+      Thread.sleep(batchPauseMillis);
+      return true;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /*
+   * Deletes the unreferenced blobs that were idle for blobGraceMillis, and
+   * remembers the ones still in their grace period for the next run.
+   */
+  private int deleteUnreferencedBlobs(List<String> deletedHashes) {
+    PhotoBlobStore blobStore = productsSource.getBlobStore();
+    if (blobStore == null) {
+      return 0;
+    }
+    Set<String> candidates = new HashSet<>(unreferencedBlobs);
+    candidates.addAll(deletedHashes);
+    Set<String> next = new HashSet<>();
+    int deleted = deleteIdleBlobs(blobStore, productsStore.findUnreferencedHashes(candidates), next);
+    unreferencedBlobs = next;
+    return deleted;
+  }
+
+  /*
+   * Checks every blob idle for blobGraceMillis, batchSize at a time, and
+   * deletes the unreferenced ones. Returns the number of blobs deleted.
+   */
+  private int scanBlobs() {
+    PhotoBlobStore blobStore = productsSource.getBlobStore();
+    if (blobStore == null) {
+      return 0;
+    }
+    int deleted = 0;
+    List<String> batch = new ArrayList<>(batchSize);
+    try (Stream<String> idle = blobStore.listIdle(Instant.now().minusMillis(blobGraceMillis))) {
+      Iterator<String> hashes = idle.iterator();
+      while (hashes.hasNext()) {
+        batch.add(hashes.next());
+        if (batch.size() < batchSize && hashes.hasNext()) {
+          continue;
+        }
+        deleted += deleteIdleBlobs(blobStore, productsStore.findUnreferencedHashes(batch), unreferencedBlobs);
+        batch.clear();
+        if (hashes.hasNext() && !pause()) {
+          break;
+        }
+      }
+    } catch (IOException | UncheckedIOException ex) {
+      LOG.warn("Could not scan the photo blob store, retrying next interval: {}", ex.getMessage());
+    }
+    return deleted;
+  }
+
+  /*
+   * Deletes the given unreferenced blobs that were idle for blobGraceMillis,
+   * and adds the ones still in their grace period to retry.
+   */
+  private int deleteIdleBlobs(PhotoBlobStore blobStore, List<String> unreferenced, Set<String> retry) {
+    Instant idleSince = Instant.now().minusMillis(blobGraceMillis);
+    int deleted = 0;
+    for (String hash : unreferenced) {
+      try {
+        if (blobStore.deleteIfIdle(hash, idleSince)) {
+          deleted++;
+        } else if (blobStore.exists(hash)) {
+          retry.add(hash);
+        }
+      } catch (IOException ex) {
+        LOG.warn("Could not delete photo blob {}, retrying next run: {}", hash, ex.getMessage());
+        retry.add(hash);
+      }
+    }
+    return deleted;
+  }
+}
@@ -0,0 +1,110 @@
+package used_furniture.restapi.products.service;
+
+import java.time.OffsetDateTime;
+
+/*
+ * What one run of the PhotoSizedSweeper reclaimed from products.photo_sized.
+ */
+public class PhotoSweepReport {
+
+  private OffsetDateTime startedAt;
+  private long durationMillis;
+  private int servedSizesRecorded;
+  private int orphanedRows;
+  private int staleRows;
+  private int evictedRows;
+  private long reclaimedBytes;
+  private int deletedBlobs;
+  private long sizedBytes;
+  private long maxBytes;
+
+  public PhotoSweepReport() {
+  }
+
+  public PhotoSweepReport(OffsetDateTime startedAt,
+                          long durationMillis,
+                          int servedSizesRecorded,
+                          int orphanedRows,
+                          int staleRows,
+                          int evictedRows,
+                          long reclaimedBytes,
+                          int deletedBlobs,
+                          long sizedBytes,
+                          long maxBytes) {
+    this.startedAt = startedAt;
+    this.durationMillis = durationMillis;
+    this.servedSizesRecorded = servedSizesRecorded;
+    this.orphanedRows = orphanedRows;
+    this.staleRows = staleRows;
+    this.evictedRows = evictedRows;
+    this.reclaimedBytes = reclaimedBytes;
+    this.deletedBlobs = deletedBlobs;
+    this.sizedBytes = sizedBytes;
+    this.maxBytes = maxBytes;
+  }
+
+  public OffsetDateTime getStartedAt() {
+    return startedAt;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  /*
+   * Rows whose last_served_at was updated at the start of the run.
+   */
+  public int getServedSizesRecorded() {
+    return servedSizesRecorded;
+  }
+
+  /*
+   * Rows of removed photos or products.
+   */
+  public int getOrphanedRows() {
+    return orphanedRows;
+  }
+
+  /*
+   * Rows in sizes that are not a size bucket any more.
+   */
+  public int getStaleRows() {
+    return staleRows;
+  }
+
+  /*
+   * Least recently served rows deleted to get back under maxBytes.
+   */
+  public int getEvictedRows() {
+    return evictedRows;
+  }
+
+  public long getReclaimedBytes() {
+    return reclaimedBytes;
+  }
+
+  public int getDeletedBlobs() {
+    return deletedBlobs;
+  }
+
+  /*
+   * Total byte_size of products.photo_sized after the run.
+   */
+  public long getSizedBytes() {
+    return sizedBytes;
+  }
+
+  /*
+   * The byte budget, 0 for none.
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "PhotoSweepReport{" + "orphanedRows=" + orphanedRows + ", staleRows=" + staleRows
+        + ", evictedRows=" + evictedRows + ", reclaimedBytes=" + reclaimedBytes
+        + ", deletedBlobs=" + deletedBlobs + ", sizedBytes=" + sizedBytes + ", durationMillis=" + durationMillis + '}';
+  }
+}
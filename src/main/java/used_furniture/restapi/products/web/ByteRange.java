@@ -0,0 +1,70 @@
+package used_furniture.restapi.products.web;
+
+/**
+ * A single "Range: bytes=..." request resolved against a body length.
+ * Multi-range requests are not supported; they are answered with the full
+ * body, which RFC 7233 allows.
+ */
+final class ByteRange {
+
+  private static final String BYTES_UNIT = "bytes=";
+
+  final long start;
+  final long end;
+  final long totalLength;
+
+  private ByteRange(long start, long end, long totalLength) {
+    this.start = start;
+    this.end = end;
+    this.totalLength = totalLength;
+  }
+
+  /*
+   * Returns null when the header is absent, malformed or asks for several
+   * ranges, i.e. whenever the full body should be served.
+   */
+  static ByteRange parse(String header, long totalLength) {
+    if (header == null || !header.startsWith(BYTES_UNIT) || header.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = header.substring(BYTES_UNIT.length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      if (first.isEmpty()) {
+        // Suffix range: the last N bytes.
+        long suffix = Long.parseLong(last);
+        if (suffix <= 0) {
+          return new ByteRange(totalLength, totalLength - 1, totalLength);
+        }
+        return new ByteRange(Math.max(0, totalLength - suffix), totalLength - 1, totalLength);
+      }
+      long start = Long.parseLong(first);
+      long end = last.isEmpty() ? totalLength - 1 : Math.min(Long.parseLong(last), totalLength - 1);
+      if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+        return null;
+      }
+      return new ByteRange(start, end, totalLength);
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+  }
+
+  boolean isSatisfiable() {
+    return start < totalLength && start <= end;
+  }
+
+  long length() {
+    return end - start + 1;
+  }
+
+  String contentRange() {
+    return isSatisfiable()
+            ? "bytes " + start + "-" + end + "/" + totalLength
+            : "bytes */" + totalLength;
+  }
+}
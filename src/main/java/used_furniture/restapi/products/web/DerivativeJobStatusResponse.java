@@ -0,0 +1,81 @@
+package used_furniture.restapi.products.web;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import used_furniture.core.PhotoSize;
+import used_furniture.core.products.model.DerivativeJobStatus;
+
+/*
+ * Progress of the derivative generation for one photo, for admin screens.
+ */
+public class DerivativeJobStatusResponse {
+
+  private long photoId;
+  private Long jobId;
+  private DerivativeJobStatus status;
+  private int attemptCount;
+  private String errorMessage;
+  private OffsetDateTime createdAt;
+  private OffsetDateTime completedAt;
+  private List<PhotoSize> readySizes;
+  private List<PhotoSize> missingSizes;
+
+  public DerivativeJobStatusResponse() {
+  }
+
+  public DerivativeJobStatusResponse(long photoId,
+                                     Long jobId,
+                                     DerivativeJobStatus status,
+                                     int attemptCount,
+                                     String errorMessage,
+                                     OffsetDateTime createdAt,
+                                     OffsetDateTime completedAt,
+                                     List<PhotoSize> readySizes,
+                                     List<PhotoSize> missingSizes) {
+    this.photoId = photoId;
+    this.jobId = jobId;
+    this.status = status;
+    this.attemptCount = attemptCount;
+    this.errorMessage = errorMessage;
+    this.createdAt = createdAt;
+    this.completedAt = completedAt;
+    this.readySizes = readySizes;
+    this.missingSizes = missingSizes;
+  }
+
+  public long getPhotoId() {
+    return photoId;
+  }
+
+  public Long getJobId() {
+    return jobId;
+  }
+
+  public DerivativeJobStatus getStatus() {
+    return status;
+  }
+
+  public int getAttemptCount() {
+    return attemptCount;
+  }
+
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  public OffsetDateTime getCreatedAt() {
+    return createdAt;
+  }
+
+  public OffsetDateTime getCompletedAt() {
+    return completedAt;
+  }
+
+  public List<PhotoSize> getReadySizes() {
+    return readySizes;
+  }
+
+  public List<PhotoSize> getMissingSizes() {
+    return missingSizes;
+  }
+}
@@ -0,0 +1,38 @@
+package used_furniture.restapi.products.web;
+
+/**
+ * ETag helpers shared by the photo controllers, so every conditional request
+ * is matched the same way.
+ */
+final class EntityTags {
+
+  private EntityTags() {
+  }
+
+  /*
+   * Wraps a value in double quotes, as an ETag header value.
+   */
+  static String quote(String value) {
+    return "\"" + value + "\"";
+  }
+
+  /*
+   * If-None-Match uses the weak comparison, so W/ prefixes are ignored. The
+   * header may list several tags, or be "*".
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      String tag = candidate.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,125 @@
+package used_furniture.restapi.products.web;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import used_furniture.core.PhotoSize;
+import used_furniture.core.ProductsSource;
+import used_furniture.core.products.model.DerivativeJob;
+import used_furniture.core.products.model.DerivativeJobStatus;
+import used_furniture.restapi.products.service.PhotoDerivativeService;
+import used_furniture.restapi.products.service.PhotoSizedSweeper;
+import used_furniture.restapi.products.service.PhotoSweepReport;
+
+/*
+ * Admin / internal controller for the background generation of resized
+ * photo variants.
+ */
+@RestController
+@RequestMapping("/api/photos/derivatives")
+public class PhotoDerivativeController {
+
+  private final PhotoDerivativeService derivativeService;
+  private final ProductsSource productsSource;
+  private final PhotoSizedSweeper sweeper;
+
+  public PhotoDerivativeController(PhotoDerivativeService derivativeService,
+          ProductsSource productsSource,
+          PhotoSizedSweeper sweeper) {
+    this.derivativeService = derivativeService;
+    this.productsSource = productsSource;
+    this.sweeper = sweeper;
+  }
+
+  /*
+   * Progress of a photo: its latest job and which standard sizes exist.
+   */
+  @GetMapping("/{photoId}")
+  public ResponseEntity<DerivativeJobStatusResponse> getStatus(@PathVariable("photoId") long photoId) {
+    Optional<DerivativeJob> job = derivativeService.findLatestJob(photoId);
+    if (job.isEmpty()) {
+      return ResponseEntity.notFound().build();
+    }
+    return ResponseEntity.ok(toResponse(job.get(), true));
+  }
+
+  /*
+   * Queue the standard sizes of an existing photo again.
+   */
+  @PostMapping("/{photoId}")
+  public ResponseEntity<DerivativeJobStatusResponse> enqueue(@PathVariable("photoId") long photoId) {
+    DerivativeJob job = derivativeService.enqueue(photoId);
+    return ResponseEntity.ok(toResponse(job, true));
+  }
+
+  /*
+   * List jobs by status (e.g. FAILED) for admin/debug view.
+   */
+  @GetMapping
+  public ResponseEntity<List<DerivativeJobStatusResponse>> listByStatus(
+          @RequestParam(name = "status", defaultValue = "PENDING") DerivativeJobStatus status,
+          @RequestParam(name = "limit", defaultValue = "20") int limit) {
+
+    List<DerivativeJobStatusResponse> response = derivativeService.findByStatus(status, limit).stream()
+            .map(job -> toResponse(job, false))
+            .collect(Collectors.toList());
+    return ResponseEntity.ok(response);
+  }
+
+  /*
+   * Manually trigger processing of due jobs (for debugging).
+   */
+  @PostMapping("/process-due")
+  public ResponseEntity<String> processDueJobs(
+          @RequestParam(name = "limit", defaultValue = "10") int limit) {
+
+    int processed = derivativeService.processDueJobs(limit);
+    return ResponseEntity.ok("Processed " + processed + " due derivative jobs");
+  }
+
+  /*
+   * Run a sweep of products.photo_sized now and report what it reclaimed.
+   */
+  @PostMapping("/sweep")
+  public ResponseEntity<PhotoSweepReport> sweep() {
+    return ResponseEntity.ok(sweeper.sweep());
+  }
+
+  /*
+   * What the last sweep reclaimed, 404 before the first one.
+   */
+  @GetMapping("/sweep")
+  public ResponseEntity<PhotoSweepReport> lastSweep() {
+    PhotoSweepReport report = sweeper.getLastReport();
+    return report == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(report);
+  }
+
+  private DerivativeJobStatusResponse toResponse(DerivativeJob job, boolean withSizes) {
+    List<PhotoSize> ready = null;
+    List<PhotoSize> missing = null;
+    if (withSizes) {
+      List<PhotoSize> stored = productsSource.getStoredSizes(job.getPhotoId());
+      ready = new ArrayList<>();
+      missing = new ArrayList<>();
+      for (PhotoSize size : derivativeService.getSizes()) {
+        (stored.contains(size) ? ready : missing).add(size);
+      }
+    }
+    return new DerivativeJobStatusResponse(
+            job.getPhotoId(),
+            job.getJobId(),
+            job.getStatus(),
+            job.getAttemptCount(),
+            job.getErrorMessage(),
+            job.getCreatedAt(),
+            job.getCompletedAt(),
+            ready,
+            missing
+    );
+  }
+}
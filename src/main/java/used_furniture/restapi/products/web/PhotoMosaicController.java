@@ -0,0 +1,146 @@
+package used_furniture.restapi.products.web;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.*;
+
+import used_furniture.core.PhotoMosaic;
+import used_furniture.core.PhotoMosaicBuilder;
+import used_furniture.core.ProductFilter;
+import used_furniture.core.ProductSort;
+import used_furniture.core.ProductsSource;
+
+/**
+ * Serves the cover thumbnails of a catalog page as one sprite, e.g.
+ *   GET /product/photo/mosaic?category=3&pageSize=48&width=200&height=200
+ *     -> {"src": ".../product/photo/mosaic/image?category=3&...&v=1c2f...", "tiles": [...]}
+ *   GET /product/photo/mosaic/image?category=3&pageSize=48&width=200&height=200&v=1c2f...
+ *
+ * The page parameters are the ones of /products/page, so the grid asks for
+ * the mosaic of the page it just listed. Like photo URLs, the image URL whose
+ * "v" matches the current signature of the page is cached as immutable; any
+ * other is served with no-cache and an ETag. Sizes whose bucket is too large
+ * to tile are answered with 400, and a saturated resize pool with 503.
+ */
+@Controller
+@RequestMapping("/product/photo/mosaic")
+public class PhotoMosaicController {
+
+  private static final int MAX_PAGE_SIZE = 100;
+
+  private final ProductsSource productsSource;
+  private final PhotoMosaicBuilder mosaicBuilder;
+  private final PhotoUrlBuilder photoUrls;
+
+  public PhotoMosaicController(ProductsSource productsSource, PhotoMosaicBuilder mosaicBuilder,
+          PhotoUrlBuilder photoUrls) {
+    this.productsSource = productsSource;
+    this.mosaicBuilder = mosaicBuilder;
+    this.photoUrls = photoUrls;
+  }
+
+  @RequestMapping(method = RequestMethod.GET)
+  @ResponseBody
+  public ResponseEntity<PhotoMosaicResponse> getMosaic(
+          @RequestParam(name = "sort", defaultValue = "RECEIVED") ProductSort sort,
+          @RequestParam(name = "cursor", required = false) String cursor,
+          @RequestParam(name = "pageSize", defaultValue = "24") int pageSize,
+          @RequestParam(name = "category", required = false) Integer category,
+          @RequestParam(name = "siteVisibleOnly", defaultValue = "false") boolean siteVisibleOnly,
+          @RequestParam(name = "availableOnly", defaultValue = "false") boolean availableOnly,
+          @RequestParam("width") int width,
+          @RequestParam("height") int height) {
+
+    if (!this.mosaicBuilder.supports(width, height)) {
+      return ResponseEntity.badRequest().build();
+    }
+    int boundedPageSize = Math.min(Math.max(pageSize, 1), MAX_PAGE_SIZE);
+    String query = pageQuery(sort, cursor, boundedPageSize, category, siteVisibleOnly, availableOnly, width, height);
+    PhotoMosaic mosaic = mosaic(query, sort, cursor, boundedPageSize, category, siteVisibleOnly, availableOnly, width,
+            height);
+    return ResponseEntity.ok(new PhotoMosaicResponse(this.photoUrls.mosaicUrl(query, mosaic.signature), mosaic));
+  }
+
+  @RequestMapping(path = "/image", method = {RequestMethod.GET, RequestMethod.HEAD})
+  public void getMosaicImage(
+          @RequestParam(name = "sort", defaultValue = "RECEIVED") ProductSort sort,
+          @RequestParam(name = "cursor", required = false) String cursor,
+          @RequestParam(name = "pageSize", defaultValue = "24") int pageSize,
+          @RequestParam(name = "category", required = false) Integer category,
+          @RequestParam(name = "siteVisibleOnly", defaultValue = "false") boolean siteVisibleOnly,
+          @RequestParam(name = "availableOnly", defaultValue = "false") boolean availableOnly,
+          @RequestParam("width") int width,
+          @RequestParam("height") int height,
+          @RequestParam(name = "v", required = false) String requestedVersion,
+          HttpServletRequest request,
+          HttpServletResponse response) throws IOException {
+
+    if (!this.mosaicBuilder.supports(width, height)) {
+      response.sendError(HttpStatus.BAD_REQUEST.value());
+      return;
+    }
+    int boundedPageSize = Math.min(Math.max(pageSize, 1), MAX_PAGE_SIZE);
+    String query = pageQuery(sort, cursor, boundedPageSize, category, siteVisibleOnly, availableOnly, width, height);
+    PhotoMosaic mosaic = mosaic(query, sort, cursor, boundedPageSize, category, siteVisibleOnly, availableOnly, width,
+            height);
+    String etag = EntityTags.quote(mosaic.signature);
+    response.setHeader(HttpHeaders.ETAG, etag);
+    response.setHeader(HttpHeaders.CACHE_CONTROL, mosaic.signature.equals(requestedVersion)
+            ? ProductPhotoController.IMMUTABLE_CACHE_CONTROL : CacheControl.noCache().getHeaderValue());
+    if (EntityTags.matches(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+      response.setStatus(HttpStatus.NOT_MODIFIED.value());
+      return;
+    }
+    byte[] bytes = mosaic.getBytes();
+    response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+    response.setContentLengthLong(bytes.length);
+    if (!"HEAD".equals(request.getMethod())) {
+      response.getOutputStream().write(bytes);
+    }
+  }
+
+  private PhotoMosaic mosaic(String query, ProductSort sort, String cursor, int pageSize, Integer category,
+          boolean siteVisibleOnly, boolean availableOnly, int width, int height) {
+    ProductFilter filter = new ProductFilter(category, siteVisibleOnly, availableOnly);
+    List<Integer> productIds = this.productsSource.getProductsPage(filter, sort, cursor, pageSize)
+            .products.stream()
+            .map(product -> product.product_id)
+            .collect(Collectors.toList());
+    return this.mosaicBuilder.getMosaic(query, productIds, width, height);
+  }
+
+  /*
+   * The page parameters in a fixed order: both the cache key of the page and
+   * the query of the image URL. The page size must already be bounded, so
+   * out-of-range sizes share the key of the page they are served.
+   */
+  private static String pageQuery(ProductSort sort, String cursor, int pageSize, Integer category,
+          boolean siteVisibleOnly, boolean availableOnly, int width, int height) {
+    StringBuilder query = new StringBuilder("sort=").append(sort.name());
+    if (cursor != null && !cursor.isBlank()) {
+      query.append("&cursor=").append(URLEncoder.encode(cursor, StandardCharsets.UTF_8));
+    }
+    query.append("&pageSize=").append(pageSize);
+    if (category != null) {
+      query.append("&category=").append(category);
+    }
+    return query.append("&siteVisibleOnly=").append(siteVisibleOnly)
+            .append("&availableOnly=").append(availableOnly)
+            .append("&width=").append(width)
+            .append("&height=").append(height)
+            .toString();
+  }
+}
@@ -0,0 +1,55 @@
+package used_furniture.restapi.products.web;
+
+import java.util.List;
+import used_furniture.core.PhotoMosaic;
+
+/*
+ * A sprite of the cover thumbnails of a product page: the URL of the sprite
+ * JPEG and where each product's thumbnail is in it, for CSS
+ * background-position.
+ */
+public class PhotoMosaicResponse {
+
+  private String src;
+  private int width;
+  private int height;
+  private int cellWidth;
+  private int cellHeight;
+  private List<PhotoMosaic.Tile> tiles;
+
+  public PhotoMosaicResponse() {
+  }
+
+  public PhotoMosaicResponse(String src, PhotoMosaic mosaic) {
+    this.src = src;
+    this.width = mosaic.width;
+    this.height = mosaic.height;
+    this.cellWidth = mosaic.bucket.width;
+    this.cellHeight = mosaic.bucket.height;
+    this.tiles = mosaic.tiles;
+  }
+
+  public String getSrc() {
+    return src;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getCellWidth() {
+    return cellWidth;
+  }
+
+  public int getCellHeight() {
+    return cellHeight;
+  }
+
+  public List<PhotoMosaic.Tile> getTiles() {
+    return tiles;
+  }
+}
@@ -0,0 +1,46 @@
+package used_furniture.restapi.products.web;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import used_furniture.restapi.products.service.PhotoPrewarmProgress;
+import used_furniture.restapi.products.service.PhotoPrewarmService;
+
+/*
+ * Progress and readiness of the photo pre-warm job. GET /ready answers 503
+ * until the job is warm enough, so it can serve as the readiness probe of a
+ * deploy.
+ */
+@RestController
+@RequestMapping("/api/photos/prewarm")
+public class PhotoPrewarmController {
+
+  private final PhotoPrewarmService prewarmService;
+
+  public PhotoPrewarmController(PhotoPrewarmService prewarmService) {
+    this.prewarmService = prewarmService;
+  }
+
+  @GetMapping
+  public ResponseEntity<PhotoPrewarmProgress> getProgress() {
+    return ResponseEntity.ok(prewarmService.getProgress());
+  }
+
+  /*
+   * Start a run now; 409 if one is already in progress.
+   */
+  @PostMapping
+  public ResponseEntity<PhotoPrewarmProgress> trigger() {
+    boolean started = prewarmService.trigger();
+    return ResponseEntity.status(started ? HttpStatus.ACCEPTED : HttpStatus.CONFLICT)
+            .body(prewarmService.getProgress());
+  }
+
+  @GetMapping("/ready")
+  public ResponseEntity<PhotoPrewarmProgress> ready() {
+    PhotoPrewarmProgress progress = prewarmService.getProgress();
+    return ResponseEntity.status(progress.isReady() ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE)
+            .body(progress);
+  }
+}
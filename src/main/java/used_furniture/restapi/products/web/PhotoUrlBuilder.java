@@ -0,0 +1,61 @@
+package used_furniture.restapi.products.web;
+
+import java.util.Properties;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import used_furniture.core.PhotoVersion;
+
+/**
+ * Builds the public URLs under which {@link ProductPhotoController} serves
+ * photo bytes, e.g.
+ *   https://restapi.casademoveisusados.com/product/photo/42?width=200&height=200&v=9f86d08...
+ *
+ * The base URL comes from "used-furniture.photo.baseUrl" because the
+ * storefront runs on a different host than this API. The "v" parameter is the
+ * content hash of the photo, which lets the controller serve the URL as
+ * immutable.
+ */
+@Component
+public class PhotoUrlBuilder {
+
+  private final String baseUrl;
+
+  public PhotoUrlBuilder(@Qualifier("appProps") Properties appProps) {
+    String configured = appProps.getProperty("used-furniture.photo.baseUrl", "/product/photo");
+    this.baseUrl = configured.endsWith("/") ? configured : configured + "/";
+  }
+
+  /*
+   * URL of the original photo.
+   */
+  public String url(long photoId) {
+    return this.baseUrl + photoId;
+  }
+
+  /*
+   * URL of the original photo, pinned to its current bytes so it can be
+   * cached as immutable.
+   */
+  public String url(PhotoVersion version) {
+    return url(version.photoId) + "?v=" + version.contentHash;
+  }
+
+  /*
+   * URL of the photo resized to width x height, pinned to the current bytes
+   * of the original.
+   */
+  public String url(PhotoVersion version, Integer width, Integer height) {
+    if (width == null && height == null) {
+      return url(version);
+    }
+    return this.baseUrl + version.photoId + "?width=" + width + "&height=" + height + "&v=" + version.contentHash;
+  }
+
+  /*
+   * URL of the cover sprite of a product page, pinned to its current
+   * signature.
+   */
+  public String mosaicUrl(String pageQuery, String signature) {
+    return this.baseUrl + "mosaic/image?" + pageQuery + "&v=" + signature;
+  }
+}
@@ -1,52 +1,301 @@
 package used_furniture.restapi.products.web;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Optional;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
+import used_furniture.core.OffHeapPhotoCache;
+import used_furniture.core.PhotoDiskCache;
+import used_furniture.core.PhotoResizer;
+import used_furniture.core.PhotoSize;
+import used_furniture.core.PhotoVersion;
+import used_furniture.core.ProductsSource;
 import used_furniture.core.products.model.Photo;
 import used_furniture.core.products.repository.PhotoRepository;
 
 /**
  * Serves product photos by photoId, e.g.
- *   GET /product/photo/42
+ *   GET /product/photo/42?v=9f86d08...
+ *   GET /product/photo/42?width=200&height=200&v=9f86d08...
  *
  * This is used both by your frontend and by Facebook (imageBaseUrl).
+ * Resized variants are created on first request and kept in photo_sized.
+ * Requested sizes are snapped to the configured size buckets.
+ * Originals are copied from the database row to the response through a small
+ * buffer instead of being loaded as a byte[].
+ *
+ * URLs whose "v" matches the content hash of the photo are cached as
+ * immutable for a year. Other URLs (no "v", or a photo that was replaced
+ * since) must be revalidated, which is answered with 304 while the ETag still
+ * matches. HEAD and single byte ranges are supported.
+ *
+ * With a disk cache configured, resized photos are written to a local file
+ * once and sent from it: through Tomcat's sendfile when the connector
+ * supports it, otherwise copied through a heap buffer. With an original cache
+ * configured, originals are kept off-heap after the first request and
+ * written to the response from there.
  */
 @Controller
 @RequestMapping("/product/photo")
 public class ProductPhotoController {
 
+  /**
+   * Dimensions of the served image. Requested sizes are snapped to a size
+   * bucket and fitted inside it, so they can differ from width x height.
+   */
+  static final String SERVED_WIDTH_HEADER = "X-Photo-Width";
+  static final String SERVED_HEIGHT_HEADER = "X-Photo-Height";
+
+  static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+  private static final int COPY_BUFFER_SIZE = 8192;
+
+  /*
+   * Request attributes of Tomcat's NIO/APR connectors, see
+   * org.apache.catalina.Globals.
+   */
+  private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
   private final PhotoRepository photoRepository;
+  private final ProductsSource productsSource;
+  private final PhotoDiskCache diskCache;
+  private final OffHeapPhotoCache originalCache;
 
-  public ProductPhotoController(PhotoRepository photoRepository) {
+  public ProductPhotoController(PhotoRepository photoRepository, ProductsSource productsSource,
+          @Nullable PhotoDiskCache diskCache, @Nullable OffHeapPhotoCache originalCache) {
     this.photoRepository = photoRepository;
+    this.productsSource = productsSource;
+    this.diskCache = diskCache;
+    this.originalCache = originalCache;
   }
 
-  @GetMapping("/{photoId}")
-  public ResponseEntity<byte[]> getPhoto(@PathVariable("photoId") long photoId) {
+  @RequestMapping(path = "/{photoId}", method = {RequestMethod.GET, RequestMethod.HEAD})
+  public void getPhoto(@PathVariable("photoId") long photoId,
+          @RequestParam(name = "width", required = false) Integer width,
+          @RequestParam(name = "height", required = false) Integer height,
+          @RequestParam(name = "v", required = false) String requestedVersion,
+          HttpServletRequest request,
+          HttpServletResponse response) throws IOException {
 
-    Optional<Photo> photoOpt = photoRepository.findById(photoId);
-    if (photoOpt.isEmpty()) {
-      return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+    if ((width == null) != (height == null)) {
+      response.sendError(HttpStatus.BAD_REQUEST.value());
+      return;
     }
 
-    Photo photo = photoOpt.get();
-    byte[] bytes = photo.getBytes();
+    Optional<PhotoVersion> versionOpt = photoRepository.findVersionById(photoId);
+    if (versionOpt.isEmpty()) {
+      response.sendError(HttpStatus.NOT_FOUND.value());
+      return;
+    }
+    PhotoVersion version = versionOpt.get();
+    boolean immutable = version.contentHash.equals(requestedVersion);
+    boolean head = "HEAD".equals(request.getMethod());
+
+    if (width == null) {
+      String etag = EntityTags.quote(version.contentHash);
+      ByteRange range = prepare(request, response, etag, immutable, version.size);
+      if (range == null || head) {
+        return;
+      }
+      if (originalCache != null) {
+        try (OffHeapPhotoCache.Handle cached = originalCache.acquire(photoId, version.contentHash)) {
+          if (cached != null) {
+            cached.writeTo(Channels.newChannel(response.getOutputStream()), range.start, range.length());
+            return;
+          }
+        }
+      }
+      Optional<Long> written = photoRepository.streamById(photoId, version.contentHash, (id, productId, size, in) -> {
+        if (originalCache != null && size == version.size) {
+          try (OffHeapPhotoCache.Handle loaded = originalCache.load(photoId, version.contentHash, size, in)) {
+            if (loaded != null) {
+              return loaded.writeTo(Channels.newChannel(response.getOutputStream()), range.start, range.length());
+            }
+          }
+        }
+        in.skipNBytes(range.start);
+        return copy(in, response.getOutputStream(), range.length());
+      });
+      if (written.isEmpty() && !response.isCommitted()) {
+        // The photo was removed or replaced after its version was read, so
+        // the length and ETag already set describe bytes that are gone.
+        response.reset();
+        response.sendError(HttpStatus.NOT_FOUND.value());
+      }
+      return;
+    }
+
+    // A resized photo is determined by its original and its bucket, so
+    // revalidations are answered before anything is loaded or resized.
+    PhotoSize bucket = productsSource.snapSize(width, height);
+    String etag = EntityTags.quote(version.contentHash + "-" + bucket);
+    if (notModified(request, response, etag, immutable)) {
+      return;
+    }
+
+    PhotoDiskCache.Entry entry = null;
+    byte[] bytes = null;
+    if (diskCache != null) {
+      entry = diskCache.get(photoId, bucket, version.contentHash);
+      if (entry != null) {
+        productsSource.recordServed(bucket.forPhoto(photoId, version.contentHash));
+      } else {
+        bytes = resized(version, width, height);
+        if (bytes == null) {
+          response.sendError(HttpStatus.NOT_FOUND.value());
+          return;
+        }
+        // Null when the photo is larger than the whole cache.
+        entry = diskCache.put(photoId, bucket, version.contentHash, bytes);
+      }
+    }
+    if (entry != null) {
+      response.setIntHeader(SERVED_WIDTH_HEADER, entry.served.width);
+      response.setIntHeader(SERVED_HEIGHT_HEADER, entry.served.height);
+      ByteRange range = prepare(request, response, etag, immutable, entry.size);
+      if (range == null || head) {
+        return;
+      }
+      sendFile(request, response, entry, range);
+      return;
+    }
+
+    if (bytes == null) {
+      bytes = resized(version, width, height);
+      if (bytes == null) {
+        response.sendError(HttpStatus.NOT_FOUND.value());
+        return;
+      }
+    }
+    PhotoSize served = PhotoResizer.readSize(bytes);
+    response.setIntHeader(SERVED_WIDTH_HEADER, served.width);
+    response.setIntHeader(SERVED_HEIGHT_HEADER, served.height);
+    ByteRange range = prepare(request, response, etag, immutable, bytes.length);
+    if (range == null || head) {
+      return;
+    }
+    response.getOutputStream().write(bytes, (int) range.start, (int) range.length());
+  }
+
+  private byte[] resized(PhotoVersion version, int width, int height) {
+    Optional<Photo> photoOpt = productsSource.getPhoto(version, width, height);
+    return photoOpt.isEmpty() ? null : photoOpt.get().getBytes();
+  }
+
+  /*
+   * Hands the file to the connector when it can sendfile, so the bytes never
+   * enter the JVM. The connector opens the file after this method returns;
+   * PhotoDiskCache deletes evicted files only after a delay, so it is still
+   * there. Otherwise the file is copied to the servlet stream through a heap
+   * buffer: Channels.newChannel of a ServletOutputStream is never a socket
+   * channel, so transferTo cannot hand the copy to the kernel.
+   */
+  private static void sendFile(HttpServletRequest request, HttpServletResponse response,
+          PhotoDiskCache.Entry entry, ByteRange range) throws IOException {
+    if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+      request.setAttribute(SENDFILE_FILENAME_ATTR, entry.path.toString());
+      request.setAttribute(SENDFILE_START_ATTR, range.start);
+      request.setAttribute(SENDFILE_END_ATTR, range.end + 1);
+      return;
+    }
+    try (FileChannel file = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+      WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+      long position = range.start;
+      long remaining = range.length();
+      while (remaining > 0) {
+        long sent = file.transferTo(position, remaining, out);
+        if (sent <= 0) {
+          break;
+        }
+        position += sent;
+        remaining -= sent;
+      }
+    }
+  }
+
+  /*
+   * Writes the caching headers and answers conditional and unsatisfiable
+   * requests. Returns the range of the body to send, or null when the
+   * response is already complete.
+   */
+  private ByteRange prepare(HttpServletRequest request, HttpServletResponse response, String etag,
+          boolean immutable, long size) throws IOException {
+
+    if (notModified(request, response, etag, immutable)) {
+      return null;
+    }
+
+    ByteRange range = null;
+    String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+    if (ifRange == null || ifRange.trim().equals(etag)) {
+      range = ByteRange.parse(request.getHeader(HttpHeaders.RANGE), size);
+    }
+    if (range != null && !range.isSatisfiable()) {
+      response.setHeader(HttpHeaders.CONTENT_RANGE, range.contentRange());
+      response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+      return null;
+    }
 
     // If all your stored photos are JPEGs, this is fine.
     // If you later store different formats, you can extend Photo with a MIME type field.
-    HttpHeaders headers = new HttpHeaders();
-    headers.setContentType(MediaType.IMAGE_JPEG);
-    headers.setContentLength(bytes.length);
-    headers.setCacheControl(CacheControl.noCache().getHeaderValue());
+    response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+    if (range == null) {
+      response.setContentLengthLong(size);
+      return ByteRange.parse("bytes=0-", size);
+    }
+    response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+    response.setHeader(HttpHeaders.CONTENT_RANGE, range.contentRange());
+    response.setContentLengthLong(range.length());
+    return range;
+  }
 
-    return new ResponseEntity<>(bytes, headers, HttpStatus.OK);
+  /*
+   * Writes the caching headers and answers 304 when If-None-Match matches
+   * the ETag. Returns true when the response is complete.
+   */
+  private static boolean notModified(HttpServletRequest request, HttpServletResponse response, String etag,
+          boolean immutable) {
+    response.setHeader(HttpHeaders.ETAG, etag);
+    response.setHeader(HttpHeaders.CACHE_CONTROL,
+            immutable ? IMMUTABLE_CACHE_CONTROL : CacheControl.noCache().getHeaderValue());
+    response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+    if (EntityTags.matches(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+      response.setStatus(HttpStatus.NOT_MODIFIED.value());
+      return true;
+    }
+    return false;
+  }
+
+  private static long copy(InputStream in, OutputStream out, long count) throws IOException {
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    long remaining = count;
+    while (remaining > 0) {
+      int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (read < 0) {
+        break;
+      }
+      out.write(buffer, 0, read);
+      remaining -= read;
+    }
+    return count - remaining;
   }
 }
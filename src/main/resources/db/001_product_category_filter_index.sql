@@ -0,0 +1,4 @@
+-- Supports ProductsSource.getProducts(ProductFilter), which filters
+-- products.product by category and then by the visibility/availability flags.
+create index if not exists product_category_visible_available_idx
+    on products.product (category, site_visible, available);
@@ -0,0 +1,8 @@
+-- Keyset pagination of the catalog (ProductsSource.getProductsPage).
+-- Each index matches one ProductSort order, including the product_id
+-- tie-breaker, so a page is an index range scan bounded by "limit".
+create index if not exists product_received_keyset_idx
+    on products.product (date_recieved desc, product_id desc);
+
+create index if not exists product_price_keyset_idx
+    on products.product (price, product_id);
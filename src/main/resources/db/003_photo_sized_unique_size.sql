@@ -0,0 +1,12 @@
+-- One row per resized variant. ProductsSource.persistResizedPhoto relies on
+-- this constraint ("on conflict do nothing") when two servers resize the same
+-- photo at the same time.
+delete from products.photo_sized a
+ using products.photo_sized b
+ where a.photo_id = b.photo_id
+   and a.width = b.width
+   and a.height = b.height
+   and a.ctid > b.ctid;
+
+create unique index if not exists photo_sized_photo_size_uidx
+    on products.photo_sized (photo_id, width, height);
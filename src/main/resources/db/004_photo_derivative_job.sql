@@ -0,0 +1,19 @@
+-- Durable queue of derivative jobs: ProductsStore.addPhoto enqueues one job
+-- per uploaded photo and PhotoDerivativeService generates its standard sizes.
+create table if not exists products.photo_derivative_job (
+    job_id          bigserial primary key,
+    photo_id        bigint not null,
+    status          text not null default 'PENDING',
+    attempt_count   integer not null default 0,
+    error_message   text,
+    created_at      timestamptz not null default now(),
+    next_attempt_at timestamptz not null default now(),
+    last_attempt_at timestamptz,
+    completed_at    timestamptz
+);
+
+create index if not exists photo_derivative_job_due_idx
+    on products.photo_derivative_job (status, next_attempt_at);
+
+create index if not exists photo_derivative_job_photo_idx
+    on products.photo_derivative_job (photo_id);
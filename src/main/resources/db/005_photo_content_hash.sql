@@ -0,0 +1,10 @@
+-- Hex SHA-256 of the photo bytes. Photo URLs are versioned by it
+-- (?v=<hash>) so they can be cached as immutable; ProductsStore sets it on
+-- every insert and update of products.photo.
+alter table products.photo add column if not exists content_hash text;
+
+update products.photo
+   set content_hash = encode(sha256(photo), 'hex')
+ where content_hash is null;
+
+alter table products.photo alter column content_hash set not null;
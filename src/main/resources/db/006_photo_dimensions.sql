@@ -0,0 +1,5 @@
+-- Pixel dimensions of the original photo, read from the image header by
+-- ProductsStore on insert and update. Rows stored before this script are
+-- filled in by the derivative job, see 008 and 016.
+alter table products.photo add column if not exists width integer;
+alter table products.photo add column if not exists height integer;
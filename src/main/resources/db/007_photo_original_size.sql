@@ -0,0 +1,11 @@
+-- What an upload looked like before PhotoNormalizer downsized and re-encoded
+-- it. The stored size is octet_length(photo).
+alter table products.photo add column if not exists original_size bigint;
+alter table products.photo add column if not exists original_width integer;
+alter table products.photo add column if not exists original_height integer;
+
+update products.photo
+   set original_size = octet_length(photo),
+       original_width = width,
+       original_height = height
+ where original_size is null;
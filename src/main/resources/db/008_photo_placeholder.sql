@@ -0,0 +1,14 @@
+-- BlurHash of each photo, sent inline in photo listings so the front end can
+-- paint a preview before the image loads. Set at ingest when the upload is
+-- normalized, otherwise by the derivative job.
+alter table products.photo add column if not exists placeholder text;
+
+-- Let the derivative job fill in photos stored before this column existed.
+insert into products.photo_derivative_job (photo_id)
+select p.photo_id
+  from products.photo p
+ where p.placeholder is null
+   and not exists (select 1
+                     from products.photo_derivative_job j
+                    where j.photo_id = p.photo_id
+                      and j.status in ('PENDING', 'RUNNING'));
@@ -0,0 +1,10 @@
+-- Display order of the photos of a product; the first one is the cover shown
+-- in product grids (GET /photos/covers). Photos without an order, including
+-- every photo stored before this column, follow in upload (photo_id) order,
+-- so existing rows need no backfill.
+alter table products.photo add column if not exists sort_order integer;
+
+-- Serves "distinct on (product_id) ... order by product_id, sort_order nulls
+-- last, photo_id" without sorting the photo table.
+create index if not exists photo_product_order_idx
+    on products.photo (product_id, sort_order nulls last, photo_id);
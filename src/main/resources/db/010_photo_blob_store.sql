@@ -0,0 +1,29 @@
+-- Photo bytes can live in a PhotoBlobStore outside of Postgres, addressed by
+-- the hex SHA-256 of the content. Such rows have a null photo column and are
+-- found by content_hash; byte_size keeps their length queryable without
+-- reading them.
+alter table products.photo add column if not exists byte_size bigint;
+
+update products.photo
+   set byte_size = octet_length(photo)
+ where byte_size is null;
+
+alter table products.photo alter column byte_size set not null;
+alter table products.photo alter column photo drop not null;
+
+alter table products.photo_sized add column if not exists content_hash text;
+alter table products.photo_sized add column if not exists byte_size bigint;
+
+update products.photo_sized
+   set content_hash = encode(sha256(photo), 'hex'),
+       byte_size = octet_length(photo)
+ where content_hash is null;
+
+alter table products.photo_sized alter column content_hash set not null;
+alter table products.photo_sized alter column byte_size set not null;
+alter table products.photo_sized alter column photo drop not null;
+
+-- Blobs are shared by identical photos; a blob may only be deleted once no
+-- row references its hash any more.
+create index if not exists photo_content_hash_idx on products.photo (content_hash);
+create index if not exists photo_sized_content_hash_idx on products.photo_sized (content_hash);
@@ -0,0 +1,8 @@
+-- When a resized photo was last served, flushed in batches by the
+-- derivative sweeper. Once products.photo_sized is over its byte budget the
+-- least recently served rows are deleted first; they are resized again on
+-- their next request.
+alter table products.photo_sized add column if not exists last_served_at timestamptz not null default now();
+
+create index if not exists photo_sized_last_served_idx
+    on products.photo_sized (last_served_at, photo_id, width, height);
@@ -0,0 +1,7 @@
+-- Products without a date_recieved sort after every dated product in the
+-- RECEIVED order. getProductsPage compares coalesce(date_recieved, sentinel)
+-- so the keyset has no NULLs; this index matches that expression exactly.
+create index if not exists product_received_coalesced_keyset_idx
+    on products.product ((coalesce(date_recieved, '0001-01-01 00:00:00+00')) desc, product_id desc);
+
+drop index if exists products.product_received_keyset_idx;
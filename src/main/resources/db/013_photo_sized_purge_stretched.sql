@@ -0,0 +1,14 @@
+-- Rows of products.photo_sized are keyed by size bucket. Before fit sizing a
+-- bucket row held the photo stretched to the bucket; with fit sizing the
+-- same key holds the photo scaled inside it, never enlarged, and a row does
+-- not record which of the two it holds. Delete every row where the two
+-- differ, i.e. where PhotoSizePolicy.renderedSize of the photo is not the
+-- bucket itself, and rows of photos whose dimensions are unknown. They are
+-- resized again on their next request.
+delete from products.photo_sized s
+ using products.photo p
+ where p.photo_id = s.photo_id
+   and (p.width is null
+     or p.height is null
+     or greatest(1, round(p.width * least(1.0, s.width::numeric / p.width, s.height::numeric / p.height))) <> s.width
+     or greatest(1, round(p.height * least(1.0, s.width::numeric / p.width, s.height::numeric / p.height))) <> s.height);
@@ -0,0 +1,22 @@
+-- Resized photos are keyed by the content hash of the original they were
+-- rendered from. A resize that was still running when its original was
+-- replaced stores its row under the old hash, where no request for the new
+-- version can find it; the derivative sweeper deletes it later.
+alter table products.photo_sized add column if not exists source_hash text;
+
+delete from products.photo_sized s
+ where s.source_hash is null
+   and not exists (select 1 from products.photo p where p.photo_id = s.photo_id);
+
+update products.photo_sized s
+   set source_hash = p.content_hash
+  from products.photo p
+ where p.photo_id = s.photo_id
+   and s.source_hash is null;
+
+alter table products.photo_sized alter column source_hash set not null;
+
+create unique index if not exists photo_sized_photo_source_size_uidx
+    on products.photo_sized (photo_id, source_hash, width, height);
+
+drop index if exists products.photo_sized_photo_size_uidx;
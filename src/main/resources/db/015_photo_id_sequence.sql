@@ -0,0 +1,9 @@
+-- Photo ids come from a sequence, drawn inside the transaction that inserts
+-- the photo, so several photos uploaded in one transaction and concurrent
+-- uploads never get the same id.
+create sequence if not exists products.photo_id_seq owned by products.photo.photo_id;
+
+select setval('products.photo_id_seq', greatest(coalesce(max(photo_id), 0), 1), max(photo_id) is not null)
+  from products.photo;
+
+alter table products.photo alter column photo_id set default nextval('products.photo_id_seq');
@@ -0,0 +1,10 @@
+-- Let the derivative job read the dimensions of photos stored before 006,
+-- including those whose job already finished before it did so.
+insert into products.photo_derivative_job (photo_id)
+select p.photo_id
+  from products.photo p
+ where (p.width is null or p.height is null)
+   and not exists (select 1
+                     from products.photo_derivative_job j
+                    where j.photo_id = p.photo_id
+                      and j.status in ('PENDING', 'RUNNING'));
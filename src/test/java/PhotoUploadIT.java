@@ -0,0 +1,109 @@
+
+import common.db.DbConnection;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import used_furniture.core.PhotoUpload;
+import used_furniture.core.ProductsSource;
+import used_furniture.core.ProductsStore;
+import used_furniture.core.products.model.Product;
+import used_furniture.restapi.ProductServlet;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Several photos uploaded in one request are stored in one transaction, so
+ * each needs its own id from within that transaction.
+ *
+ * @author rmarq
+ */
+public class PhotoUploadIT extends BaseIT {
+
+  private ProductsSource source;
+  private ProductsStore store;
+  private MockMvc mockMvc;
+  private int productId;
+
+  @Before
+  public void setUp() {
+    DbConnection conn = this.getDbConnection();
+    this.source = new ProductsSource(conn);
+    this.store = new ProductsStore(conn, this.source);
+    ProductServlet servlet = new ProductServlet();
+    ReflectionTestUtils.setField(servlet, "source", this.source);
+    ReflectionTestUtils.setField(servlet, "store", this.store);
+    this.mockMvc = MockMvcBuilders.standaloneSetup(servlet).build();
+    this.productId = this.store.addProduct(new Product( //
+            -1, "", "", true, //
+            ZonedDateTime.now(), null, 0, null, 0, 0, 0, 0, false, false));
+  }
+
+  @After
+  public void tearDown() {
+    List<Long> photoIds = this.source.getPhotoIds(Arrays.asList(this.productId)).get(this.productId);
+    if (photoIds != null) {
+      photoIds.forEach(this.store::removePhoto);
+    }
+    this.store.removeProduct(this.productId);
+  }
+
+  @Test
+  public void test_upload_several_photos_in_one_request() throws Exception {
+    byte[] sofa = resource("/test-images/sofa-small.jpg");
+    this.mockMvc.perform(multipart("/photos/upload")
+            .file(new MockMultipartFile("photos", "sofa.jpg", "image/jpeg", sofa))
+            .file(new MockMultipartFile("photos", "red.jpg", "image/jpeg", jpeg(0xff0000)))
+            .file(new MockMultipartFile("photos", "blue.jpg", "image/jpeg", jpeg(0x0000ff)))
+            .param("productId", String.valueOf(this.productId)))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.length()").value(3));
+
+    Map<Integer, List<Long>> photoIds = this.source.getPhotoIds(Arrays.asList(this.productId));
+    List<Long> stored = photoIds.get(this.productId);
+    Assert.assertEquals(3, stored.size());
+    Assert.assertEquals(3, stored.stream().distinct().count());
+  }
+
+  @Test
+  public void test_add_photos_returns_distinct_ids() throws IOException {
+    List<Long> photoIds = this.store.addPhotos(this.productId,
+            Arrays.asList(PhotoUpload.of(jpeg(0x00ff00)), PhotoUpload.of(jpeg(0x00ff00))));
+    Assert.assertEquals(2, photoIds.size());
+    Assert.assertNotEquals(photoIds.get(0), photoIds.get(1));
+    Assert.assertEquals(photoIds, this.source.getPhotoIds(Arrays.asList(this.productId)).get(this.productId));
+  }
+
+  private byte[] resource(String name) throws IOException {
+    try (InputStream in = getClass().getResourceAsStream(name)) {
+      return in.readAllBytes();
+    }
+  }
+
+  private static byte[] jpeg(int rgb) throws IOException {
+    BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        image.setRGB(x, y, rgb);
+      }
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpeg", out);
+    return out.toByteArray();
+  }
+}
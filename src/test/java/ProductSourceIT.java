@@ -1,4 +1,3 @@
-
 import common.db.DbConnection;
 import java.util.Arrays;
 import java.util.List;
@@ -18,7 +17,8 @@ public class ProductSourceIT extends BaseIT {
     DbConnection conn = this.getDbConnection();
     ProductsSource service = new ProductsSource(conn); 
     List<Integer> productIds = Arrays.asList(28);
-    service.getPhotos(productIds,  50, 50); 
+    service.getPhotoIds(productIds).values().forEach(photoIds -> photoIds
+            .forEach(photoId -> service.getPhoto(photoId, 50, 50))); 
   }
 
 }
@@ -1,8 +1,15 @@
 
 import common.db.DbConnection;
 import java.time.ZonedDateTime;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import org.junit.Assert;
 import org.junit.Test;
+import used_furniture.core.CatalogSnapshot;
+import used_furniture.core.ProductFilter;
+import used_furniture.core.ProductPage;
+import used_furniture.core.ProductSort;
 import used_furniture.core.products.model.Product;
 import used_furniture.core.ProductsSource;
 import used_furniture.core.ProductsStore;
@@ -41,5 +48,36 @@ public class ProductsSourceIT extends BaseIT {
     System.out.println("d = " + newProductId);
   }
 
+  @Test
+  public void test_catalog_snapshot_refreshed_on_write() {
+    DbConnection conn = this.getDbConnection();
+    ProductsSource source = new ProductsSource(conn);
+    ProductsStore store = new ProductsStore(conn, source);
+    CatalogSnapshot before = source.getCatalog();
+    Product product = new Product( //
+            -1, "", "", true, //
+            ZonedDateTime.now(), null, 0, null, 0, 0, 0, 0, false, false);
+    int newProductId = store.addProduct(product);
+    CatalogSnapshot after = source.getCatalog();
+    store.removeProduct(newProductId);
+    Assert.assertTrue(after.getVersion() > before.getVersion());
+    Assert.assertTrue(after.getProducts(false).stream().anyMatch(p -> p.product_id == newProductId));
+    Assert.assertTrue(source.getProducts(false).stream().noneMatch(p -> p.product_id == newProductId));
+  }
+
+  @Test
+  public void test_keyset_pages_cover_filtered_catalog() {
+    DbConnection conn = this.getDbConnection();
+    ProductsSource source = new ProductsSource(conn);
+    ProductFilter filter = new ProductFilter(null, true, false);
+    Set<Integer> seen = new HashSet<>();
+    String cursor = null;
+    do {
+      ProductPage page = source.getProductsPage(filter, ProductSort.RECEIVED, cursor, 5);
+      page.products.forEach(p -> Assert.assertTrue(seen.add(p.product_id)));
+      cursor = page.nextCursor;
+    } while (cursor != null);
+    Assert.assertEquals(source.getProducts(filter).size(), seen.size());
+  }
 
 }
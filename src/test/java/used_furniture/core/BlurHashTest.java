@@ -0,0 +1,60 @@
+package used_furniture.core;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Expected hashes were computed with a port of the reference C encoder
+ * (https://github.com/woltapp/blurhash).
+ *
+ * @author rmarq
+ */
+public class BlurHashTest {
+
+  private static final int WIDTH = 32;
+  private static final int HEIGHT = 24;
+
+  @Test
+  public void gradient() {
+    BufferedImage image = image((x, y) -> new int[]{(x * 8) & 0xff, (y * 10) & 0xff, ((x + y) * 4) & 0xff});
+    assertEquals("LxH27b2kwzX5mAWYjuf7gKfkfQfj", BlurHash.encode(image, 4, 3));
+    assertEquals("00H27b", BlurHash.encode(image, 1, 1));
+  }
+
+  @Test
+  public void quadrants() {
+    BufferedImage image = image((x, y) -> (x < WIDTH / 2) == (y < HEIGHT / 2)
+            ? new int[]{200, 30, 30}
+            : new int[]{20, 60, 180});
+    assertEquals("LbG=JaspfQspsq{[s9J;fQs8jsWr", BlurHash.encode(image, 4, 3));
+  }
+
+  @Test
+  public void lengthFollowsComponents() {
+    BufferedImage image = image((x, y) -> new int[]{x, y, 0});
+    assertEquals(4 + 2 * 9 * 9, BlurHash.encode(image, 9, 9).length());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTooManyComponents() {
+    BlurHash.encode(image((x, y) -> new int[]{0, 0, 0}), 10, 3);
+  }
+
+  private interface Pixels {
+
+    int[] at(int x, int y);
+  }
+
+  private static BufferedImage image(Pixels pixels) {
+    BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        int[] rgb = pixels.at(x, y);
+        image.setRGB(x, y, rgb[0] << 16 | rgb[1] << 8 | rgb[2]);
+      }
+    }
+    return image;
+  }
+}
@@ -0,0 +1,127 @@
+package used_furniture.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author rmarq
+ */
+public class FileSystemPhotoBlobStoreTest {
+
+  private static final byte[] CONTENT = {1, 2, 3, 4, 5};
+  private static final String CONTENT_HASH = "74f81fe167d99b4cb41d6d0ccda82278caee9f3e2f25d5e5a3936ff3dcec60d0";
+
+  private Path root;
+  private FileSystemPhotoBlobStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    root = Files.createTempDirectory("blobs");
+    store = new FileSystemPhotoBlobStore(root);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(root)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Test
+  public void storesContentUnderItsHash() throws IOException {
+    PhotoBlobStore.Blob blob = store.put(CONTENT);
+    assertEquals(CONTENT_HASH, blob.hash);
+    assertEquals(CONTENT.length, blob.size);
+    assertEquals(root.resolve("74").resolve("f8").resolve(CONTENT_HASH), store.path(blob.hash));
+    assertArrayEquals(CONTENT, store.read(blob.hash));
+    try (InputStream in = store.open(blob.hash)) {
+      assertArrayEquals(CONTENT, in.readAllBytes());
+    }
+  }
+
+  @Test
+  public void identicalContentIsStoredOnce() throws IOException {
+    PhotoBlobStore.Blob first = store.put(CONTENT);
+    PhotoBlobStore.Blob second = store.put(new ByteArrayInputStream(CONTENT.clone()));
+    assertEquals(first.hash, second.hash);
+    assertEquals(1, blobFiles());
+    assertFalse(first.hash.equals(store.put(new byte[]{9}).hash));
+    assertEquals(2, blobFiles());
+    assertEquals(0, tempFiles());
+  }
+
+  @Test
+  public void dedupeRefreshesTheBlob() throws IOException {
+    PhotoBlobStore.Blob blob = store.put(CONTENT);
+    Instant idleSince = Instant.now().minusSeconds(60);
+    age(blob.hash, 3600);
+    store.put(CONTENT);
+    assertFalse(store.deleteIfIdle(blob.hash, idleSince));
+    assertTrue(store.exists(blob.hash));
+  }
+
+  @Test
+  public void deletesOnlyIdleBlobs() throws IOException {
+    PhotoBlobStore.Blob blob = store.put(CONTENT);
+    Instant idleSince = Instant.now().minusSeconds(60);
+    assertFalse(store.deleteIfIdle(blob.hash, idleSince));
+    assertTrue(store.exists(blob.hash));
+
+    age(blob.hash, 3600);
+    assertTrue(store.deleteIfIdle(blob.hash, idleSince));
+    assertFalse(store.exists(blob.hash));
+    assertFalse(store.deleteIfIdle(blob.hash, idleSince));
+    assertEquals(0, tempFiles());
+  }
+
+  @Test
+  public void listsIdleBlobs() throws IOException {
+    PhotoBlobStore.Blob idle = store.put(CONTENT);
+    store.put(new byte[]{9});
+    age(idle.hash, 3600);
+    try (Stream<String> hashes = store.listIdle(Instant.now().minusSeconds(60))) {
+      assertEquals(List.of(idle.hash), hashes.collect(Collectors.toList()));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsPathsOutsideTheRoot() throws IOException {
+    store.read("../../etc/passwd");
+  }
+
+  private void age(String hash, long seconds) throws IOException {
+    Files.setLastModifiedTime(store.path(hash), FileTime.from(Instant.now().minusSeconds(seconds)));
+  }
+
+  private long tempFiles() throws IOException {
+    try (Stream<Path> files = Files.list(root.resolve("tmp"))) {
+      return files.count();
+    }
+  }
+
+  private long blobFiles() throws IOException {
+    try (Stream<Path> files = Files.walk(root)) {
+      return files.filter(Files::isRegularFile).filter(file -> !file.startsWith(root.resolve("tmp"))).count();
+    }
+  }
+}
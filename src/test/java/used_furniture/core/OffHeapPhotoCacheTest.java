@@ -0,0 +1,153 @@
+package used_furniture.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * A single segment of four 1 KB blocks, so which entry the clock picks is
+ * predictable.
+ *
+ * @author rmarq
+ */
+public class OffHeapPhotoCacheTest {
+
+  private static final int BLOCK = 1024;
+
+  private final OffHeapPhotoCache cache = new OffHeapPhotoCache(4 * BLOCK, 1, BLOCK);
+
+  @Test
+  public void servesWhatWasLoaded() throws IOException {
+    byte[] photo = photo(2500, 1);
+    load(1, "v1", photo).close();
+    try (OffHeapPhotoCache.Handle handle = cache.acquire(1, "v1")) {
+      assertEquals(photo.length, handle.size());
+      assertArrayEquals(photo, read(handle, 0, photo.length));
+      // Spans the first block boundary and ends in the second.
+      assertArrayEquals(Arrays.copyOfRange(photo, 1000, 2100), read(handle, 1000, 1100));
+    }
+    assertNull(cache.acquire(1, "v2"));
+    assertNull(cache.acquire(2, "v1"));
+    assertEquals(1, cache.getStats().hits);
+    assertEquals(2, cache.getStats().misses);
+    assertEquals(3 * BLOCK, cache.getStats().usedBytes);
+  }
+
+  @Test
+  public void clockSparesEntriesReadSinceItsLastPass() throws IOException {
+    for (long photoId = 1; photoId <= 4; photoId++) {
+      load(photoId, "v", photo(BLOCK, (int) photoId)).close();
+    }
+    cache.acquire(1, "v").close();
+    load(5, "v", photo(BLOCK, 5)).close();
+
+    assertNull(cache.acquire(2, "v"));
+    for (long photoId : new long[]{1, 3, 4, 5}) {
+      OffHeapPhotoCache.Handle handle = cache.acquire(photoId, "v");
+      assertNotNull("photo " + photoId, handle);
+      handle.close();
+    }
+    assertEquals(1, cache.getStats().evictions);
+  }
+
+  @Test
+  public void pinnedEntriesAreNeverEvicted() throws IOException {
+    byte[] pinnedPhoto = photo(2 * BLOCK, 1);
+    try (OffHeapPhotoCache.Handle pinned = load(1, "v", pinnedPhoto)) {
+      load(2, "v", photo(2 * BLOCK, 2)).close();
+      load(3, "v", photo(2 * BLOCK, 3)).close();
+      assertNull(cache.acquire(2, "v"));
+
+      ByteArrayInputStream in = new ByteArrayInputStream(photo(4 * BLOCK, 4));
+      assertNull(cache.load(4, "v", 4 * BLOCK, in));
+      assertEquals("the stream is left for the caller", 4 * BLOCK, in.available());
+      assertEquals(1, cache.getStats().rejections);
+      assertArrayEquals(pinnedPhoto, read(pinned, 0, pinnedPhoto.length));
+    }
+  }
+
+  @Test
+  public void replacedEntryKeepsItsBlocksUntilUnpinned() throws IOException {
+    byte[] oldPhoto = photo(BLOCK, 1);
+    byte[] newPhoto = photo(2 * BLOCK, 2);
+    OffHeapPhotoCache.Handle old = load(1, "old", oldPhoto);
+    load(1, "new", newPhoto).close();
+
+    assertNull(cache.acquire(1, "old"));
+    try (OffHeapPhotoCache.Handle current = cache.acquire(1, "new")) {
+      assertArrayEquals(newPhoto, read(current, 0, newPhoto.length));
+    }
+    assertArrayEquals(oldPhoto, read(old, 0, oldPhoto.length));
+    assertEquals(3 * BLOCK, cache.getStats().usedBytes);
+    assertEquals(newPhoto.length, cache.getStats().bytes);
+
+    old.close();
+    old.close();
+    assertEquals(2 * BLOCK, cache.getStats().usedBytes);
+    assertEquals(1, cache.getStats().entries);
+  }
+
+  @Test
+  public void invalidatedEntryKeepsItsBlocksUntilUnpinned() throws IOException {
+    byte[] photo = photo(BLOCK, 1);
+    try (OffHeapPhotoCache.Handle handle = load(1, "v", photo)) {
+      cache.invalidate(1);
+      assertNull(cache.acquire(1, "v"));
+      assertArrayEquals(photo, read(handle, 0, photo.length));
+      assertEquals(BLOCK, cache.getStats().usedBytes);
+    }
+    assertEquals(0, cache.getStats().usedBytes);
+  }
+
+  @Test
+  public void rejectsPhotosLargerThanASegment() throws IOException {
+    assertFalse(cache.admits(4 * BLOCK + 1));
+    assertTrue(cache.admits(4 * BLOCK));
+    assertNull(cache.load(1, "v", 4 * BLOCK + 1, new ByteArrayInputStream(photo(4 * BLOCK + 1, 1))));
+    assertEquals(1, cache.getStats().rejections);
+  }
+
+  @Test
+  public void shortStreamGivesItsBlocksBack() {
+    try {
+      cache.load(1, "v", 2 * BLOCK, new ByteArrayInputStream(photo(BLOCK, 1)));
+      fail("expected EOFException");
+    } catch (IOException ex) {
+      assertTrue(ex instanceof EOFException);
+    }
+    assertNull(cache.acquire(1, "v"));
+    assertEquals(0, cache.getStats().usedBytes);
+  }
+
+  private OffHeapPhotoCache.Handle load(long photoId, String version, byte[] photo) throws IOException {
+    OffHeapPhotoCache.Handle handle = cache.load(photoId, version, photo.length, new ByteArrayInputStream(photo));
+    assertNotNull(handle);
+    return handle;
+  }
+
+  private static byte[] read(OffHeapPhotoCache.Handle handle, long start, long count) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(count, handle.writeTo(Channels.newChannel(out), start, count));
+    return out.toByteArray();
+  }
+
+  private static byte[] photo(int size, int seed) {
+    byte[] photo = new byte[size];
+    for (int i = 0; i < size; i++) {
+      photo[i] = (byte) (i * 31 + seed * 7);
+    }
+    return photo;
+  }
+}
@@ -0,0 +1,110 @@
+package used_furniture.core;
+
+import used_furniture.core.products.model.Photo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * A 3000 byte cache, so which entries a put evicts is predictable. Request
+ * frequencies are raised with {@link PhotoCache#get(PhotoSizeKey)}.
+ *
+ * @author rmarq
+ */
+public class PhotoCacheTest {
+
+  private final PhotoCache cache = new PhotoCache(3000);
+
+  @Test
+  public void rejectedCandidateKeepsEveryEntry() {
+    put(1, 1000);
+    put(2, 1000);
+    put(3, 1000);
+    request(2, 3);
+    request(3, 3);
+    // More popular than the LRU entry 1, less than 2, and needs room from both.
+    request(4, 2);
+
+    put(4, 1500);
+
+    assertNull(cache.get(key(4)));
+    for (long photoId = 1; photoId <= 3; photoId++) {
+      assertNotNull("photo " + photoId, cache.get(key(photoId)));
+    }
+    PhotoCache.Stats stats = cache.getStats();
+    assertEquals(1, stats.rejections);
+    assertEquals(0, stats.evictions);
+    assertEquals(3, stats.entries);
+    assertEquals(3000, stats.bytes);
+  }
+
+  @Test
+  public void replacingAnEntryIsAlwaysAdmitted() {
+    put(1, 1000);
+    put(2, 1000);
+    put(3, 1000);
+    request(1, 3);
+    request(2, 3);
+
+    // Never requested and needs room, but it replaces an entry already admitted.
+    Photo replacement = photo(3, 2000);
+    cache.put(key(3), replacement);
+
+    assertSame(replacement, cache.get(key(3)));
+    assertNull(cache.get(key(1)));
+    assertNotNull(cache.get(key(2)));
+    PhotoCache.Stats stats = cache.getStats();
+    assertEquals(0, stats.rejections);
+    assertEquals(1, stats.evictions);
+    assertEquals(2, stats.entries);
+    assertEquals(3000, stats.bytes);
+  }
+
+  @Test
+  public void bytesAreAccountedAfterEviction() {
+    put(1, 1000);
+    put(2, 1000);
+    put(3, 1000);
+    request(4, 5);
+
+    put(4, 1500);
+
+    PhotoCache.Stats stats = cache.getStats();
+    assertEquals(2, stats.evictions);
+    assertEquals(2, stats.entries);
+    assertEquals(2500, stats.bytes);
+    assertNull(cache.get(key(1)));
+    assertNull(cache.get(key(2)));
+
+    cache.invalidatePhoto(4);
+    assertEquals(1000, cache.getStats().bytes);
+    assertEquals(1, cache.getStats().entries);
+
+    // Larger than the whole budget: rejected without touching the rest.
+    put(5, 3001);
+    assertEquals(1000, cache.getStats().bytes);
+    assertEquals(1, cache.getStats().rejections);
+  }
+
+  private void put(long photoId, int size) {
+    cache.put(key(photoId), photo(photoId, size));
+  }
+
+  private void request(long photoId, int times) {
+    for (int i = 0; i < times; i++) {
+      cache.get(key(photoId));
+    }
+  }
+
+  private static PhotoSizeKey key(long photoId) {
+    return new PhotoSizeKey(photoId, "v", 100, 100);
+  }
+
+  private static Photo photo(long photoId, int size) {
+    return new Photo(photoId, 1, new byte[size]);
+  }
+
+}
@@ -0,0 +1,161 @@
+package used_furniture.core;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author rmarq
+ */
+public class PhotoDiskCacheTest {
+
+  private static final PhotoSize BUCKET = new PhotoSize(400, 400);
+  private static final String VERSION = PhotoVersion.hash(new byte[]{1});
+  private static final String OTHER_VERSION = PhotoVersion.hash(new byte[]{2});
+
+  private Path root;
+  private byte[] a;
+  private byte[] b;
+  private byte[] c;
+
+  @Before
+  public void setUp() throws IOException {
+    root = Files.createTempDirectory("disk-cache");
+    a = jpeg(40, 30, 0x00ff00);
+    b = jpeg(40, 30, 0x0000ff);
+    c = jpeg(40, 30, 0xff0000);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(root)) {
+      for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  @Test
+  public void servesWhatWasPut() throws IOException {
+    PhotoDiskCache cache = new PhotoDiskCache(root, 1 << 20);
+    PhotoDiskCache.Entry put = cache.put(1, BUCKET, VERSION, a);
+    PhotoDiskCache.Entry hit = cache.get(1, BUCKET, VERSION);
+    assertEquals(put.path, hit.path);
+    assertEquals(a.length, hit.size);
+    assertEquals(PhotoVersion.hash(a), hit.contentHash);
+    assertEquals(new PhotoSize(40, 30), hit.served);
+    assertArrayEquals(a, Files.readAllBytes(hit.path));
+
+    assertNull(cache.get(1, BUCKET, OTHER_VERSION));
+    assertNull(cache.get(1, new PhotoSize(800, 800), VERSION));
+    assertNull(cache.get(2, BUCKET, VERSION));
+    assertEquals(1, cache.getStats().hits);
+    assertEquals(3, cache.getStats().misses);
+  }
+
+  @Test
+  public void rebuildsIndexFromFiles() throws IOException {
+    PhotoDiskCache cache = new PhotoDiskCache(root, 1 << 20);
+    PhotoDiskCache.Entry first = cache.put(1, BUCKET, VERSION, a);
+    cache.put(300, BUCKET, OTHER_VERSION, b);
+    Files.write(root.resolve("tmp").resolve("derivative123.tmp"), new byte[]{1, 2});
+    Files.write(first.path.resolveSibling("unrelated.txt"), new byte[]{1, 2});
+
+    PhotoDiskCache reopened = new PhotoDiskCache(root, 1 << 20);
+    PhotoDiskCache.Entry hit = reopened.get(1, BUCKET, VERSION);
+    assertNotNull(hit);
+    assertEquals(first.path, hit.path);
+    assertEquals(first.contentHash, hit.contentHash);
+    assertEquals(first.served, hit.served);
+    assertNotNull(reopened.get(300, BUCKET, OTHER_VERSION));
+    assertEquals(2, reopened.getStats().entries);
+    assertEquals(a.length + b.length, reopened.getStats().bytes);
+    try (Stream<Path> leftovers = Files.list(root.resolve("tmp"))) {
+      assertEquals(0, leftovers.count());
+    }
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws IOException {
+    PhotoDiskCache cache = new PhotoDiskCache(root, a.length + b.length + c.length - 1);
+    cache.put(1, BUCKET, VERSION, a);
+    PhotoDiskCache.Entry evicted = cache.put(2, BUCKET, VERSION, b);
+    assertNotNull(cache.get(1, BUCKET, VERSION));
+    cache.put(3, BUCKET, VERSION, c);
+
+    assertNull(cache.get(2, BUCKET, VERSION));
+    assertNotNull(cache.get(1, BUCKET, VERSION));
+    assertNotNull(cache.get(3, BUCKET, VERSION));
+    assertEquals(1, cache.getStats().evictions);
+    assertEquals(a.length + c.length, cache.getStats().bytes);
+    // Deleted only after a delay, in case it is still being sent.
+    assertTrue(Files.exists(evicted.path));
+  }
+
+  @Test
+  public void rebuildEvictsOldestFilesOverBudget() throws IOException {
+    PhotoDiskCache cache = new PhotoDiskCache(root, 1 << 20);
+    PhotoDiskCache.Entry oldest = cache.put(1, BUCKET, VERSION, a);
+    PhotoDiskCache.Entry middle = cache.put(2, BUCKET, VERSION, b);
+    PhotoDiskCache.Entry newest = cache.put(3, BUCKET, VERSION, c);
+    long now = System.currentTimeMillis();
+    Files.setLastModifiedTime(newest.path, FileTime.fromMillis(now - 1000));
+    Files.setLastModifiedTime(middle.path, FileTime.fromMillis(now - 2000));
+    Files.setLastModifiedTime(oldest.path, FileTime.fromMillis(now - 3000));
+
+    PhotoDiskCache reopened = new PhotoDiskCache(root, b.length + c.length);
+    assertNull(reopened.get(1, BUCKET, VERSION));
+    assertNotNull(reopened.get(2, BUCKET, VERSION));
+    assertNotNull(reopened.get(3, BUCKET, VERSION));
+    assertEquals(0, reopened.getStats().evictions);
+  }
+
+  @Test
+  public void invalidatesEverySizeOfAPhoto() throws IOException {
+    PhotoDiskCache cache = new PhotoDiskCache(root, 1 << 20);
+    cache.put(1, BUCKET, VERSION, a);
+    cache.put(1, new PhotoSize(800, 800), VERSION, b);
+    cache.put(12, BUCKET, VERSION, c);
+    cache.invalidatePhoto(1);
+    assertNull(cache.get(1, BUCKET, VERSION));
+    assertNull(cache.get(1, new PhotoSize(800, 800), VERSION));
+    assertNotNull(cache.get(12, BUCKET, VERSION));
+    assertEquals(c.length, cache.getStats().bytes);
+  }
+
+  @Test
+  public void refusesPhotosLargerThanTheBudget() throws IOException {
+    PhotoDiskCache cache = new PhotoDiskCache(root, a.length - 1);
+    assertNull(cache.put(1, BUCKET, VERSION, a));
+    assertNull(cache.get(1, BUCKET, VERSION));
+  }
+
+  private static byte[] jpeg(int width, int height, int rgb) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        image.setRGB(x, y, x < width / 2 ? rgb : ~rgb & 0xffffff);
+      }
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpeg", out);
+    return out.toByteArray();
+  }
+}
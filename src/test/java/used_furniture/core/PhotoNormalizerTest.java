@@ -0,0 +1,166 @@
+package used_furniture.core;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author rmarq
+ */
+public class PhotoNormalizerTest {
+
+  private static final int WIDTH = 3;
+  private static final int HEIGHT = 2;
+
+  @Test
+  public void readsOrientationInBothByteOrders() {
+    assertEquals(6, PhotoNormalizer.exifOrientation(app1(ByteOrder.LITTLE_ENDIAN, 6)));
+    assertEquals(8, PhotoNormalizer.exifOrientation(app1(ByteOrder.BIG_ENDIAN, 8)));
+    assertEquals(3, PhotoNormalizer.exifOrientation(app1(ByteOrder.BIG_ENDIAN, 3)));
+  }
+
+  @Test
+  public void defaultsToUprightWhenAbsentOrMalformed() {
+    assertEquals(1, PhotoNormalizer.exifOrientation(app1(ByteOrder.LITTLE_ENDIAN, 9)));
+    assertEquals(1, PhotoNormalizer.exifOrientation("http://ns.adobe.com/xap/1.0/\0".getBytes()));
+    byte[] truncated = new byte[20];
+    System.arraycopy(app1(ByteOrder.LITTLE_ENDIAN, 6), 0, truncated, 0, truncated.length);
+    assertEquals(1, PhotoNormalizer.exifOrientation(truncated));
+    assertEquals(1, PhotoNormalizer.exifOrientation((IIOMetadata) null));
+  }
+
+  @Test
+  public void readsOrientationFromJpegMetadata() throws IOException {
+    byte[] jpeg = withApp1(jpeg(image()), app1(ByteOrder.LITTLE_ENDIAN, 6));
+    try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+      ImageReader reader = ImageIO.getImageReaders(iis).next();
+      try {
+        reader.setInput(iis);
+        assertEquals(6, PhotoNormalizer.exifOrientation(reader.getImageMetadata(0)));
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  @Test
+  public void orientsEveryPixel() {
+    BufferedImage image = image();
+    for (int orientation = 1; orientation <= 8; orientation++) {
+      BufferedImage oriented = PhotoNormalizer.orient(image, orientation);
+      boolean swapped = orientation >= 5;
+      assertEquals(swapped ? HEIGHT : WIDTH, oriented.getWidth());
+      assertEquals(swapped ? WIDTH : HEIGHT, oriented.getHeight());
+      for (int y = 0; y < oriented.getHeight(); y++) {
+        for (int x = 0; x < oriented.getWidth(); x++) {
+          int[] source = source(orientation, x, y);
+          assertEquals("orientation " + orientation + " at " + x + "," + y,
+                  image.getRGB(source[0], source[1]) & 0xffffff, oriented.getRGB(x, y) & 0xffffff);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void normalizeAppliesOrientationAndReportsUprightSize() throws IOException {
+    BufferedImage landscape = new BufferedImage(40, 20, BufferedImage.TYPE_INT_RGB);
+    byte[] jpeg = withApp1(jpeg(landscape), app1(ByteOrder.BIG_ENDIAN, 6));
+    PhotoNormalizer.Normalized normalized = new PhotoNormalizer(2048, 0.85f).normalize(new ByteArrayInputStream(jpeg));
+    assertEquals(20, normalized.width);
+    assertEquals(40, normalized.height);
+    assertEquals(20, normalized.originalWidth);
+    assertEquals(40, normalized.originalHeight);
+    assertEquals(jpeg.length, normalized.originalSize);
+  }
+
+  /**
+   * Where pixel x,y of the upright photo comes from in the stored one, per
+   * the EXIF specification.
+   */
+  private static int[] source(int orientation, int x, int y) {
+    switch (orientation) {
+      case 2:
+        return new int[]{WIDTH - 1 - x, y};
+      case 3:
+        return new int[]{WIDTH - 1 - x, HEIGHT - 1 - y};
+      case 4:
+        return new int[]{x, HEIGHT - 1 - y};
+      case 5:
+        return new int[]{y, x};
+      case 6:
+        return new int[]{y, HEIGHT - 1 - x};
+      case 7:
+        return new int[]{WIDTH - 1 - y, HEIGHT - 1 - x};
+      case 8:
+        return new int[]{WIDTH - 1 - y, x};
+      default:
+        return new int[]{x, y};
+    }
+  }
+
+  /**
+   * A photo whose pixels all differ.
+   */
+  private static BufferedImage image() {
+    BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        image.setRGB(x, y, (x * 80) << 16 | (y * 200) << 8 | 40);
+      }
+    }
+    return image;
+  }
+
+  /**
+   * An APP1 payload with a single orientation entry in IFD0.
+   */
+  private static byte[] app1(ByteOrder order, int orientation) {
+    ByteBuffer buffer = ByteBuffer.allocate(6 + 8 + 2 + 2 * 12 + 4).order(order);
+    buffer.put("Exif\0\0".getBytes());
+    buffer.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+    buffer.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+    buffer.putShort((short) 42);
+    buffer.putInt(8);
+    buffer.putShort((short) 2);
+    // ImageWidth first, so the orientation is not the only entry.
+    buffer.putShort((short) 0x0100).putShort((short) 3).putInt(1).putShort((short) WIDTH).putShort((short) 0);
+    buffer.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+    buffer.putInt(0);
+    return buffer.array();
+  }
+
+  private static byte[] jpeg(BufferedImage image) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpeg", out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Inserts an APP1 segment right after SOI, replacing the JFIF APP0 the
+   * JDK writes, as cameras do.
+   */
+  private static byte[] withApp1(byte[] jpeg, byte[] app1) {
+    int app0Length = (jpeg[4] & 0xff) << 8 | (jpeg[5] & 0xff);
+    int rest = 2 + 2 + app0Length;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(jpeg, 0, 2);
+    out.write(0xff);
+    out.write(0xe1);
+    out.write((app1.length + 2) >> 8);
+    out.write((app1.length + 2) & 0xff);
+    out.write(app1, 0, app1.length);
+    out.write(jpeg, rest, jpeg.length - rest);
+    return out.toByteArray();
+  }
+}
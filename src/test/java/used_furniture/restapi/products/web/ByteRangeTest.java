@@ -0,0 +1,69 @@
+package used_furniture.restapi.products.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author rmarq
+ */
+public class ByteRangeTest {
+
+  @Test
+  public void closedRange() {
+    ByteRange range = ByteRange.parse("bytes=0-99", 1000);
+    assertTrue(range.isSatisfiable());
+    assertEquals(0, range.start);
+    assertEquals(99, range.end);
+    assertEquals(100, range.length());
+    assertEquals("bytes 0-99/1000", range.contentRange());
+  }
+
+  @Test
+  public void openRangeRunsToTheEnd() {
+    ByteRange range = ByteRange.parse("bytes=500-", 1000);
+    assertEquals(500, range.start);
+    assertEquals(999, range.end);
+  }
+
+  @Test
+  public void endIsClampedToTheBody() {
+    ByteRange range = ByteRange.parse("bytes=900-5000", 1000);
+    assertEquals(999, range.end);
+    assertEquals("bytes 900-999/1000", range.contentRange());
+  }
+
+  @Test
+  public void suffixRange() {
+    ByteRange range = ByteRange.parse("bytes=-100", 1000);
+    assertEquals(900, range.start);
+    assertEquals(999, range.end);
+
+    ByteRange all = ByteRange.parse("bytes=-5000", 1000);
+    assertEquals(0, all.start);
+    assertEquals(1000, all.length());
+  }
+
+  @Test
+  public void unsatisfiableRanges() {
+    ByteRange pastEnd = ByteRange.parse("bytes=1000-", 1000);
+    assertFalse(pastEnd.isSatisfiable());
+    assertEquals("bytes */1000", pastEnd.contentRange());
+
+    assertFalse(ByteRange.parse("bytes=-0", 1000).isSatisfiable());
+    assertFalse(ByteRange.parse("bytes=0-", 0).isSatisfiable());
+  }
+
+  @Test
+  public void fullBodyForAnythingElse() {
+    assertNull(ByteRange.parse(null, 1000));
+    assertNull(ByteRange.parse("items=0-99", 1000));
+    assertNull(ByteRange.parse("bytes=0-9,20-29", 1000));
+    assertNull(ByteRange.parse("bytes=5", 1000));
+    assertNull(ByteRange.parse("bytes=a-b", 1000));
+    assertNull(ByteRange.parse("bytes=50-10", 1000));
+  }
+}